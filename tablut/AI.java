@@ -1,19 +1,29 @@
 package tablut;
 
+import java.util.Arrays;
+
 import static java.lang.Math.*;
 import static tablut.Piece.*;
+import static tablut.Square.NUM_SQUARES;
 
-/** A Player that automatically generates moves.
+/** A Player that automatically generates moves.  An AI keeps the
+ *  state its searches learn from one move to the next: a transposition
+ *  table (aged, not cleared, by each search), killer moves and history
+ *  counts for move ordering, and the principal variation, which the next
+ *  search follows first if the game has gone as it predicted.
  *  @author Matthew J. Lee
  */
 class AI extends Player {
 
+    /** Plies beyond this count as this many in scoring wins. */
+    private static final int MAX_PLY = 1000;
     /** A position-score magnitude indicating a win (for white if positive,
-     *  black if negative). */
+     *  black if negative).  A win N plies into a search scores N less, so
+     *  that the search prefers the fastest win and the slowest loss. */
     private static final int WINNING_VALUE = Integer.MAX_VALUE - 20;
-    /** A position-score magnitude indicating a forced win in a subsequent
-     *  move.  This differs from WINNING_VALUE to avoid putting off wins. */
-    private static final int WILL_WIN_VALUE = Integer.MAX_VALUE - 40;
+    /** The least magnitude of a score indicating a forced win: that of a
+     *  win found at the greatest ply the search can reach. */
+    private static final int WILL_WIN_VALUE = WINNING_VALUE - MAX_PLY;
     /** A magnitude greater than a normal value. */
     private static final int INFTY = Integer.MAX_VALUE;
 
@@ -30,14 +40,31 @@ class AI extends Player {
 
     @Override
     Player create(Piece piece, Controller controller) {
-        return new AI(piece, controller);
+        AI result = new AI(piece, controller);
+        result.setLimits(_depthLimit, _timeLimit);
+        result._nodeLimit = _nodeLimit;
+        result._ponder = _ponder;
+        result._tableBits = _tableBits;
+        result._sharedTable = _sharedTable;
+        result._listener = _listener;
+        return result;
     }
 
     @Override
     String myMove() {
-        Move move = findMove();
-        _controller.reportMove(move);
-        return move.toString();
+        Board board = board();
+        _searching = true;
+        int move = ponderResult(board);
+        if (move == Move.NO_MOVE) {
+            move = findMove(board);
+        }
+        synchronized (this) {
+            _searching = _hurried = false;
+            clearStop();
+        }
+        _controller.reportMove(Move.mv(move));
+        startPondering(board, move);
+        return Move.mv(move).toString();
     }
 
     @Override
@@ -45,77 +72,608 @@ class AI extends Player {
         return false;
     }
 
-    /** Return a move for me from the current position, assuming there
-     *  is a move. */
-    private Move findMove() {
-        if (_myPiece == WHITE) {
-            findMove(this.board(),
-                    maxDepth(this.board()), true, 1, -INFTY, INFTY);
+    /** Stop my current search, if I am choosing a move, and play the best
+     *  move it has found. */
+    @Override
+    synchronized void hurry() {
+        if (_searching) {
+            _hurried = true;
+            stop();
+        }
+    }
+
+    /** Limit my searches to DEPTH plies and MILLIS milliseconds per move.
+     *  A value of 0 for either means no limit of that kind; if both are 0,
+     *  the depth is chosen heuristically, as by maxDepth. */
+    void setLimits(int depth, long millis) {
+        _depthLimit = depth;
+        _timeLimit = millis;
+    }
+
+    /** Limit my searches to NODES positions, or none if NODES is 0. */
+    void setNodeLimit(long nodes) {
+        _nodeLimit = nodes > 0 ? nodes : Long.MAX_VALUE;
+    }
+
+    /** Report each completed iteration of my searches to LISTENER, or to
+     *  no one if LISTENER is null. */
+    void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    /** Make the current search stop (with the best move found so far) as
+     *  soon as it has a move, or make the next one stop immediately if
+     *  none is in progress.  May be called from any thread. */
+    void stop() {
+        _stopRequested = true;
+    }
+
+    /** Undo the effect of stop() for subsequent searches. */
+    void clearStop() {
+        _stopRequested = false;
+    }
+
+    /** Make the current search stop MILLIS milliseconds from now.  May
+     *  be called from any thread. */
+    void setDeadline(long millis) {
+        _deadline = System.nanoTime() + millis * 1000000;
+    }
+
+    /** Remove any time limit from the current search, or from the next
+     *  one started by deepen.  May be called from any thread. */
+    void clearDeadline() {
+        _deadline = Long.MAX_VALUE;
+    }
+
+    /** Forget what my searches have learned, as at the start of a new
+     *  game, stopping any pondering.  A shared table is kept. */
+    void newGame() {
+        stopPondering();
+        _table = null;
+        for (int[] counts : _history) {
+            Arrays.fill(counts, 0);
+        }
+        for (int[] killers : _killers) {
+            Arrays.fill(killers, Move.NO_MOVE);
+        }
+        _lastPvLength = 0;
+        _pvKey = _rootKey = 0;
+    }
+
+    /** Receives a report of each completed search iteration. */
+    interface Listener {
+        /** Report that the search to DEPTH plies has found principal
+         *  variation PV with value SCORE after visiting NODES positions in
+         *  total, ELAPSED nanoseconds after the search started. */
+        void iterationDone(int depth, int score, long nodes, int[] pv,
+                           long elapsed);
+    }
+
+    /** Use a transposition table with 2**LOG2SIZE entries. */
+    void setTableSize(int log2Size) {
+        _tableBits = log2Size;
+        _table = null;
+    }
+
+    /** Use TABLE, which may be shared with other AIs, threads, or
+     *  processes, as my transposition table and that of the AIs I
+     *  create. */
+    void setSharedTable(TranspositionTable table) {
+        _sharedTable = table;
+        _table = null;
+    }
+
+    /** Return my transposition table, or null if I have none yet.  Stops
+     *  any pondering, so that the table is not changing. */
+    TranspositionTable table() {
+        stopPondering();
+        return _table;
+    }
+
+    /** Use TABLE as my transposition table, stopping any pondering. */
+    void setTable(TranspositionTable table) {
+        stopPondering();
+        _table = table;
+        _tableBits = Integer.numberOfTrailingZeros(table.size());
+    }
+
+    /** Iff PONDER, think about my next move while my opponent, if it is
+     *  a manual player, thinks about its move. */
+    void setPondering(boolean ponder) {
+        _ponder = ponder;
+    }
+
+    /** If pondering is on and my opponent is manual, start searching,
+     *  in the background, the position reached from BOARD by MOVE and the
+     *  reply predicted by the search that chose MOVE.  BOARD is not
+     *  changed. */
+    private void startPondering(Board board, int move) {
+        Piece opponent = board.turn().opponent();
+        int reply = _lastPvLength > 1 ? _lastPv[1] : Move.NO_MOVE;
+        if (!_ponder || reply == Move.NO_MOVE
+            || !(opponent == WHITE ? _controller.manualWhite()
+                 : _controller.manualBlack())) {
+            return;
+        }
+        Board predicted = new Board(board);
+        predicted.makeMove(move);
+        if (predicted.winner() != null || !predicted.isLegal(reply)) {
+            return;
+        }
+        predicted.makeMove(reply);
+        if (predicted.winner() != null) {
+            return;
+        }
+        _ponderHash = predicted.positionHash();
+        clearStop();
+        _quiet = true;
+        _deadline = System.nanoTime() + MAX_PONDER_TIME * 1000000;
+        _ponderer = new Thread(() -> {
+            _ponderMove = deepen(predicted);
+        }, "tablut-ponder");
+        _ponderer.setDaemon(true);
+        _ponderer.start();
+    }
+
+    /** Abandon any pondering. */
+    private void stopPondering() {
+        if (_ponderer != null) {
+            stop();
+            try {
+                _ponderer.join();
+            } catch (InterruptedException excp) {
+                /* Ignore InterruptedException. */
+            }
+            _ponderer = null;
+            _quiet = false;
+            clearStop();
+        }
+    }
+
+    /** If I am pondering, stop, and return the move found if BOARD is the
+     *  position I was pondering (a ponder hit).  In that case, the search
+     *  continues until my usual limits are reached, counting from now,
+     *  and its further iterations are reported to my listener.
+     *  Otherwise, the search is abandoned and NO_MOVE returned.  A
+     *  hurry() that arrives meanwhile also stops the search that follows
+     *  a miss. */
+    private int ponderResult(Board board) {
+        if (_ponderer == null) {
+            return Move.NO_MOVE;
+        }
+        boolean hit = board.positionHash() == _ponderHash;
+        if (!hit) {
+            stop();
         } else {
-            findMove(this.board(),
-                    maxDepth(this.board()), true, -1, -INFTY, INFTY);
+            _quiet = false;
+            if (_timeLimit > 0) {
+                setDeadline(_timeLimit);
+            }
+        }
+        try {
+            _ponderer.join();
+        } catch (InterruptedException excp) {
+            hit = false;
+        }
+        _ponderer = null;
+        _quiet = false;
+        synchronized (this) {
+            if (!_hurried) {
+                clearStop();
+            }
+        }
+        return hit ? _ponderMove : Move.NO_MOVE;
+    }
+
+    /** Return a packed move for the side to move on BOARD, assuming
+     *  there is a move.  Searches to successively greater depths within
+     *  my limits, recording each iteration and the search as a whole as
+     *  flight-recorder events.  BOARD is restored before returning. */
+    int findMove(Board board) {
+        _deadline = _timeLimit > 0 ? System.nanoTime() + _timeLimit * 1000000
+            : Long.MAX_VALUE;
+        return deepen(board);
+    }
+
+    /** Return a packed move for the side to move on BOARD as for
+     *  findMove, but stopping at the time already set by findMove,
+     *  setDeadline, or clearDeadline. */
+    int deepen(Board board) {
+        Piece side = board.turn();
+        int sense = side == WHITE ? 1 : -1;
+        FlightEvents.Search search = new FlightEvents.Search();
+        search.begin();
+        long start = System.nanoTime();
+        _aborted = false;
+        _nodes = 0;
+        _lastFoundMove = Move.NO_MOVE;
+        int limit = _depthLimit > 0 ? _depthLimit
+            : _timeLimit > 0 || _nodeLimit < Long.MAX_VALUE
+            ? MAX_SEARCH_DEPTH : maxDepth(board);
+        int depth, score, completed;
+        score = completed = 0;
+        prepare(board, limit);
+        for (depth = 1; depth <= limit; depth += 1) {
+            FlightEvents.SearchIteration iteration =
+                new FlightEvents.SearchIteration();
+            iteration.begin();
+            long nodes0 = _nodes;
+            _followPly = 0;
+            int value = findMove(board, depth, 0, sense, -INFTY, INFTY);
+            if (_aborted) {
+                break;
+            }
+            _lastPvLength = _pvLength[0];
+            System.arraycopy(_pv[0], 0, _lastPv, 0, _lastPvLength);
+            _lastFoundMove = _lastPv[0];
+            score = value;
+            completed = depth;
+            if (iteration.shouldCommit()) {
+                iteration.side = side.toName();
+                iteration.depth = depth;
+                iteration.nodes = _nodes - nodes0;
+                iteration.score = score;
+                iteration.move = String.valueOf(Move.mv(_lastFoundMove));
+                iteration.commit();
+            }
+            if (_listener != null && !_quiet) {
+                _listener.iterationDone(depth, score, _nodes,
+                                        Arrays.copyOf(_lastPv, _lastPvLength),
+                                        System.nanoTime() - start);
+            }
+            if (abs(score) >= WILL_WIN_VALUE) {
+                break;
+            }
+        }
+        if (search.shouldCommit()) {
+            search.side = side.toName();
+            search.ply = board.moveCount();
+            search.depth = completed;
+            search.nodes = _nodes;
+            search.score = score;
+            search.move = String.valueOf(Move.mv(_lastFoundMove));
+            search.elapsed = System.nanoTime() - start;
+            search.commit();
+        }
+        _pvKey = 0;
+        if (_lastPvLength > 2) {
+            board.makeMove(_lastPv[0]);
+            board.makeMove(_lastPv[1]);
+            _pvKey = board.positionHash();
+            board.undo();
+            board.undo();
         }
         return _lastFoundMove;
     }
 
-    /** The move found by the last call to one of the ...FindMove methods
-     *  below. */
-    private Move _lastFoundMove;
+    /** Prepare my tables for a search from BOARD to at most LIMIT plies,
+     *  keeping what previous searches learned that still applies. */
+    private void prepare(Board board, int limit) {
+        if (_table == null) {
+            _table = _sharedTable != null ? _sharedTable
+                : new TranspositionTable(_tableBits);
+        }
+        _table.newSearch();
+        if (_moveLists.length < limit + 1) {
+            _moveLists = new int[limit + 1][Board.MAX_MOVES];
+            _scores = new int[limit + 1][Board.MAX_MOVES];
+            _pv = new int[limit + 1][limit + 1];
+            _pvLength = new int[limit + 1];
+            _lastPv = Arrays.copyOf(_lastPv, limit + 1);
+            int[][] killers = new int[limit + 1][2];
+            for (int k = 0; k < _killers.length; k += 1) {
+                killers[k] = _killers[k];
+            }
+            _killers = killers;
+        }
+        long key = board.positionHash();
+        int advance = board.moveCount() - _rootPly;
+        if (key == _pvKey) {
+            _lastPvLength -= 2;
+            System.arraycopy(_lastPv, 2, _lastPv, 0, _lastPvLength);
+        } else if (key != _rootKey) {
+            _lastPvLength = 0;
+        }
+        if (key != _rootKey && advance > 0) {
+            for (int k = 0; k < _killers.length; k += 1) {
+                _killers[k] = k + advance < _killers.length
+                    ? _killers[k + advance] : new int[2];
+            }
+        }
+        _rootKey = key;
+        _rootPly = board.moveCount();
+        for (int[] counts : _history) {
+            for (int i = 0; i < counts.length; i += 1) {
+                counts[i] >>= 1;
+            }
+        }
+    }
 
-    /** Find a move from position BOARD and return its value, recording
-     *  the move found in _lastFoundMove iff SAVEMOVE. The move
-     *  should have maximal value or have value > BETA if SENSE==1,
-     *  and minimal value or value < ALPHA if SENSE==-1. Searches up to
-     *  DEPTH levels.  Searching at level 0 simply returns a static estimate
-     *  of the board value and does not set _lastMoveFound. */
-    private int findMove(Board board, int depth, boolean saveMove,
-                         int sense, int alpha, int beta) {
+    /** Return true iff the current search has run out of time or nodes,
+     *  or has been stopped, and has a move to fall back on.  Checks the
+     *  clock and the stop request only every so many nodes. */
+    private boolean outOfTime() {
+        if (!_aborted && _lastFoundMove != Move.NO_MOVE
+            && (_nodes > _nodeLimit
+                || (_nodes & CLOCK_CHECK_MASK) == 0
+                   && (_stopRequested || System.nanoTime() > _deadline))) {
+            _aborted = true;
+        }
+        return _aborted;
+    }
+
+    /** The packed move found by the last complete iteration of the
+     *  current search. */
+    private int _lastFoundMove;
+
+    /** Transposition table, created when first needed. */
+    private TranspositionTable _table;
+
+    /** Transposition table to use in place of a new one, or null. */
+    private TranspositionTable _sharedTable;
+
+    /** Log base 2 of the number of entries in _table. */
+    private int _tableBits = DEFAULT_TABLE_BITS;
+
+    /** _pv[p][p .. _pvLength[p]-1] is the principal variation found so
+     *  far from the node being searched at ply p of the current
+     *  iteration. */
+    private int[][] _pv = new int[0][];
+
+    /** Lengths of the principal variations in _pv. */
+    private int[] _pvLength = new int[0];
+
+    /** The principal variation found by the last complete iteration,
+     *  in _lastPv[0 .. _lastPvLength-1]. */
+    private int[] _lastPv = new int[0];
+
+    /** Length of _lastPv. */
+    private int _lastPvLength;
+
+    /** Ply up to which the current path follows _lastPv, or -1 if it has
+     *  left it. */
+    private int _followPly;
+
+    /** Position hash of the root of the last search. */
+    private long _rootKey;
+
+    /** Move count at the root of the last search. */
+    private int _rootPly;
+
+    /** Position hash of the position reached by the first two moves of
+     *  _lastPv, or 0 if it is shorter than three moves. */
+    private long _pvKey;
+
+    /** _killers[p] holds two recent moves that caused cutoffs at ply p. */
+    private int[][] _killers = new int[0][];
+
+    /** _history[s][from * NUM_SQUARES + to] measures how often the move
+     *  from-to has caused cutoffs for side s (0 for white, 1 for black). */
+    private final int[][] _history = new int[2][NUM_SQUARES * NUM_SQUARES];
+
+    /** _scores[p] holds the ordering scores of the moves in
+     *  _moveLists[p]. */
+    private int[][] _scores = new int[0][];
+
+    /** True iff I ponder. */
+    private boolean _ponder;
 
+    /** The thread pondering my next move, or null if none. */
+    private Thread _ponderer;
 
+    /** Position hash of the position being pondered. */
+    private long _ponderHash;
+
+    /** The move found by pondering. */
+    private int _ponderMove;
+
+    /** True while my searches are not reported to my listener: while I
+     *  ponder, until a ponder hit.  The opponent is then to move, so
+     *  reports would describe a position not yet on the board. */
+    private volatile boolean _quiet;
+
+    /** _moveLists[p] holds the moves being considered at ply p of the
+     *  current search. */
+    private int[][] _moveLists = new int[0][];
+
+    /** Number of positions visited by the current search. */
+    private long _nodes;
+
+    /** Depth limit for searches, or 0 if none. */
+    private int _depthLimit;
+
+    /** Time limit for searches in milliseconds, or 0 if none. */
+    private long _timeLimit;
+
+    /** Node limit for searches. */
+    private long _nodeLimit = Long.MAX_VALUE;
+
+    /** Value of System.nanoTime() at which the current search must
+     *  stop. */
+    private volatile long _deadline;
+
+    /** True iff searches are to stop as soon as they have a move. */
+    private volatile boolean _stopRequested;
+
+    /** Receiver of reports on completed iterations, or null. */
+    private Listener _listener;
+
+    /** True while myMove is choosing a move. */
+    private volatile boolean _searching;
+
+    /** True iff hurry() has been called since myMove started choosing
+     *  the current move.  Accessed only while synchronized on me. */
+    private boolean _hurried;
+
+    /** True iff the current search has been cut off. */
+    private boolean _aborted;
+
+    /** Find a move from position BOARD, PLY plies below the root, and
+     *  return its value, recording the principal variation found in
+     *  _pv[PLY].  The move should have maximal value or have value > BETA
+     *  if SENSE==1, and minimal value or value < ALPHA if SENSE==-1.
+     *  Searches up to DEPTH levels.  Searching at level 0 simply returns a
+     *  static estimate of the board value and records no move.  Returns
+     *  a meaningless value if the search is cut off by outOfTime. */
+    private int findMove(Board board, int depth, int ply,
+                         int sense, int alpha, int beta) {
+        _nodes += 1;
+        if (outOfTime()) {
+            return 0;
+        }
+        _pvLength[ply] = ply;
         if (depth == 0 || board.winner() != null) {
-            return staticScore(board);
-        }
-        int best = 0;
-        if (sense == 1) {
-            best = -INFTY;
-            for (Move mv : board.legalMoves(WHITE)) {
-                board.makeMove(mv);
-                int response = findMove(board,
-                        depth - 1, false, -1, alpha, beta);
-                if (response >= best) {
-                    best = response;
-                    if (saveMove) {
-                        _lastFoundMove = mv;
-                    }
-                }
-                board.undo();
-                alpha = max(alpha, best);
-                if (alpha >= beta) {
-                    break;
+            return staticScore(board, ply);
+        }
+        long key = board.positionHash();
+        int hashMove = Move.NO_MOVE;
+        long entry = _table.probe(key);
+        if (entry != 0) {
+            hashMove = TranspositionTable.moveOf(entry);
+            int value = fromTable(TranspositionTable.scoreOf(entry), ply);
+            if (ply > 0 && TranspositionTable.depthOf(entry) >= depth) {
+                int bound = TranspositionTable.boundOf(entry);
+                if (bound == TranspositionTable.EXACT
+                    || bound == TranspositionTable.LOWER && value >= beta
+                    || bound == TranspositionTable.UPPER && value <= alpha) {
+                    tablePv(board, depth, ply);
+                    return value;
                 }
             }
-        } else {
-            best = INFTY;
-            for (Move mv : board.legalMoves(BLACK)) {
-                board.makeMove(mv);
-                int response = findMove(board,
-                        depth - 1, false, 1, alpha, beta);
-                if (response <= best) {
-                    best = response;
-                    if (saveMove) {
-                        _lastFoundMove = mv;
-                    }
-                }
-                board.undo();
-                beta = min(beta, best);
-                if (alpha >= beta) {
-                    break;
+        }
+        int side = sense == 1 ? 0 : 1;
+        int[] moves = _moveLists[ply];
+        int n = board.legalMoves(sense == 1 ? WHITE : BLACK, moves);
+        int pvMove = _followPly == ply && ply < _lastPvLength
+            ? _lastPv[ply] : Move.NO_MOVE;
+        scoreMoves(n, ply, side, pvMove, hashMove);
+        int alpha0 = alpha, beta0 = beta;
+        int best = -sense * INFTY;
+        int bestMove = Move.NO_MOVE;
+        for (int i = 0; i < n; i += 1) {
+            if (depth > 1 || i < PRIORITY_MOVES) {
+                selectMove(ply, i, n);
+            }
+            int mv = moves[i];
+            _followPly = mv == pvMove ? ply + 1 : -1;
+            board.makeMove(mv);
+            int response = findMove(board, depth - 1, ply + 1, -sense,
+                                    alpha, beta);
+            board.undo();
+            if (_aborted) {
+                return best;
+            }
+            if (sense == 1 ? response > best : response < best) {
+                best = response;
+                bestMove = mv;
+                _pv[ply][ply] = mv;
+                int len = _pvLength[ply + 1];
+                System.arraycopy(_pv[ply + 1], ply + 1, _pv[ply], ply + 1,
+                                 len - ply - 1);
+                _pvLength[ply] = len;
+                if (sense == 1) {
+                    alpha = max(alpha, best);
+                } else {
+                    beta = min(beta, best);
                 }
             }
+            if (alpha >= beta) {
+                recordCutoff(ply, side, depth, mv);
+                break;
+            }
         }
+        int bound = best <= alpha0 ? TranspositionTable.UPPER
+            : best >= beta0 ? TranspositionTable.LOWER
+            : TranspositionTable.EXACT;
+        _table.store(key, bestMove, toTable(best, ply), depth, bound);
         return best;
     }
 
+    /** Record in _pv[PLY] the principal variation from BOARD, PLY plies
+     *  below the root, for a value taken from my table: the line of at
+     *  most DEPTH moves given by the best moves stored there, as far as
+     *  they are legal. */
+    private void tablePv(Board board, int depth, int ply) {
+        int len = ply;
+        while (len < ply + depth && board.winner() == null) {
+            long entry = _table.probe(board.positionHash());
+            int mv = entry == 0 ? Move.NO_MOVE
+                : TranspositionTable.moveOf(entry);
+            if (!board.isLegal(mv)) {
+                break;
+            }
+            _pv[ply][len] = mv;
+            len += 1;
+            board.makeMove(mv);
+        }
+        _pvLength[ply] = len;
+        for (int k = ply; k < len; k += 1) {
+            board.undo();
+        }
+    }
+
+    /** Set the ordering scores of the N moves at ply PLY for side SIDE:
+     *  PVMOVE first, then HASHMOVE, then the killer moves, then the rest
+     *  by their history counts. */
+    private void scoreMoves(int n, int ply, int side, int pvMove,
+                            int hashMove) {
+        int[] moves = _moveLists[ply], scores = _scores[ply];
+        int[] killers = _killers[ply];
+        int[] history = _history[side];
+        for (int i = 0; i < n; i += 1) {
+            int mv = moves[i];
+            if (mv == pvMove) {
+                scores[i] = PV_SCORE;
+            } else if (mv == hashMove) {
+                scores[i] = HASH_SCORE;
+            } else if (mv == killers[0]) {
+                scores[i] = KILLER_SCORE;
+            } else if (mv == killers[1]) {
+                scores[i] = KILLER_SCORE - 1;
+            } else {
+                scores[i] = history[Move.from(mv) * NUM_SQUARES
+                                    + Move.to(mv)];
+            }
+        }
+    }
+
+    /** Move the highest-scoring of moves I .. N-1 at ply PLY to
+     *  position I. */
+    private void selectMove(int ply, int i, int n) {
+        int[] moves = _moveLists[ply], scores = _scores[ply];
+        int b = i;
+        for (int j = i + 1; j < n; j += 1) {
+            if (scores[j] > scores[b]) {
+                b = j;
+            }
+        }
+        if (b != i) {
+            int mv = moves[b], score = scores[b];
+            moves[b] = moves[i];
+            scores[b] = scores[i];
+            moves[i] = mv;
+            scores[i] = score;
+        }
+    }
+
+    /** Record that MV caused a cutoff for SIDE at ply PLY in a search to
+     *  DEPTH plies. */
+    private void recordCutoff(int ply, int side, int depth, int mv) {
+        int[] killers = _killers[ply];
+        if (killers[0] != mv) {
+            killers[1] = killers[0];
+            killers[0] = mv;
+        }
+        int[] history = _history[side];
+        int k = Move.from(mv) * NUM_SQUARES + Move.to(mv);
+        history[k] += depth * depth;
+        if (history[k] >= MAX_HISTORY) {
+            for (int i = 0; i < history.length; i += 1) {
+                history[i] >>= 1;
+            }
+        }
+    }
+
     /** Return a heuristically determined maximum search depth
      *  based on characteristics of BOARD. */
     private static int maxDepth(Board board) {
@@ -123,32 +681,74 @@ class AI extends Player {
         return (N / MAXDEPTH) + ONE;
     }
 
-    /** Return a heuristic value for BOARD. */
-    private int staticScore(Board board) {
+    /** Return a heuristic value for BOARD, reached PLY plies into the
+     *  current search. */
+    private int staticScore(Board board, int ply) {
         int statScore = 0;
         if (board.winner() != null) {
+            int win = WINNING_VALUE - min(ply, MAX_PLY);
             if (board.winner().equals(WHITE)) {
-                statScore += WINNING_VALUE;
+                statScore += win;
             }
             if (board.winner().equals(BLACK)) {
-                statScore -= -WINNING_VALUE;
+                statScore -= win;
             }
         } else {
-            statScore += board.pieceLocations(WHITE).size() * 8;
-            statScore -= board.pieceLocations(BLACK).size() * 8;
-            int from = min(min(8 - board.kingPosition().row(),
-                    board.kingPosition().row()), min(8
-                    - board.kingPosition().col(), board.kingPosition().col()));
+            statScore += board.pieceCount(WHITE) * 8;
+            statScore -= board.pieceCount(BLACK) * 8;
+            Square king = board.kingPosition();
+            int from = min(min(8 - king.row(), king.row()),
+                    min(8 - king.col(), king.col()));
             statScore += 10 * from;
         }
 
         return statScore;
     }
 
+    /** Return SCORE, the value of a position PLY plies into the current
+     *  search, as recorded in the transposition table: with the distance
+     *  to any win counted from that position rather than from the root. */
+    private static int toTable(int score, int ply) {
+        return score >= WILL_WIN_VALUE ? score + ply
+            : score <= -WILL_WIN_VALUE ? score - ply : score;
+    }
+
+    /** Return the value of a position PLY plies into the current search
+     *  whose transposition-table value is SCORE: the inverse of
+     *  toTable. */
+    private static int fromTable(int score, int ply) {
+        return score >= WILL_WIN_VALUE ? score - ply
+            : score <= -WILL_WIN_VALUE ? score + ply : score;
+    }
+
     /** Incrementing the depth by one integer value. **/
     private static final int ONE = 1;
 
     /** Setting a value for depth and potentially updating it. **/
     private static final int MAXDEPTH = 40;
 
+    /** Depth limit for searches limited only by time. */
+    static final int MAX_SEARCH_DEPTH = 64;
+
+    /** Default log base 2 of the transposition table size. */
+    static final int DEFAULT_TABLE_BITS = 16;
+
+    /** Ordering scores of the principal-variation move, the
+     *  transposition-table move, and the first killer move.  History
+     *  counts are kept below MAX_HISTORY, which is less than all of
+     *  these. */
+    private static final int
+        PV_SCORE = 1 << 30, HASH_SCORE = 1 << 29, KILLER_SCORE = 1 << 28,
+        MAX_HISTORY = 1 << 27;
+
+    /** At the nodes just above the leaves, only this many moves are
+     *  ordered by score; the rest are searched in generation order. */
+    private static final int PRIORITY_MOVES = 4;
+
+    /** Limit on the time spent pondering one move, in milliseconds. */
+    private static final long MAX_PONDER_TIME = 60000;
+
+    /** The clock is checked once per CLOCK_CHECK_MASK + 1 nodes. */
+    private static final int CLOCK_CHECK_MASK = (1 << 10) - 1;
+
 }
@@ -0,0 +1,249 @@
+package tablut;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static tablut.Piece.*;
+
+/** A batch annotator of recorded games.  Each input file, a text
+ *  command log (as written by --log) or a GameRecord archive, is replayed
+ *  game by game, and every position reached is searched by an AI within
+ *  fixed limits.  The result for each input is a text file in the output
+ *  directory listing, for each move, the value of the position it
+ *  produced, the move the search preferred and its value, the loss for
+ *  the side that moved, and whether that loss makes it a blunder.
+ *
+ *  Files are analyzed concurrently on a fixed pool of threads, each with
+ *  its own AI, so memory use is bounded by the number of threads and
+ *  the size of one input.  Each output is written under a temporary name
+ *  and renamed when complete, and inputs whose output already exists are
+ *  skipped, so an interrupted run resumes where it left off.
+ *  @author Matthew J. Lee
+ */
+class Analyzer {
+
+    /** Loss, in the AI's units, at which a move is a blunder: two
+     *  pieces. */
+    static final int BLUNDER_LOSS = 16;
+    /** Magnitude to which winning values are limited when computing
+     *  losses. */
+    static final int WIN_SCORE = 10000;
+    /** Suffix of output files. */
+    static final String SUFFIX = ".analysis";
+
+    /** An analyzer searching each position to DEPTH plies, or for MILLIS
+     *  milliseconds (0 for no limit), on THREADS threads, writing its
+     *  results to OUTPUT, a directory. */
+    Analyzer(int depth, long millis, int threads, Path output) {
+        _depth = depth;
+        _millis = millis;
+        _threads = threads;
+        _output = output;
+    }
+
+    /** Analyze the games in INPUTS that have not yet been analyzed,
+     *  printing a line to LOG as each file is finished and a summary at
+     *  the end. */
+    void run(List<Path> inputs, PrintStream log) throws IOException {
+        Files.createDirectories(_output);
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        List<Path> todo = new ArrayList<>();
+        List<Future<String>> results = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.exists(outputFor(input))) {
+                _skipped += 1;
+            } else {
+                todo.add(input);
+                results.add(pool.submit(() -> analyzeFile(input)));
+            }
+        }
+        try {
+            for (int k = 0; k < todo.size(); k += 1) {
+                try {
+                    log.printf("[%d/%d] %s%n", k + 1, todo.size(),
+                               results.get(k).get());
+                } catch (ExecutionException excp) {
+                    log.printf("[%d/%d] %s: failed: %s%n", k + 1,
+                               todo.size(), todo.get(k),
+                               excp.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException excp) {
+            throw new IOException("analysis interrupted", excp);
+        } finally {
+            pool.shutdownNow();
+        }
+        log.printf("Analyzed %d files (%d already done): %d games,"
+                   + " %d moves, %d blunders in %.1f s%n",
+                   todo.size(), _skipped, _games.get(), _moves.get(),
+                   _blunders.get(),
+                   (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    /** Return the output file for INPUT. */
+    Path outputFor(Path input) {
+        return _output.resolve(input.getFileName() + SUFFIX);
+    }
+
+    /** Analyze INPUT into its output file, returning a one-line
+     *  description of the result. */
+    private String analyzeFile(Path input) throws IOException {
+        ByteBuffer games = GameArchive.map(input);
+        if (!GameArchive.isArchive(games)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (BufferedReader log = Files.newBufferedReader(input)) {
+                GameRecorder.fromText(log, bytes);
+            }
+            games = ByteBuffer.wrap(bytes.toByteArray());
+        }
+        Path result = outputFor(input);
+        Path temp = result.resolveSibling(result.getFileName() + ".tmp");
+        Worker worker = _workers.get();
+        int[] counts = new int[3];
+        try (PrintStream out = new PrintStream(
+                 new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.printf("# %s: depth %d, time %d ms%n", input, _depth,
+                       _millis);
+            GameArchive archive = new GameArchive(games);
+            while (archive.next()) {
+                counts[0] += 1;
+                out.printf("game %d%n", counts[0]);
+                worker.analyze(archive, out, counts);
+            }
+        }
+        Files.move(temp, result, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        _games.addAndGet(counts[0]);
+        _moves.addAndGet(counts[1]);
+        _blunders.addAndGet(counts[2]);
+        return String.format("%s: %d games, %d moves, %d blunders", input,
+                             counts[0], counts[1], counts[2]);
+    }
+
+    /** The searcher used by one thread. */
+    private class Worker implements AI.Listener {
+
+        /** A new worker. */
+        Worker() {
+            _ai.setLimits(_depth, _millis);
+            _ai.setListener(this);
+        }
+
+        /** Write the analysis of the current game of ARCHIVE to OUT,
+         *  adding the numbers of moves and blunders to COUNTS[1] and
+         *  COUNTS[2]. */
+        void analyze(GameArchive archive, PrintStream out, int[] counts) {
+            Board board = new Board();
+            board.setPosition(archive.start());
+            search(board);
+            for (int k = 0; k < archive.size(); k += 1) {
+                int code = archive.code(k);
+                if (GameRecord.isMove(code)) {
+                    Piece side = board.turn();
+                    int ply = board.moveCount() + 1;
+                    int best = _move, bestScore = _score;
+                    board.makeMove(code);
+                    search(board);
+                    int loss = limit(bestScore) - limit(_score);
+                    if (side == BLACK) {
+                        loss = -loss;
+                    }
+                    boolean blunder = loss >= BLUNDER_LOSS;
+                    out.printf("%4d %s %-6s %6s  best %-6s %6s  loss %d%s%n",
+                               ply, side.toName(), Move.mv(code),
+                               value(_score), Move.mv(best),
+                               value(bestScore), Math.max(loss, 0),
+                               blunder ? "  blunder" : "");
+                    counts[1] += 1;
+                    counts[2] += blunder ? 1 : 0;
+                } else if (GameRecord.isEdit(code)) {
+                    board.put(GameRecord.editPiece(code),
+                              GameRecord.editSquare(code));
+                    board.clearUndo();
+                    out.printf("     put %s %s%n",
+                               GameRecord.editPiece(code),
+                               GameRecord.editSquare(code));
+                    search(board);
+                } else {
+                    board.undo();
+                    out.println("     undo");
+                    search(board);
+                }
+            }
+            Piece winner = archive.winner();
+            out.printf("result %s%n", winner == null ? "none"
+                       : winner.toName());
+        }
+
+        /** Set _move and _score to the best move on BOARD and its value,
+         *  or to NO_MOVE and the final value if the game is over. */
+        private void search(Board board) {
+            if (board.winner() != null) {
+                _move = Move.NO_MOVE;
+                _score = board.winner() == WHITE ? WIN_SCORE : -WIN_SCORE;
+            } else {
+                _score = 0;
+                _move = _ai.findMove(board);
+            }
+        }
+
+        @Override
+        public void iterationDone(int depth, int score, long nodes,
+                                  int[] pv, long elapsed) {
+            _score = score;
+        }
+
+        /** My searcher. */
+        private final AI _ai = new AI();
+        /** Best move found by the last search, or NO_MOVE. */
+        private int _move;
+        /** Value found by the last search, positive for white. */
+        private int _score;
+    }
+
+    /** Return SCORE limited to +-WIN_SCORE. */
+    private static int limit(int score) {
+        return Math.max(-WIN_SCORE, Math.min(WIN_SCORE, score));
+    }
+
+    /** Return SCORE as text, with winning values as +win or -win. */
+    private static String value(int score) {
+        if (Math.abs(score) >= WIN_SCORE) {
+            return score > 0 ? "+win" : "-win";
+        }
+        return String.format("%+d", score);
+    }
+
+    /** Each thread's worker. */
+    private final ThreadLocal<Worker> _workers =
+        ThreadLocal.withInitial(Worker::new);
+
+    /** Search depth, or 0 for no limit. */
+    private final int _depth;
+    /** Search time in milliseconds, or 0 for no limit. */
+    private final long _millis;
+    /** Number of threads. */
+    private final int _threads;
+    /** Directory of output files. */
+    private final Path _output;
+    /** Number of inputs skipped because already analyzed. */
+    private int _skipped;
+    /** Totals of games, moves, and blunders analyzed. */
+    private final AtomicLong _games = new AtomicLong(),
+        _moves = new AtomicLong(), _blunders = new AtomicLong();
+}
@@ -0,0 +1,173 @@
+package tablut;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/** An output stream that collects what is written to it in memory and
+ *  passes it on to another stream in batches from a background thread.
+ *  A batch is written when FLUSH_SIZE bytes have accumulated, when
+ *  FLUSH_INTERVAL milliseconds have passed since the first unwritten
+ *  byte arrived, on flush(), and on close().  Bytes reach the other
+ *  stream in the order written, and flush() returns only once everything
+ *  written before it has been passed on.  Writers block only if more
+ *  than MAX_BUFFERED bytes are waiting, in which case they write a batch
+ *  themselves.
+ *  @author Matthew J. Lee
+ */
+class AsyncOutput extends OutputStream {
+
+    /** Number of waiting bytes at which a batch is written at once. */
+    static final int FLUSH_SIZE = 1 << 13;
+    /** Maximum time in milliseconds that written bytes wait. */
+    static final long FLUSH_INTERVAL = 50;
+    /** Number of waiting bytes at which writers stop to write a batch. */
+    static final int MAX_BUFFERED = 1 << 18;
+
+    /** A stream passing what is written to it on to OUT. */
+    AsyncOutput(OutputStream out) {
+        _out = out;
+        Thread writer = new Thread(this::drain, "tablut-output");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Return a PrintStream that writes to an AsyncOutput passing its
+     *  output on to OUT, and that is flushed when the program exits. */
+    static PrintStream printStream(OutputStream out) {
+        PrintStream result = new PrintStream(new AsyncOutput(out));
+        Runtime.getRuntime().addShutdownHook(new Thread(result::flush));
+        return result;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        boolean full;
+        synchronized (this) {
+            checkOpen();
+            if (_count + len > _buffer.length) {
+                _buffer = Arrays.copyOf(_buffer,
+                                        Math.max(2 * _buffer.length,
+                                                 _count + len));
+            }
+            System.arraycopy(b, off, _buffer, _count, len);
+            boolean wasEmpty = _count == 0;
+            _count += len;
+            if (wasEmpty || _count >= FLUSH_SIZE) {
+                notifyAll();
+            }
+            full = _count >= MAX_BUFFERED;
+        }
+        if (full) {
+            writeBatch();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            checkOpen();
+        }
+        writeBatch();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            notifyAll();
+        }
+        try {
+            writeBatch();
+        } finally {
+            _out.close();
+        }
+    }
+
+    /** Throw an IOException if I am closed or an earlier batch could not
+     *  be written. */
+    private void checkOpen() throws IOException {
+        if (_closed) {
+            throw new IOException("stream closed");
+        } else if (_error != null) {
+            throw _error;
+        }
+    }
+
+    /** Pass everything written so far on to my output and flush it.
+     *  Batches are written one at a time, in the order taken. */
+    private void writeBatch() throws IOException {
+        synchronized (_writeLock) {
+            byte[] batch;
+            int size;
+            synchronized (this) {
+                batch = _buffer;
+                size = _count;
+                _buffer = _spare;
+                _spare = batch;
+                _count = 0;
+            }
+            try {
+                _out.write(batch, 0, size);
+                _out.flush();
+            } catch (IOException excp) {
+                synchronized (this) {
+                    _error = excp;
+                }
+                throw excp;
+            }
+        }
+    }
+
+    /** Body of the background thread: write a batch whenever one is
+     *  due, until closed. */
+    private void drain() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (_count == 0 && !_closed) {
+                        wait();
+                    }
+                    if (_count < FLUSH_SIZE && !_closed) {
+                        wait(FLUSH_INTERVAL);
+                    }
+                } catch (InterruptedException excp) {
+                    /* Ignore InterruptedException. */
+                }
+                if (_closed || _error != null) {
+                    return;
+                }
+            }
+            try {
+                writeBatch();
+            } catch (IOException excp) {
+                return;
+            }
+        }
+    }
+
+    /** Destination of my output. */
+    private final OutputStream _out;
+    /** Bytes written and not yet passed on are _buffer[0 .. _count-1]. */
+    private byte[] _buffer = new byte[FLUSH_SIZE];
+    /** Number of bytes waiting in _buffer. */
+    private int _count;
+    /** The buffer last passed on, reused as the next _buffer. */
+    private byte[] _spare = new byte[FLUSH_SIZE];
+    /** Held while a batch is taken and written, so that batches reach
+     *  _out in order. */
+    private final Object _writeLock = new Object();
+    /** True once I am closed. */
+    private boolean _closed;
+    /** The failure to write an earlier batch, or null. */
+    private IOException _error;
+}
@@ -1,13 +1,16 @@
 package tablut;
 
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Stack;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashSet;
+import java.util.Random;
 
 import static tablut.Piece.*;
 import static tablut.Square.*;
+import static tablut.Utils.error;
 
 /** The state of a Tablut Game.
  *  @author Matthew J. Lee
@@ -17,6 +20,11 @@ class Board {
     /** The number of squares on a side of the board. */
     static final int SIZE = 9;
 
+    /** An upper bound on the number of legal moves in any position: a line
+     *  of SIZE squares holding k pieces allows at most k * (SIZE - k) moves
+     *  along it, and there are 2 * SIZE lines. */
+    static final int MAX_MOVES = 2 * SIZE * (SIZE / 2) * (SIZE - SIZE / 2);
+
     /** The throne (or castle) square and its four surrounding squares.. */
     static final Square THRONE = sq(4, 4),
         NTHRONE = sq(4, 5),
@@ -49,46 +57,97 @@ class Board {
         copy(model);
     }
 
-    /** Copies MODEL into me. */
+    /** Copies MODEL into me, including its undo history. */
     void copy(Board model) {
         if (model == this) {
             return;
         }
-        init();
-        this.listOfPieces = model.listOfPieces;
-        this._moveCount = model._moveCount;
-        this._winner = model._winner;
-        this._turn = model._turn;
-        this._repeated = model._repeated;
+        System.arraycopy(model._contents, 0, _contents, 0, NUM_SQUARES);
+        System.arraycopy(model._rowOcc, 0, _rowOcc, 0, SIZE);
+        System.arraycopy(model._colOcc, 0, _colOcc, 0, SIZE);
+        System.arraycopy(model._packed, 0, _packed, 0, _packed.length);
+        _king = model._king;
+        _whiteCount = model._whiteCount;
+        _blackCount = model._blackCount;
+        _hash = model._hash;
+        _moveCount = model._moveCount;
+        _winner = model._winner;
+        _turn = model._turn;
+        _repeated = model._repeated;
+        _undoTop = model._undoTop;
+        _undo = Arrays.copyOf(model._undo, model._undo.length);
+        _hashes = Arrays.copyOf(model._hashes, model._hashes.length);
+    }
+
+    /** Return the number of bytes written by save(). */
+    int savedBytes() {
+        return PackedPosition.BYTES + 2 * Integer.BYTES + 2
+            + _undoTop * (Integer.BYTES + Long.BYTES);
+    }
+
+    /** Write my complete state, including my undo history, to BUF at its
+     *  current position, advancing the position past it. */
+    void save(ByteBuffer buf) {
+        packedPosition().write(buf);
+        buf.putInt(_moveCount);
+        buf.put((byte) (_winner == null ? 0 : _winner.ordinal()));
+        buf.put((byte) (_repeated ? 1 : 0));
+        buf.putInt(_undoTop);
+        buf.asIntBuffer().put(_undo, 0, _undoTop);
+        buf.position(buf.position() + _undoTop * Integer.BYTES);
+        buf.asLongBuffer().put(_hashes, 0, _undoTop);
+        buf.position(buf.position() + _undoTop * Long.BYTES);
+    }
+
+    /** Set my state to that written by save() at the current position of
+     *  BUF, advancing the position past it. */
+    void restore(ByteBuffer buf) {
+        setPosition(PackedPosition.read(buf));
+        int moveCount = buf.getInt(), winner = buf.get(),
+            repeated = buf.get(), undoTop = buf.getInt();
+        if (undoTop < 0 || undoTop > moveCount
+            || winner != 0 && winner != WHITE.ordinal()
+               && winner != BLACK.ordinal()
+            || (repeated & ~1) != 0) {
+            throw error("malformed saved board");
+        }
+        _moveCount = moveCount;
+        _winner = winner == 0 ? null : Piece.values()[winner];
+        _repeated = repeated != 0;
+        _undoTop = undoTop;
+        _undo = new int[Math.max(64, undoTop)];
+        _hashes = new long[_undo.length];
+        buf.asIntBuffer().get(_undo, 0, undoTop);
+        buf.position(buf.position() + undoTop * Integer.BYTES);
+        buf.asLongBuffer().get(_hashes, 0, undoTop);
+        buf.position(buf.position() + undoTop * Long.BYTES);
     }
 
-    /** A List of Pieces on my board. */
-    private Piece[][] listOfPieces;
-
     /** Clears the board to the initial position. */
     void init() {
-        listOfPieces = new Piece[SIZE][SIZE];
-
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                listOfPieces[i][j] = EMPTY;
-            }
-        }
+        Arrays.fill(_contents, EMPTY);
+        Arrays.fill(_rowOcc, 0);
+        Arrays.fill(_colOcc, 0);
+        Arrays.fill(_packed, 0);
+        _king = -1;
+        _whiteCount = _blackCount = 0;
+        _hash = 0;
 
         for (Square sq : INITIAL_DEFENDERS) {
-            listOfPieces[sq.col()][sq.row()] = WHITE;
+            put(WHITE, sq);
         }
 
         for (Square sq : INITIAL_ATTACKERS) {
-            listOfPieces[sq.col()][sq.row()] = BLACK;
+            put(BLACK, sq);
         }
 
-        listOfPieces[THRONE.col()][THRONE.row()] = KING;
+        put(KING, THRONE);
 
         _winner = null;
         _turn = BLACK;
         _moveCount = 0;
         _repeated = false;
+        _undoTop = 0;
     }
 
     /** Set the move limit to LIM.  It is an error if 2*LIM <= moveCount().
@@ -96,7 +155,7 @@ class Board {
      * */
     void setMoveLimit(int n) {
         if (2 * n <= moveCount()) {
-            throw new Error("2*n <= number of moves");
+            throw error("2*n <= number of moves");
         }
     }
 
@@ -116,12 +175,21 @@ class Board {
         return _repeated;
     }
 
-    /** Record current position and set winner() next mover if the current
-     *  position is a repeat. */
+    /** Make the side to move the winner if the move just made returned
+     *  to a position (including the side to move) that occurred earlier
+     *  in the undo history.  Only positions since the last capture need
+     *  be examined, since no position before a capture can recur. */
     private void checkRepeated() {
-        if (stackOfPlays.contains(listOfPieces)) {
-            _repeated = true;
-            _winner = turn().opponent();
+        long current = positionHash();
+        for (int k = _undoTop - 1; k >= 0; k -= 1) {
+            if ((_undo[k] & Move.CAPTURE_FLAG) != 0) {
+                return;
+            }
+            if (_hashes[k] == current) {
+                _repeated = true;
+                _winner = _turn;
+                return;
+            }
         }
     }
 
@@ -133,19 +201,24 @@ class Board {
 
     /** Return location of the king. */
     Square kingPosition() {
-        for (int col = 0; col < SIZE; col++) {
-            for (int row = 0; row < SIZE; row++) {
-                if (listOfPieces[col][row] == KING) {
-                    return sq(col, row);
-                }
-            }
-        }
-        return null;
+        return _king < 0 ? null : sq(_king);
+    }
+
+    /** Return the number of pieces belonging to SIDE, counting the
+     *  king as white. */
+    int pieceCount(Piece side) {
+        return side == BLACK ? _blackCount : _whiteCount;
+    }
+
+    /** Return a hash of the current position and side to move.  Equal
+     *  positions have equal hashes. */
+    long positionHash() {
+        return _turn == BLACK ? _hash ^ BLACK_TO_MOVE : _hash;
     }
 
     /** Return the contents the square at S. */
     final Piece get(Square s) {
-        return get(s.col(), s.row());
+        return _contents[s.index()];
     }
 
     /** Return the contents of the square at (COL, ROW), where
@@ -157,7 +230,7 @@ class Board {
         if (row < 0 || row > 8) {
             throw new IllegalArgumentException("Row is off the board");
         }
-        return listOfPieces[col][row];
+        return _contents[row * SIZE + col];
     }
 
     /** Return the contents of the square at COL ROW. */
@@ -167,13 +240,7 @@ class Board {
 
     /** Set square S to P. */
     final void put(Piece p, Square s) {
-        listOfPieces[s.col()][s.row()] = p;
-    }
-
-    /** Set square S to P and record for undoing. */
-    final void revPut(Piece p, Square s) {
-        stackOfPlays.add(deepcopy(listOfPieces));
-        listOfPieces[s.col()][s.row()] = p;
+        put(p, s.index());
     }
 
     /** Set square COL ROW to P. */
@@ -181,43 +248,97 @@ class Board {
         put(p, sq(col - 'a', row - '1'));
     }
 
+    /** Set the square with index SQ to P, keeping the king position,
+     *  piece counts, and hash up to date. */
+    private void put(Piece p, int sq) {
+        Piece old = _contents[sq];
+        if (old == p) {
+            return;
+        }
+        int row = sq / SIZE, col = sq % SIZE,
+            shift = 2 * (sq % PackedPosition.SQUARES_PER_WORD);
+        _packed[sq / PackedPosition.SQUARES_PER_WORD] ^=
+            (long) (old.ordinal() ^ p.ordinal()) << shift;
+        if (p == EMPTY) {
+            _rowOcc[row] &= ~(1 << col);
+            _colOcc[col] &= ~(1 << row);
+        } else {
+            _rowOcc[row] |= 1 << col;
+            _colOcc[col] |= 1 << row;
+        }
+        if (old != EMPTY) {
+            _hash ^= ZOBRIST[old.ordinal()][sq];
+            if (old == BLACK) {
+                _blackCount -= 1;
+            } else {
+                _whiteCount -= 1;
+            }
+        }
+        _contents[sq] = p;
+        if (p != EMPTY) {
+            _hash ^= ZOBRIST[p.ordinal()][sq];
+            if (p == BLACK) {
+                _blackCount += 1;
+            } else {
+                _whiteCount += 1;
+            }
+        }
+        if (p == KING) {
+            _king = sq;
+        } else if (old == KING) {
+            _king = -1;
+            for (int k = 0; k < NUM_SQUARES; k += 1) {
+                if (_contents[k] == KING) {
+                    _king = k;
+                }
+            }
+        }
+    }
+
     /** Return true iff FROM - TO is an unblocked rook move on the current
      *  board.  For this to be true, FROM-TO must be a rook move and the
      *  squares along it, other than FROM, must be empty. */
     boolean isUnblockedMove(Square from, Square to) {
         if (!from.isRookMove(to)) {
             return false;
-        } else {
-            int direction = from.direction(to);
-            if (direction == 0) {
-                for (int n = from.row() + 1; n <= to.row(); n++) {
-                    if (listOfPieces[from.col()][n] != EMPTY) {
-                        return false;
-                    }
-                }
-            }
-            if (direction == 1) {
-                for (int e = from.col() + 1; e <= to.col(); e++) {
-                    if (listOfPieces[e][from.row()] != EMPTY) {
-                        return false;
-                    }
-                }
-            }
-            if (direction == 2) {
-                for (int s = from.row() - 1; s >= to.row(); s--) {
-                    if (listOfPieces[from.col()][s] != EMPTY) {
-                        return false;
-                    }
-                }
-            } else {
-                for (int w = from.col() - 1; w >= to.col(); w--) {
-                    if (listOfPieces[w][from.row()] != EMPTY) {
-                        return false;
-                    }
-                }
-            }
         }
-        return true;
+        Square stop = blocker(from, from.direction(to));
+        return stop == null
+            || Math.abs(stop.index() - from.index())
+               > Math.abs(to.index() - from.index());
+    }
+
+    /** Return the first occupied square reached by sliding from FROM in
+     *  direction DIR (as for Square.rookMove), or null if the edge is
+     *  reached first. */
+    Square blocker(Square from, int dir) {
+        int row = from.row(), col = from.col(), k;
+        switch (dir) {
+        case 0: case 2:
+            k = Rays.blocker(row, _colOcc[col], dir == 0);
+            return k < 0 ? null : sq(col, k);
+        default:
+            k = Rays.blocker(col, _rowOcc[row], dir == 1);
+            return k < 0 ? null : sq(k, row);
+        }
+    }
+
+    /** Return the set of columns to which the piece on the square with
+     *  index FROM may move along its row, as a bit set. */
+    private int rowDestinations(int from) {
+        int row = from / SIZE, col = from % SIZE;
+        int reach = Rays.reach(col, _rowOcc[row]);
+        return _contents[from] == KING ? reach
+            : reach & Rays.rowLanding(from);
+    }
+
+    /** Return the set of rows to which the piece on the square with
+     *  index FROM may move along its column, as a bit set. */
+    private int colDestinations(int from) {
+        int row = from / SIZE, col = from % SIZE;
+        int reach = Rays.reach(row, _colOcc[col]);
+        return _contents[from] == KING ? reach
+            : reach & Rays.colLanding(from);
     }
 
     /** Return true iff FROM is a valid starting square for a move. */
@@ -239,6 +360,13 @@ class Board {
         return isLegal(move.from(), move.to());
     }
 
+    /** Return true iff packed move MOVE is a legal move in the current
+     *  position. */
+    boolean isLegal(int move) {
+        Move mv = Move.mv(move);
+        return mv != null && isLegal(mv.from()) && isLegal(mv);
+    }
+
     /** Move FROM-TO, assuming this is a legal move. */
     void makeMove(Square from, Square to) {
         if (!isLegal(from, to)) {
@@ -247,37 +375,11 @@ class Board {
         if (!isLegal(from)) {
             throw new IllegalArgumentException(("Not your move"));
         }
-        if (listOfPieces[from.col()][from.row()] != KING && to.equals(THRONE)) {
+        if (get(from) != KING && to.equals(THRONE)) {
             throw new IllegalArgumentException("King"
                     + "ONLY on the throne.");
         }
-        assert isLegal(from, to);
-        stackOfPlays.add(deepcopy(listOfPieces));
-        listOfPieces[to.col()][to.row()] = listOfPieces[from.col()][from.row()];
-        listOfPieces[from.col()][from.row()] = EMPTY;
-        Move.mv(from, to);
-        if (kingPosition() != null && kingPosition().isEdge()) {
-            _winner = WHITE;
-        }
-        _moveCount += 1;
-        _lastMove = Move.mv(from, to);
-        if (to.row() - 2 >= 0) {
-            capture(to, sq(to.col(), to.row() - 2));
-        }
-        if (to.col() - 2 >= 0) {
-            capture(to, sq(to.col() - 2, to.row()));
-        }
-        if (to.row() + 2 <= 8) {
-            capture(to, sq(to.col(), to.row() + 2));
-        }
-        if (to.col() + 2 <= 8) {
-            capture(to, sq(to.col() + 2, to.row()));
-        }
-
-
-        checkRepeated();
-        _turn = _turn.opponent();
-        hasMove(_turn);
+        makeMove(Move.pack(from.index(), to.index()));
     }
 
     /** Move according to MOVE, assuming it is a legal move. */
@@ -286,142 +388,298 @@ class Board {
         makeMove(move.from(), move.to());
     }
 
-    /** Capture the piece between SQ0 and SQ2, assuming a piece just moved to
-     *  SQ0 and the necessary conditions are satisfied. */
-    private void capture(Square sq0, Square sq2) {
-        Square btw = sq0.between(sq2);
-        if (kingPosition() == null) {
-            return;
+    /** Make packed move MOVE, assuming it is legal.  The move, what it
+     *  captured, and the previous win status are recorded for undo(). */
+    void makeMove(int move) {
+        FlightEvents.BoardMove event = sampleMove();
+        int from = Move.from(move), to = Move.to(move);
+        assert isLegal(move);
+        if (_undoTop == _undo.length) {
+            _undo = Arrays.copyOf(_undo, 2 * _undoTop);
+            _hashes = Arrays.copyOf(_hashes, 2 * _undoTop);
+        }
+        int record = Move.unflagged(move);
+        if (_winner != null) {
+            record |= (_winner.ordinal() << WINNER_SHIFT);
+        }
+        if (_repeated) {
+            record |= REPEATED_FLAG;
+        }
+        _hashes[_undoTop] = positionHash();
+
+        Piece mover = _contents[from];
+        put(EMPTY, from);
+        put(mover, to);
+        if (mover == KING) {
+            record |= Move.KING_FLAG;
+        }
+        if (_king >= 0 && sq(_king).isEdge()) {
+            _winner = WHITE;
+        }
+        _moveCount += 1;
+        int captures = captureSet(to);
+        if (captures != 0) {
+            removeCaptured(to, captures);
+            record |= Move.CAPTURE_FLAG | (captures << CAPTURE_SHIFT);
+        }
+        _undo[_undoTop] = record;
+        _undoTop += 1;
+
+        _turn = _turn.opponent();
+        if (_winner == null) {
+            checkRepeated();
+        }
+        if (_winner == null) {
+            hasMove(_turn);
         }
-        int c = kingPosition().col();
-        int r = kingPosition().row();
-        Piece older  = listOfPieces[sq0.col()][sq0.row()];
-        Piece newer = listOfPieces[sq2.col()][sq2.row()];
-        if (_lastMove.to() == sq0) {
-            if (newer == KING
-                    && listOfPieces[btw.col()][btw.row()] == WHITE) {
-                captureHelper(btw);
-            } else if (newer == BLACK
-                    && listOfPieces[btw.col()][btw.row()] == KING) {
-                if (kingPosition() == THRONE) {
-                    if (listOfPieces[c + 1][r] == BLACK
-                            && listOfPieces[c - 1][r]
-                            == BLACK && listOfPieces[c][r + 1] == BLACK
-                            && listOfPieces[c][r - 1] == BLACK) {
-                        listOfPieces[c][r] = EMPTY;
-                        _winner = BLACK;
-                    }
+        if (event != null) {
+            event.move = Move.mv(move).toString();
+            event.moveCount = _moveCount;
+            event.commit();
+        }
+    }
+
+    /** Return the capture set (as described for _undo) of the pieces
+     *  captured by the piece that has just moved to the square with index
+     *  TO.  Does not modify the board. */
+    private int captureSet(int to) {
+        Piece victimSide = _contents[to].side().opponent();
+        int[] neighbors = NEIGHBOR[to], partners = PARTNER[to];
+        int captures = 0;
+        for (int dir = 0; dir < 4; dir += 1) {
+            int k = neighbors[dir];
+            if (k < 0 || _contents[k].side() != victimSide) {
+                continue;
+            }
+            if (_contents[k] == KING && KING_GUARDED[k]) {
+                if (surrounded(k)) {
+                    captures |= (1 << dir) | KING_CAPTURED
+                        | (dir << KING_DIR_SHIFT);
                 }
-                if (kingPosition() != null) {
-                    if (kingPosition() == NTHRONE || kingPosition() == STHRONE
-                            || kingPosition() == WTHRONE
-                            || kingPosition() == ETHRONE) {
-                        int numBlack = 0;
-                        if (listOfPieces[c + 1][r] == BLACK) {
-                            numBlack += 1;
-                        } else if (listOfPieces[c - 1][r] == BLACK) {
-                            numBlack += 1;
-                        } else if (listOfPieces[c][r + 1] == BLACK) {
-                            numBlack += 1;
-                        } else if (listOfPieces[c][r - 1] == BLACK) {
-                            numBlack += 1;
-                        } else if (numBlack == 3) {
-                            listOfPieces[btw.col()][btw.row()] = EMPTY;
-                            _winner = BLACK;
-                        }
-                    }
+            } else if (partners[dir] >= 0
+                       && hostile(partners[dir], victimSide)) {
+                captures |= 1 << dir;
+                if (_contents[k] == KING) {
+                    captures |= KING_CAPTURED | (dir << KING_DIR_SHIFT);
                 }
             }
-            if (older == newer || newer == EMPTY && sq2 == THRONE
-                    || older == WHITE && newer == KING
-                    || newer == WHITE && older == KING) {
-                if (_turn != listOfPieces[btw.col()][btw.row()]
-                        && listOfPieces[btw.col()][btw.row()] != KING) {
-                    listOfPieces[btw.col()][btw.row()] = EMPTY;
-                } else if (listOfPieces[btw.col()][btw.row()] == KING
-                        && kingPosition() != THRONE && kingPosition() != NTHRONE
-                        && kingPosition() != ETHRONE && kingPosition()
-                        != WTHRONE && kingPosition() != STHRONE) {
-                    listOfPieces[btw.col()][btw.row()] = EMPTY;
-                    _winner = BLACK;
-                }
+        }
+        return captures;
+    }
+
+    /** Return true iff the square with index K is hostile to pieces on
+     *  SIDE. */
+    private boolean hostile(int k, Piece side) {
+        int cell = _contents[k].ordinal() | THRONE_CELL[k];
+        if (cell == KING_ON_THRONE && side == WHITE) {
+            return blackAround(k) >= 3;
+        }
+        return HOSTILE[side.ordinal()][cell];
+    }
+
+    /** Return the number of black pieces adjacent to the square with index
+     *  K. */
+    private int blackAround(int k) {
+        int n = 0;
+        for (int s : NEIGHBOR[k]) {
+            if (s >= 0 && _contents[s] == BLACK) {
+                n += 1;
             }
         }
+        return n;
     }
 
-    /** A helper method for capture.
-     * @param btwn The Square between.*/
-    private void captureHelper(Square btwn) {
-        if (kingPosition() == THRONE) {
-            int counter = 0;
-            for (int z = 0; z <= 3; z++) {
-                if (listOfPieces[INITIAL_DEFENDERS[z].col()]
-                        [INITIAL_DEFENDERS[z].row()] == BLACK) {
-                    counter += 1;
-                }
+    /** Return true iff the king on the square with index K, which is on or
+     *  next to the throne, is hostile on all four sides. */
+    private boolean surrounded(int k) {
+        for (int s : NEIGHBOR[k]) {
+            if (!hostile(s, WHITE)) {
+                return false;
             }
-            if (counter == 3) {
-                listOfPieces[btwn.col()][btwn.row()] = EMPTY;
+        }
+        return true;
+    }
+
+    /** Remove the pieces in capture set CAPTURES around the square with
+     *  index TO, making black the winner if the king is among them. */
+    private void removeCaptured(int to, int captures) {
+        for (int dir = 0; dir < 4; dir += 1) {
+            if ((captures & (1 << dir)) != 0) {
+                put(EMPTY, NEIGHBOR[to][dir]);
             }
         }
+        if ((captures & KING_CAPTURED) != 0) {
+            _winner = BLACK;
+        }
     }
 
     /** Undo one move.  Has no effect on the initial board. */
 
     void undo() {
-        if (_moveCount > 0) {
+        if (_undoTop > 0) {
+            FlightEvents.BoardMove event = sampleMove();
             undoPosition();
             _moveCount -= 1;
-            _turn = _turn.opponent();
+            if (event != null) {
+                event.move = Move.mv(_undo[_undoTop]).toString();
+                event.undo = true;
+                event.moveCount = _moveCount;
+                event.commit();
+            }
         } else {
             throw new IllegalArgumentException("You are "
                      + "at the beginning of the game!");
         }
     }
 
-    /** Remove record of current position in the set of positions encountered,
-     *  unless it is a repeated position or we are at the first move. */
+    /** Return a started FlightEvents.BoardMove if the current move or undo
+     *  is one of those sampled and the event is being recorded, and null
+     *  otherwise. */
+    private FlightEvents.BoardMove sampleMove() {
+        _sampleTick += 1;
+        if ((_sampleTick & FlightEvents.MOVE_SAMPLE_MASK) != 0) {
+            return null;
+        }
+        FlightEvents.BoardMove event = new FlightEvents.BoardMove();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /** Pop the last entry of the undo history, restoring the pieces it
+     *  moved and captured, the side to move, and the previous win
+     *  status. */
     private void undoPosition() {
-        if (!_repeated && _moveCount > 0) {
-            listOfPieces = stackOfPlays.pop();
-        } else {
-            throw new IllegalArgumentException(("This can't be done."));
+        _undoTop -= 1;
+        int record = _undo[_undoTop];
+        int from = Move.from(record), to = Move.to(record);
+        Piece mover = _contents[to];
+        _turn = mover.side();
+        put(EMPTY, to);
+        put(mover, from);
+        if ((record & Move.CAPTURE_FLAG) != 0) {
+            int captures = record >>> CAPTURE_SHIFT;
+            Piece victim = _turn.opponent();
+            for (int dir = 0; dir < 4; dir += 1) {
+                if ((captures & (1 << dir)) != 0) {
+                    put(victim, NEIGHBOR[to][dir]);
+                }
+            }
+            if ((captures & KING_CAPTURED) != 0) {
+                put(KING, NEIGHBOR[to][(captures >> KING_DIR_SHIFT) & 3]);
+            }
         }
-        _repeated = false;
+        int winner = (record >> WINNER_SHIFT) & 3;
+        _winner = winner == 0 ? null : Piece.values()[winner];
+        _repeated = (record & REPEATED_FLAG) != 0;
+    }
+
+    /** Return the last move made and not undone, as a packed move, or
+     *  NO_MOVE if there is none. */
+    int lastMove() {
+        return _undoTop == 0 ? Move.NO_MOVE
+            : _undo[_undoTop - 1] & Move.MOVE_MASK;
+    }
+
+    /** Store the indices of the squares from which the last move made
+     *  (and not undone) captured pieces in SQUARES, and the pieces
+     *  captured in the corresponding elements of PIECES, and return the
+     *  number of captures.  SQUARES and PIECES must have room for four
+     *  entries. */
+    int lastCaptures(int[] squares, Piece[] pieces) {
+        if (_undoTop == 0) {
+            return 0;
+        }
+        int record = _undo[_undoTop - 1];
+        if ((record & Move.CAPTURE_FLAG) == 0) {
+            return 0;
+        }
+        int to = Move.to(record), captures = record >>> CAPTURE_SHIFT;
+        int kingDir = (captures & KING_CAPTURED) != 0
+            ? (captures >> KING_DIR_SHIFT) & 3 : -1;
+        Piece victim = _contents[to].side().opponent();
+        int n = 0;
+        for (int dir = 0; dir < 4; dir += 1) {
+            if ((captures & (1 << dir)) != 0) {
+                squares[n] = NEIGHBOR[to][dir];
+                pieces[n] = dir == kingDir ? KING : victim;
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /** Return the number of moves that undo() can undo. */
+    int undoCount() {
+        return _undoTop;
     }
 
     /** Clear the undo stack and board-position counts. Does not modify the
      *  current position or win status. */
     void clearUndo() {
-        stackOfPlays.clear();
+        _undoTop = 0;
     }
 
     /** Return a new mutable list of all legal moves on the current board for
      *  SIDE (ignoring whose turn it is at the moment). */
     List<Move> legalMoves(Piece side) {
-        List<Move> sideOfLegalMoves = new ArrayList<Move>();
-        for (Square squareFrom : pieceLocations(side)) {
-            int direction = 0;
-            while (direction < 4) {
-                for (Square squareTo
-                        :Square.ROOK_SQUARES[squareFrom.index()][direction]) {
-                    if (isLegal(squareFrom, squareTo)) {
-                        sideOfLegalMoves.add(Move.mv(squareFrom, squareTo));
-                    }
+        int[] moves = new int[MAX_MOVES];
+        int n = legalMoves(side, moves);
+        List<Move> sideOfLegalMoves = new ArrayList<Move>(n);
+        for (int i = 0; i < n; i += 1) {
+            sideOfLegalMoves.add(Move.mv(moves[i]));
+        }
+        return sideOfLegalMoves;
+    }
+
+    /** Store all legal moves on the current board for SIDE (ignoring whose
+     *  turn it is at the moment) as packed moves at the beginning of
+     *  MOVES, which must have room for MAX_MOVES values, and return their
+     *  number.  Moves of the king carry Move.KING_FLAG. */
+    int legalMoves(Piece side, int[] moves) {
+        int n = 0;
+        for (int row = 0; row < SIZE; row += 1) {
+            for (int occ = _rowOcc[row]; occ != 0; occ &= occ - 1) {
+                int col = Integer.numberOfTrailingZeros(occ),
+                    from = row * SIZE + col;
+                Piece p = _contents[from];
+                if (p.side() != side) {
+                    continue;
+                }
+                int flag = p == KING ? Move.KING_FLAG : 0;
+                for (int dests = rowDestinations(from); dests != 0;
+                     dests &= dests - 1) {
+                    int to = row * SIZE + Integer.numberOfTrailingZeros(dests);
+                    moves[n] = Move.pack(from, to) | flag;
+                    n += 1;
+                }
+                for (int dests = colDestinations(from); dests != 0;
+                     dests &= dests - 1) {
+                    int to = Integer.numberOfTrailingZeros(dests) * SIZE + col;
+                    moves[n] = Move.pack(from, to) | flag;
+                    n += 1;
                 }
-                direction++;
             }
         }
-        return sideOfLegalMoves;
+        return n;
     }
 
-    /** Return true iff SIDE has a legal move. */
+    /** Return true iff SIDE has a legal move, setting the winner to
+     *  SIDE's opponent if not. */
     boolean hasMove(Piece side) {
-        if (legalMoves(side).isEmpty()) {
-            _winner = side.opponent();
-            return false;
+        for (int row = 0; row < SIZE; row += 1) {
+            for (int occ = _rowOcc[row]; occ != 0; occ &= occ - 1) {
+                int from = row * SIZE + Integer.numberOfTrailingZeros(occ);
+                if (_contents[from].side() == side
+                    && (rowDestinations(from) | colDestinations(from)) != 0) {
+                    return true;
+                }
+            }
         }
-        return true;
+        _winner = side.opponent();
+        return false;
     }
 
     @Override
@@ -455,39 +713,13 @@ class Board {
         return out.toString();
     }
 
-    /** Creates copies of the list of pieces.
-     * @param pieceList an input of a double array.
-     * @return piece */
-    private Piece [][] deepcopy(Piece[][] pieceList) {
-        Piece[][] piececopy = new Piece[SIZE][SIZE];
-        for (int col = 0; col < SIZE; col++) {
-            for (int row = 0; row < SIZE; row++) {
-                if (pieceList[col][row] == BLACK) {
-                    piececopy[col][row] = BLACK;
-                } else if (pieceList[col][row] == WHITE) {
-                    piececopy[col][row] = WHITE;
-                } else if (pieceList[col][row] == EMPTY) {
-                    piececopy[col][row] = EMPTY;
-                } else if (pieceList[col][row] == KING) {
-                    piececopy[col][row] = KING;
-                }
-            }
-        }
-        return piececopy;
-    }
-
     /** Return the locations of all pieces on SIDE. */
     public HashSet<Square> pieceLocations(Piece side) {
         assert side != EMPTY;
         HashSet<Square> pieceLocats = new HashSet<>();
-        for (int col = 0; col < 9; col++) {
-            for (int row = 0; row < 9; row++) {
-                if (listOfPieces[col][row] == side) {
-                    pieceLocats.add(sq(col, row));
-                }
-                if (side == WHITE && listOfPieces[col][row] == KING) {
-                    pieceLocats.add(sq(col, row));
-                }
+        for (int k = 0; k < NUM_SQUARES; k += 1) {
+            if (_contents[k] != EMPTY && _contents[k].side() == side) {
+                pieceLocats.add(sq(k));
             }
         }
         return pieceLocats;
@@ -496,14 +728,138 @@ class Board {
     /** Return the contents of _board in the order of SQUARE_LIST as a sequence
      *  of characters: the toString values of the current turn and Pieces. */
     String encodedBoard() {
-        char[] result = new char[Square.SQUARE_LIST.size() + 1];
-        result[0] = turn().toString().charAt(0);
-        for (Square sq : SQUARE_LIST) {
-            result[sq.index() + 1] = get(sq).toString().charAt(0);
+        return packedPosition().toString();
+    }
+
+    /** Return the current position in packed form. */
+    PackedPosition packedPosition() {
+        return PackedPosition.of(this);
+    }
+
+    /** Store the encoding of the current position, as described in
+     *  PackedPosition, into WORDS, which must have length
+     *  PackedPosition.WORDS. */
+    void packInto(long[] words) {
+        System.arraycopy(_packed, 0, words, 0, PackedPosition.WORDS);
+        if (_turn == BLACK) {
+            words[PackedPosition.WORDS - 1] |= PackedPosition.BLACK_TO_MOVE;
         }
-        return new String(result);
     }
 
+    /** Set the board to POSN, with no moves made and no undo history.
+     *  The winner is recomputed from the new position. */
+    void setPosition(PackedPosition posn) {
+        for (int k = 0; k < NUM_SQUARES; k += 1) {
+            put(posn.get(k), k);
+        }
+        _turn = posn.turn();
+        _moveCount = 0;
+        _undoTop = 0;
+        _repeated = false;
+        _winner = null;
+        if (_king < 0) {
+            _winner = BLACK;
+        } else if (sq(_king).isEdge()) {
+            _winner = WHITE;
+        } else {
+            hasMove(_turn);
+        }
+    }
+
+    /* Each entry of _undo is the packed move made, with its flags,
+     * together with the set of pieces it captured and the win status
+     * before it was made.  The capture set occupies bits CAPTURE_SHIFT and
+     * up: bit d is set if the piece one square in direction d (as for
+     * Square.rookMove) from the move's destination was captured, and
+     * KING_CAPTURED, with the direction in the two bits at KING_DIR_SHIFT,
+     * marks which of those was the king. */
+
+    /** Position of the previous winner's ordinal (0 for none) in an undo
+     *  record. */
+    private static final int WINNER_SHIFT = 16;
+    /** Flag in an undo record marking a previously repeated position. */
+    private static final int REPEATED_FLAG = 1 << 18;
+    /** Position of the capture set in an undo record. */
+    private static final int CAPTURE_SHIFT = 19;
+    /** Flag in a capture set marking a captured king. */
+    private static final int KING_CAPTURED = 1 << 4;
+    /** Position of the captured king's direction in a capture set. */
+    private static final int KING_DIR_SHIFT = 5;
+
+    /** NEIGHBOR[k][d] is the index of the square adjacent to the square
+     *  with index k in direction d (as for Square.rookMove), or -1 if
+     *  there is none, and PARTNER[k][d] is the index of the square two
+     *  steps away in that direction, or -1. */
+    private static final int[][]
+        NEIGHBOR = new int[NUM_SQUARES][4],
+        PARTNER = new int[NUM_SQUARES][4];
+    /** KING_GUARDED[k] is true iff the king on the square with index k
+     *  is captured only when hostile squares surround it on all sides. */
+    private static final boolean[] KING_GUARDED = new boolean[NUM_SQUARES];
+    /** The cell code of a square is the ordinal of its contents, plus
+     *  THRONE_CELL[k] (4 for the throne and 0 elsewhere) for the square
+     *  with index k.  */
+    private static final int[] THRONE_CELL = new int[NUM_SQUARES];
+    /** The cell code of the throne occupied by the king. */
+    private static final int KING_ON_THRONE = 4 + KING.ordinal();
+    /** HOSTILE[s][c] is true iff a square with cell code c is hostile to
+     *  pieces of the side with ordinal s, apart from the throne occupied
+     *  by the king, which is hostile to white only when three black
+     *  pieces surround it. */
+    private static final boolean[][] HOSTILE = new boolean[4][8];
+
+    static {
+        for (Square sq0 : SQUARE_LIST) {
+            int k = sq0.index();
+            for (int d = 0; d < 4; d += 1) {
+                Square s1 = sq0.rookMove(d, 1), s2 = sq0.rookMove(d, 2);
+                NEIGHBOR[k][d] = s1 == null ? -1 : s1.index();
+                PARTNER[k][d] = s2 == null ? -1 : s2.index();
+            }
+            KING_GUARDED[k] = sq0 == THRONE || sq0.adjacent(THRONE);
+        }
+        THRONE_CELL[THRONE.index()] = 4;
+        for (Piece side : new Piece[] { WHITE, BLACK }) {
+            for (Piece p : Piece.values()) {
+                HOSTILE[side.ordinal()][p.ordinal()] =
+                    p != EMPTY && p.side() == side.opponent();
+                HOSTILE[side.ordinal()][4 + p.ordinal()] =
+                    p == EMPTY || p.side() == side.opponent();
+            }
+        }
+    }
+
+    /** ZOBRIST[p][k] is the random value hashed into positions in which
+     *  the square with index k contains the piece with ordinal p. */
+    private static final long[][] ZOBRIST =
+        new long[Piece.values().length][NUM_SQUARES];
+    /** Value hashed into positions with black to move. */
+    private static final long BLACK_TO_MOVE;
+
+    static {
+        Random keys = new Random(0x7AB1A7L);
+        for (long[] row : ZOBRIST) {
+            for (int k = 0; k < NUM_SQUARES; k += 1) {
+                row[k] = keys.nextLong();
+            }
+        }
+        BLACK_TO_MOVE = keys.nextLong();
+    }
+
+    /** Contents of the board, indexed by Square.index(). */
+    private final Piece[] _contents = new Piece[NUM_SQUARES];
+    /** _rowOcc[r] is the occupancy (as defined in Rays) of row r, and
+     *  _colOcc[c] that of column c. */
+    private final int[] _rowOcc = new int[SIZE], _colOcc = new int[SIZE];
+    /** The contents of the board, encoded as for PackedPosition but
+     *  without the side to move. */
+    private final long[] _packed = new long[PackedPosition.WORDS];
+    /** Index of the square holding the king, or -1 if none. */
+    private int _king;
+    /** Numbers of white (including the king) and black pieces. */
+    private int _whiteCount, _blackCount;
+    /** Hash of the pieces on the board, not including the side to move. */
+    private long _hash;
     /** Piece whose turn it is (WHITE or BLACK). */
     private Piece _turn;
     /** Cached value of winner on this board, or EMPTY if it has not been
@@ -514,9 +870,14 @@ class Board {
     /** True when current board is a repeated position (ending the game). */
     private boolean _repeated;
 
-    /** Stack of iterations of the board game play. */
-    private Stack<Piece[][]> stackOfPlays = new Stack<>();
-    /** Store the previous move. */
-    private Move _lastMove;
+    /** Undo records for the moves made, the last at _undoTop - 1. */
+    private int[] _undo = new int[64];
+    /** _hashes[k] is the positionHash() before the move in _undo[k]. */
+    private long[] _hashes = new long[64];
+    /** Number of moves that may be undone. */
+    private int _undoTop;
+    /** Count of moves and undos, used to sample them for flight
+     *  recording. */
+    private int _sampleTick;
 
 }
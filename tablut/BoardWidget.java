@@ -7,13 +7,23 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JComponent;
 
 import static tablut.Piece.*;
 import static tablut.Square.sq;
 import static tablut.Move.mv;
 
-/** A widget that displays a Tablut game.
+/** A widget that displays a Tablut game.  The empty board is drawn once
+ *  into a background image, and the displayed position into a frame
+ *  image built on it.  Each update compares the new position with the
+ *  one last rendered, redraws only the squares that differ (the from and
+ *  to squares of a move and any captures) into the frame, and asks Swing
+ *  to repaint just their bounding rectangle; painting copies the frame.
  *  @author Matthew J. Lee
  */
 class BoardWidget extends Pad {
@@ -43,6 +53,9 @@ class BoardWidget extends Pad {
         SQUARE_SIDE = 30,
         BOARD_SIDE = SQUARE_SIDE * SIZE + 2 * OFFSET + MARGIN;
 
+    /** Space between a piece and the edges of its square. */
+    static final int PIECE_INSET = 3;
+
     /** The font in which to render the "K" in the king. */
     static final Font KING_FONT = new Font("Serif", Font.BOLD, 18);
     /** The font for labeling rows and columns. */
@@ -62,69 +75,117 @@ class BoardWidget extends Pad {
         _acceptingMoves = false;
     }
 
-    /** Draw the bare board G.  */
+    /** Draw the bare board on G.  */
     private void drawGrid(Graphics2D g) {
         g.setColor(SQUARE_COLOR);
         g.fillRect(0, 0, BOARD_SIDE, BOARD_SIDE);
         g.setColor(THRONE_COLOR);
         g.fillRect(cx(Board.THRONE), cy(Board.THRONE),
                    SQUARE_SIDE, SQUARE_SIDE);
-        int xC;
-        int yC;
-        for (int row = 0; row <= Board.SIZE - 1; row++) {
-            yC = row * SQUARE_SIDE;
-            for (int col = 0; col <= Board.SIZE - 1; col++) {
-                xC = col * SQUARE_SIDE;
-                g.fillRect(xC, yC, SQUARE_SIDE, SQUARE_SIDE);
-            }
+        g.setColor(ADJACENT_THRONE_COLOR);
+        for (Square s : ADJACENT_THRONE) {
+            g.fillRect(cx(s), cy(s), SQUARE_SIDE, SQUARE_SIDE);
         }
         g.setColor(GRID_LINE_COLOR);
         for (int k = 0; k <= SIZE; k += 1) {
             g.drawLine(cx(0), cy(k - 1), cx(SIZE), cy(k - 1));
             g.drawLine(cx(k), cy(-1), cx(k), cy(SIZE - 1));
         }
+        g.setFont(ROW_COL_FONT);
+        for (int k = 0; k < SIZE; k += 1) {
+            g.drawString(Integer.toString(k + 1), OFFSET,
+                         cy(k) + SQUARE_SIDE / 2 + 4);
+            g.drawString(Character.toString((char) ('a' + k)),
+                         cx(k) + SQUARE_SIDE / 2 - 3,
+                         cy(-1) + MARGIN - 4);
+        }
     }
 
     @Override
     public synchronized void paintComponent(Graphics2D g) {
-        drawGrid(g);
-        Square.SQUARE_LIST.iterator().forEachRemaining(s -> drawPiece(g, s));
+        if (_frame == null) {
+            render();
+        }
+        g.drawImage(_frame, 0, 0, null);
     }
 
-    /** Draw the contents of S on G. */
+    /** Draw the contents of S on G, which already shows the empty
+     *  square. */
     private void drawPiece(Graphics2D g, Square s) {
+        Piece piece = _board.get(s);
+        if (piece == EMPTY) {
+            return;
+        }
+        int x = cx(s) + PIECE_INSET, y = cy(s) + PIECE_INSET;
+        int side = SQUARE_SIDE - 2 * PIECE_INSET;
+        g.setColor(piece == BLACK ? BLACK_COLOR : WHITE_COLOR);
+        g.fillOval(x, y, side, side);
+        g.setColor(piece == BLACK ? WHITE_COLOR : BLACK_COLOR);
+        g.drawOval(x, y, side, side);
+        if (piece == KING) {
+            g.setFont(KING_FONT);
+            g.drawString("K", x + side / 2 - 6, y + side / 2 + 6);
+        }
     }
 
-    /** Current command. */
-    private String command = "";
-
-    /** Total number of commands. */
-    private int numCommands = 1;
-
-    /** Number of commands counter. */
-    private int numCounter = 0;
-
-    /** Handle a click on S. */
-    private void click(Square s) {
-        command += s.toString();
-        System.out.println(command);
-        numCounter++;
-        if (numCounter == 1)  {
-            command += "-";
+    /** Create the background and frame images and draw every square of
+     *  the current board into the frame. */
+    private void render() {
+        _background = new BufferedImage(BOARD_SIDE, BOARD_SIDE,
+                                        BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = _background.createGraphics();
+        drawGrid(g);
+        g.dispose();
+        _frame = new BufferedImage(BOARD_SIDE, BOARD_SIDE,
+                                   BufferedImage.TYPE_INT_RGB);
+        g = _frame.createGraphics();
+        g.drawImage(_background, 0, 0, null);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                           RenderingHints.VALUE_ANTIALIAS_ON);
+        for (Square s : Square.SQUARE_LIST) {
+            drawPiece(g, s);
+            _shown[s.index()] = _board.get(s);
         }
-        if (numCounter == 2) {
-            command += "(";
+        g.dispose();
+    }
+
+    /** Redraw into the frame each square whose contents differ from those
+     *  last rendered, and return the smallest rectangle containing them,
+     *  or null if there are none. */
+    private Rectangle renderChanges() {
+        Rectangle dirty = null;
+        Graphics2D g = _frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                           RenderingHints.VALUE_ANTIALIAS_ON);
+        for (Square s : Square.SQUARE_LIST) {
+            Piece piece = _board.get(s);
+            if (piece == _shown[s.index()]) {
+                continue;
+            }
+            _shown[s.index()] = piece;
+            int x = cx(s), y = cy(s);
+            g.drawImage(_background, x, y, x + SQUARE_SIDE, y + SQUARE_SIDE,
+                        x, y, x + SQUARE_SIDE, y + SQUARE_SIDE, null);
+            drawPiece(g, s);
+            Rectangle square =
+                new Rectangle(x, y, SQUARE_SIDE + 1, SQUARE_SIDE + 1);
+            dirty = dirty == null ? square : dirty.union(square);
         }
-        if (numCounter == 3) {
-            command += ")";
-            Board newBoard = new Board();
-            newBoard.makeMove(mv(command));
-            _commands.add(command);
-            update(newBoard);
-            command = "";
-            numCounter = 0;
+        g.dispose();
+        return dirty;
+    }
+
+    /** Handle a click on S.  The first click of a move selects its
+     *  from square, and the second posts the move from there to S, or
+     *  selects S instead if that is not a move. */
+    void click(Square s) {
+        Move move = _selected == null ? null : mv(_selected, s);
+        if (move == null) {
+            _selected = s;
+        } else {
+            _commands.offer(move.toString());
+            _selected = null;
         }
-        repaint();
     }
 
     /** Handle mouse click event E. */
@@ -138,18 +199,31 @@ class BoardWidget extends Pad {
         }
     }
 
-    /** Revise the displayed board according to BOARD. */
+    /** Revise the displayed board according to BOARD, repainting only
+     *  the squares that have changed. */
     synchronized void update(Board board) {
         _board.copy(board);
-        repaint();
+        if (_frame == null) {
+            repaint();
+            return;
+        }
+        Rectangle dirty = renderChanges();
+        JComponent me = getMe();
+        if (dirty == null) {
+            return;
+        } else if (me == null) {
+            repaint();
+        } else {
+            me.repaint(dirty);
+        }
     }
 
     /** Turn on move collection iff COLLECTING, and clear any current
      *  partial selection.  When move collection is off, ignore clicks on
      *  the board. */
-    void setMoveCollection(boolean collecting) {
+    synchronized void setMoveCollection(boolean collecting) {
         _acceptingMoves = collecting;
-        repaint();
+        _selected = null;
     }
 
     /** Return x-pixel coordinate of the left corners of column X
@@ -183,5 +257,14 @@ class BoardWidget extends Pad {
 
     /** True iff accepting moves from user. */
     private boolean _acceptingMoves;
+    /** The from square selected for the next move, or null. */
+    private Square _selected;
+
+    /** The empty board, or null if not yet drawn. */
+    private BufferedImage _background;
+    /** The board as displayed, or null if not yet drawn. */
+    private BufferedImage _frame;
+    /** Contents of each square (by index) as drawn in _frame. */
+    private final Piece[] _shown = new Piece[Square.NUM_SQUARES];
 
 }
@@ -0,0 +1,227 @@
+package tablut;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static tablut.Piece.*;
+import static tablut.Utils.error;
+
+/** The saved state of a game: its board with the full undo history,
+ *  the moves available to redo, and optionally the transposition table
+ *  of the AI playing each side.  A checkpoint file is a header,
+ *
+ *      MAGIC, length of the rest of the header (4-byte ints),
+ *      the board, as written by Board.save,
+ *      number of moves to redo (4 bytes), and those moves (4 bytes each),
+ *      number of tables (4 bytes), and for each
+ *          side (1 byte: Piece ordinal), generation (4 bytes),
+ *          number of segments (4 bytes),
+ *          offset in the file and length of each segment (8 bytes each),
+ *
+ *  followed by the segments of each table, one after another from a
+ *  page-aligned offset, as given by TranspositionTable.segments.
+ *  Tables are written directly from their buffers and read back by
+ *  mapping the file privately, so that restoring even a large table
+ *  costs little more than the paging in of the entries a search
+ *  touches.
+ *  @author Matthew J. Lee
+ */
+class Checkpoint {
+
+    /** Initial int of a checkpoint file: "TBC2". */
+    static final int MAGIC = 0x54424332;
+
+    /** Alignment of tables in the file. */
+    static final int TABLE_ALIGNMENT = 4096;
+
+    /** A checkpoint of BOARD, with moves to redo REDO and no tables. */
+    Checkpoint(Board board, MoveStack redo) {
+        _board.copy(board);
+        _redo.copy(redo);
+    }
+
+    /** Return my board. */
+    Board board() {
+        return _board;
+    }
+
+    /** Return my moves to redo. */
+    MoveStack redo() {
+        return _redo;
+    }
+
+    /** Return the table of the AI playing SIDE, or null if none. */
+    TranspositionTable table(Piece side) {
+        return _tables[side.ordinal()];
+    }
+
+    /** Include TABLE as the table of the AI playing SIDE. */
+    void setTable(Piece side, TranspositionTable table) {
+        _tables[side.ordinal()] = table;
+    }
+
+    /** Write me to FILE, replacing it only once I am complete. */
+    void write(Path file) throws IOException {
+        int tables = 0;
+        for (TranspositionTable table : _tables) {
+            tables += table == null ? 0 : 1;
+        }
+        ByteBuffer header =
+            ByteBuffer.allocate(3 * Integer.BYTES + _board.savedBytes()
+                                + Integer.BYTES * (_redo.size() + 1)
+                                + tables * TABLE_BYTES);
+        header.putInt(MAGIC).putInt(header.capacity() - 2 * Integer.BYTES);
+        _board.save(header);
+        header.putInt(_redo.size());
+        for (int k = 0; k < _redo.size(); k += 1) {
+            header.putInt(_redo.get(k));
+        }
+        header.putInt(tables);
+        long offset = align(header.capacity());
+        for (Piece side : SIDES) {
+            TranspositionTable table = table(side);
+            if (table != null) {
+                ByteBuffer[] segments = table.segments();
+                long length = segments[0].remaining();
+                header.put((byte) side.ordinal()).putInt(table.generation())
+                    .putInt(segments.length).putLong(offset)
+                    .putLong(length);
+                offset = align(offset + segments.length * length);
+            }
+        }
+        header.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out =
+             FileChannel.open(temp, StandardOpenOption.CREATE,
+                              StandardOpenOption.TRUNCATE_EXISTING,
+                              StandardOpenOption.WRITE)) {
+            offset = writeFully(out, header, 0);
+            for (Piece side : SIDES) {
+                if (table(side) != null) {
+                    offset = align(offset);
+                    for (ByteBuffer segment : table(side).segments()) {
+                        offset = writeFully(out, segment, offset);
+                    }
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Return the checkpoint in FILE.  Its tables are private mappings
+     *  of the file: changes to them are not written back, although
+     *  mapping them so requires that FILE be writable.  The moves to
+     *  redo must be legal in turn from the saved board. */
+    static Checkpoint read(Path file) throws IOException {
+        try (FileChannel in =
+             FileChannel.open(file, StandardOpenOption.READ,
+                              StandardOpenOption.WRITE)) {
+            ByteBuffer start = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(in, start, 0);
+            if (start.getInt(0) != MAGIC) {
+                throw error("%s is not a saved game", file);
+            }
+            int size = start.getInt(Integer.BYTES);
+            if (size < 0 || size > in.size()) {
+                throw error("%s is damaged", file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(size);
+            readFully(in, header, start.capacity());
+            header.flip();
+            try {
+                Checkpoint result =
+                    new Checkpoint(new Board(), new MoveStack());
+                result._board.restore(header);
+                for (int n = header.getInt(); n > 0; n -= 1) {
+                    result._redo.push(header.getInt());
+                }
+                Board board = new Board(result._board);
+                for (int k = result._redo.size() - 1; k >= 0; k -= 1) {
+                    if (!board.isLegal(result._redo.get(k))) {
+                        throw error("%s is damaged", file);
+                    }
+                    board.makeMove(result._redo.get(k));
+                }
+                for (int n = header.getInt(); n > 0; n -= 1) {
+                    int side = header.get(), generation = header.getInt(),
+                        count = header.getInt();
+                    long offset = header.getLong(), length = header.getLong();
+                    if (side != WHITE.ordinal() && side != BLACK.ordinal()
+                        || count <= 0 || count > MAX_SEGMENTS
+                        || offset < 0 || length < 0
+                        || length > Integer.MAX_VALUE
+                        || offset + count * length > in.size()) {
+                        throw error("%s is damaged", file);
+                    }
+                    ByteBuffer[] segments = new ByteBuffer[count];
+                    for (int k = 0; k < count; k += 1) {
+                        segments[k] =
+                            in.map(FileChannel.MapMode.PRIVATE,
+                                   offset + k * length, length);
+                    }
+                    result._tables[side] =
+                        new TranspositionTable(segments, generation);
+                }
+                return result;
+            } catch (BufferUnderflowException excp) {
+                throw error("%s is damaged", file);
+            }
+        }
+    }
+
+    /** Write all of BUF to OUT starting at OFFSET, returning the offset
+     *  following it. */
+    private static long writeFully(FileChannel out, ByteBuffer buf,
+                                   long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            offset += out.write(buf, offset);
+        }
+        return offset;
+    }
+
+    /** Fill BUF from IN starting at OFFSET.  It is an error if IN ends
+     *  first. */
+    private static void readFully(FileChannel in, ByteBuffer buf,
+                                  long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = in.read(buf, offset);
+            if (n < 0) {
+                throw error("unexpected end of saved game");
+            }
+            offset += n;
+        }
+    }
+
+    /** Return OFFSET rounded up to a multiple of TABLE_ALIGNMENT. */
+    private static long align(long offset) {
+        return (offset + TABLE_ALIGNMENT - 1) & -TABLE_ALIGNMENT;
+    }
+
+    /** Number of bytes describing each table in the header. */
+    private static final int TABLE_BYTES = 1 + 2 * Integer.BYTES
+        + 2 * Long.BYTES;
+
+    /** Largest number of segments in a saved table. */
+    private static final int MAX_SEGMENTS =
+        1 << (TranspositionTable.MAX_LOG2_SIZE
+              - TranspositionTable.MAX_LOG2_SEGMENT);
+
+    /** The sides whose tables may be saved, in the order saved. */
+    private static final Piece[] SIDES = { WHITE, BLACK };
+
+    /** The saved board. */
+    private final Board _board = new Board();
+    /** The saved moves to redo. */
+    private final MoveStack _redo = new MoveStack();
+    /** The saved tables, indexed by side ordinal. */
+    private final TranspositionTable[] _tables =
+        new TranspositionTable[Piece.values().length];
+}
@@ -0,0 +1,231 @@
+package tablut;
+
+/** A recognizer for the textual commands of Tablut.  Scanning a line
+ *  classifies it as one of the commands in Op in a single pass over its
+ *  characters, ignoring case, surrounding white space, and any comment
+ *  (from '#' on), and records the command's operand: a packed move, a
+ *  square, a side, or the extent of a number or position.  Nothing is
+ *  allocated unless command() or position() is called, so a scanner may
+ *  be reused for any number of lines.  The forms accepted are those of
+ *  the Controller's commands:
+ *
+ *      quit, new, dump, stats, undo, redo
+ *      seed N, limit N, goto N
+ *                             N a sequence of digits
+ *      manual S, auto S       S white or black
+ *      toggle SQ              SQ a square, as a3
+ *      setboard P             P a position, as from Board.encodedBoard
+ *      save F, load F         F a file name
+ *      a move                 as accepted by Move.parse
+ *
+ *  @author Matthew J. Lee
+ */
+class CommandScanner {
+
+    /** The kinds of line. */
+    enum Op {
+        /** A line with nothing but white space and comments. */
+        EMPTY,
+        /** Commands without operands. */
+        QUIT, NEW, DUMP, STATS, UNDO, REDO,
+        /** Commands with a number: see number(). */
+        SEED, LIMIT, GOTO,
+        /** Commands with a side: see side(). */
+        MANUAL, AUTO,
+        /** The toggle command: see square(). */
+        TOGGLE,
+        /** The setboard command: see position(). */
+        SETBOARD,
+        /** Commands with a file name: see operand(). */
+        SAVE, LOAD,
+        /** A move: see move(). */
+        MOVE,
+        /** Anything else. */
+        BAD
+    }
+
+    /** Classify LINE, returning its kind. */
+    Op scan(CharSequence line) {
+        return scan(line, 0, line.length());
+    }
+
+    /** Classify the line that is characters START .. END-1 of TEXT,
+     *  returning its kind. */
+    Op scan(CharSequence text, int start, int end) {
+        _text = text;
+        _start = skipSpace(start, end);
+        _end = _start;
+        for (int k = _start; k < end && text.charAt(k) != '#'; k += 1) {
+            if (!Character.isWhitespace(text.charAt(k))) {
+                _end = k + 1;
+            }
+        }
+        if (_start == _end) {
+            return Op.EMPTY;
+        }
+        _move = Move.parse(text, _start, _end);
+        if (_move != Move.NO_MOVE || is(_start, _end, "a1-a")
+            || is(_start, _end, "a1-1")) {
+            return Op.MOVE;
+        }
+        int word = _start;
+        while (word < _end && !Character.isWhitespace(text.charAt(word))) {
+            word += 1;
+        }
+        _arg = skipSpace(word, _end);
+        if (word == _end) {
+            for (Op op : NO_OPERAND) {
+                if (is(_start, word, op)) {
+                    return op;
+                }
+            }
+        } else if (word == _arg) {
+            return Op.BAD;
+        } else if (digits()) {
+            for (Op op : NUMBER_OPERAND) {
+                if (is(_start, word, op)) {
+                    return op;
+                }
+            }
+        } else if (is(_start, word, Op.MANUAL)
+                   || is(_start, word, Op.AUTO)) {
+            _side = is(_arg, _end, "white") ? Piece.WHITE
+                : is(_arg, _end, "black") ? Piece.BLACK : null;
+            if (_side != null) {
+                return is(_start, word, Op.AUTO) ? Op.AUTO : Op.MANUAL;
+            }
+        } else if (is(_start, word, Op.SETBOARD)) {
+            return Op.SETBOARD;
+        } else if (is(_start, word, Op.SAVE)) {
+            return Op.SAVE;
+        } else if (is(_start, word, Op.LOAD)) {
+            return Op.LOAD;
+        } else if (is(_start, word, Op.TOGGLE) && _end - _arg == 2) {
+            int col = Move.column(text.charAt(_arg)),
+                row = Move.row(text.charAt(_arg + 1));
+            if (col >= 0 && row >= 0) {
+                _square = Square.sq(col, row);
+                return Op.TOGGLE;
+            }
+        }
+        return Op.BAD;
+    }
+
+    /** Return the packed move of the last line scanned, if a MOVE.  This
+     *  is not necessarily a rook move: Move.mv returns null for moves
+     *  such as e1-e, and a1-a and a1-1 give NO_MOVE. */
+    int move() {
+        return _move;
+    }
+
+    /** Return the square operand of the last line scanned, if a
+     *  TOGGLE. */
+    Square square() {
+        return _square;
+    }
+
+    /** Return the side operand of the last line scanned, if a MANUAL or
+     *  AUTO. */
+    Piece side() {
+        return _side;
+    }
+
+    /** Return the number operand of the last line scanned, if a SEED,
+     *  LIMIT, or GOTO.  Throws NumberFormatException if it exceeds
+     *  Long.MAX_VALUE. */
+    long number() {
+        return Long.parseLong(_text, _arg, _end, 10);
+    }
+
+    /** Return the position operand of the last line scanned, if a
+     *  SETBOARD.  It is an error if it is malformed. */
+    PackedPosition position() {
+        return PackedPosition.parse(_text, _arg, _end);
+    }
+
+    /** Return the operand of the last line scanned, as written, if a
+     *  SAVE or LOAD. */
+    String operand() {
+        return _text.subSequence(_arg, _end).toString();
+    }
+
+    /** Return the last line scanned in lower case, without comment or
+     *  surrounding white space. */
+    String command() {
+        return _text.subSequence(_start, _end).toString().toLowerCase();
+    }
+
+    /** Return true iff the operand of the last line scanned is all
+     *  digits. */
+    private boolean digits() {
+        for (int k = _arg; k < _end; k += 1) {
+            char c = _text.charAt(k);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the index of the first character at or after START and
+     *  before END of the current line that is not white space, or END if
+     *  none is. */
+    private int skipSpace(int start, int end) {
+        while (start < end && Character.isWhitespace(_text.charAt(start))) {
+            start += 1;
+        }
+        return start;
+    }
+
+    /** Return true iff characters START .. END-1 of the current line are
+     *  the name of command OP, ignoring case. */
+    private boolean is(int start, int end, Op op) {
+        return is(start, end, NAMES[op.ordinal()]);
+    }
+
+    /** Return true iff characters START .. END-1 of the current line are
+     *  WORD (which is in lower case), ignoring case. */
+    private boolean is(int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int k = 0; k < word.length(); k += 1) {
+            if (Character.toLowerCase(_text.charAt(start + k))
+                != word.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The commands without operands. */
+    private static final Op[] NO_OPERAND = {
+        Op.QUIT, Op.NEW, Op.DUMP, Op.STATS, Op.UNDO, Op.REDO
+    };
+
+    /** The commands with a number. */
+    private static final Op[] NUMBER_OPERAND = { Op.SEED, Op.LIMIT, Op.GOTO };
+
+    /** The name of each Op, indexed by ordinal. */
+    private static final String[] NAMES = new String[Op.values().length];
+
+    static {
+        for (Op op : Op.values()) {
+            NAMES[op.ordinal()] = op.name().toLowerCase();
+        }
+    }
+
+    /** The text containing the last line scanned. */
+    private CharSequence _text;
+    /** Extent of the last line scanned, without comment or surrounding
+     *  white space. */
+    private int _start, _end;
+    /** Start of the operand of the last line scanned. */
+    private int _arg;
+    /** The move of the last line scanned. */
+    private int _move;
+    /** The square of the last line scanned. */
+    private Square _square;
+    /** The side of the last line scanned. */
+    private Piece _side;
+}
@@ -1,11 +1,14 @@
 package tablut;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.Scanner;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.function.Consumer;
 
 import static tablut.Utils.*;
 import static tablut.Square.*;
@@ -19,18 +22,35 @@ final class Controller {
      *  MANUALPLAYERTEMPLATE as an exemplar for manual players
      *  (see the Player.create method) and AUTOPLAYERTEMPLATE
      *  as an exemplar for automated players.  Reports
-     *  board changes to VIEW at appropriate points.  Uses REPORTER
+     *  changes to the game to VIEW (see addListener).  Uses REPORTER
      *  to report moves, wins, and errors to user. If LOGFILE is
      *  non-null, copies all commands to it. If STRICT, exits the
      *  program with non-zero code on receiving an erroneous move from a
-     *  player. */
+     *  player.  Reads commands from the standard input and writes prompts
+     *  and board dumps to the standard output. */
     Controller(View view, PrintStream logFile, Reporter reporter,
                Player manualPlayerTemplate, Player autoPlayerTemplate,
                boolean strict) {
+        this(view, logFile, reporter, manualPlayerTemplate,
+             autoPlayerTemplate, strict,
+             new BufferedReader(new InputStreamReader(System.in)),
+             System.out);
+    }
+
+    /** A Controller as for Controller(VIEW, LOGFILE, REPORTER,
+     *  MANUALPLAYERTEMPLATE, AUTOPLAYERTEMPLATE, STRICT), but reading
+     *  commands from INPUT and writing prompts and board dumps to OUTPUT.
+     *  A Controller shares no mutable state with other Controllers, so
+     *  Controllers with separate inputs and outputs may run concurrently
+     *  in separate threads. */
+    Controller(View view, PrintStream logFile, Reporter reporter,
+               Player manualPlayerTemplate, Player autoPlayerTemplate,
+               boolean strict, BufferedReader input, PrintStream output) {
         _view = view;
         _playing = false;
         _logFile = logFile;
-        _input = new Scanner(System.in);
+        _input = input;
+        _output = output;
         _autoPlayerTemplate = autoPlayerTemplate;
         _manualPlayerTemplate = manualPlayerTemplate;
         _nonPlayer = manualPlayerTemplate.create(EMPTY, this);
@@ -38,42 +58,114 @@ final class Controller {
         _black = _manualPlayerTemplate.create(BLACK, this);
         _reporter = reporter;
         _strict = strict;
+        addListener(view);
+    }
+
+    /** Allow the save and load commands, which use the local file
+     *  system, iff ALLOWED.  They are allowed initially. */
+    void setFileCommands(boolean allowed) {
+        _fileCommands = allowed;
+    }
+
+    /** Add LISTENER to the receivers of changes to the game.  After each
+     *  command that changes the game, each listener receives the events
+     *  describing the changes, in the order listeners were added. */
+    void addListener(GameListener listener) {
+        _listeners.add(listener);
     }
 
     /** Play Tablut. */
     void play() {
-        _playing = true;
-        _winner = null;
-        _board.init();
+        start();
         while (_playing) {
-            _view.update(this);
             String command;
             if (_winner == null) {
-                if (_board.turn() == WHITE) {
-                    command = _white.myMove();
-                } else {
-                    command = _black.myMove();
-                }
+                command = playerToMove().myMove();
             } else {
                 command = _nonPlayer.myMove();
                 if (command == null) {
                     command = "quit";
                 }
             }
-            try {
-                executeCommand(command);
-            } catch (IllegalArgumentException excp) {
-                reportError("Error: %s%n", excp.getMessage());
-                if (_strict) {
-                    System.exit(1);
-                }
-            }
+            execute(command);
         }
+        flushOutput();
         if (_logFile != null) {
             _logFile.close();
         }
     }
 
+    /** Start play with a fresh board, as at the beginning of play().
+     *  Controllers driven by something other than play() call this
+     *  first and then feed commands to execute. */
+    void start() {
+        _playing = true;
+        _winner = null;
+        _board.init();
+        post(GameEvent.Kind.NEW_GAME, null, null, null);
+        publish();
+    }
+
+    /** Return true iff play has started and no quit command has been
+     *  executed since. */
+    boolean playing() {
+        return _playing;
+    }
+
+    /** Return the player whose turn it is, or null if the game is
+     *  over. */
+    Player playerToMove() {
+        if (_winner != null) {
+            return null;
+        }
+        return _board.turn() == WHITE ? _white : _black;
+    }
+
+    /** Ask the player to move, if any, to move as soon as possible.  May
+     *  be called from any thread. */
+    void hurry() {
+        Player player = playerToMove();
+        if (player != null) {
+            player.hurry();
+        }
+    }
+
+    /** Execute COMMAND, reporting any error to the user.  If strict,
+     *  exit the program on error. */
+    void execute(String command) {
+        try {
+            executeCommand(command);
+        } catch (IllegalArgumentException excp) {
+            reportError("Error: %s%n", excp.getMessage());
+            if (_strict) {
+                System.exit(1);
+            }
+        } finally {
+            publish();
+        }
+    }
+
+    /** Record a change of kind KIND concerning MOVE, SQUARE, and PIECE for
+     *  delivery to my listeners by the next publish(). */
+    private void post(GameEvent.Kind kind, Move move, Square square,
+                      Piece piece) {
+        _events.add(new GameEvent(kind, move, square, piece,
+                                  _board.moveCount()));
+    }
+
+    /** Deliver the changes recorded since the last call, if any, to my
+     *  listeners. */
+    private void publish() {
+        if (_events.isEmpty()) {
+            return;
+        }
+        List<GameEvent> events = List.copyOf(_events);
+        _events.clear();
+        for (GameListener listener : _listeners) {
+            listener.gameChanged(this, events);
+        }
+    }
+
     /** Return the current board.  The value returned should not be
      *  modified. */
     Board board() {
@@ -97,19 +189,34 @@ final class Controller {
 
     /** Return the next line of input, or null if there is no more. First
      *  prompts for the line.  Trims the returned line (if any) of all
-     *  leading and trailing whitespace. First issues a prompt iff PROMPT. */
+     *  leading and trailing whitespace. First issues a prompt iff PROMPT,
+     *  and flushes all output so far. */
     String readLine(boolean prompt) {
         if (prompt) {
-            System.out.print("> ");
-            System.out.flush();
+            _output.print("> ");
         }
-        if (_input.hasNextLine()) {
-            return _input.nextLine().trim();
-        } else {
+        flushOutput();
+        try {
+            String line = _input.readLine();
+            return line == null ? null : line.trim();
+        } catch (IOException excp) {
             return null;
         }
     }
 
+    /** Pass on everything reported or written to my output so far, as
+     *  before waiting for input or at the end of a game.  The log is
+     *  flushed only when closed or at exit. */
+    private void flushOutput() {
+        _reporter.flush();
+        _output.flush();
+    }
+
+    /** Use INDEX (null for none) for the stats command. */
+    void setPositionIndex(PositionIndex index) {
+        _index = index;
+    }
+
     /** Return true iff white is a manual player. */
     boolean manualWhite() {
         return _white.isManual();
@@ -140,111 +247,89 @@ final class Controller {
     void logComment(String format, Object... args) {
         if (_logFile != null) {
             _logFile.printf("# " + format + "%n", args);
-            _logFile.flush();
-        }
-    }
-
-    /** A Command is pair (<pattern>, <processor>), where <pattern> is a
-     *  Matcher that matches instances of a particular command, and
-     *  <processor> is a functional object whose .accept method takes a
-     *  successfully matched Matcher and performs some operation. */
-    private static class Command {
-        /** A new Command that matches PATN (a regular expression) and uses
-         *  PROCESSOR to process commands that match the pattern. */
-        Command(String patn, Consumer<Matcher> processor) {
-            _matcher = Pattern.compile(patn).matcher("");
-            _processor = processor;
-        }
-
-        /** A Matcher matching my pattern. */
-        protected final Matcher _matcher;
-        /** The function object that implements my command. */
-        protected final Consumer<Matcher> _processor;
-    }
-
-    /** A list of Commands describing the valid textual commands to the
-     *  Tablut program and the methods to process them. */
-    private Command[] _commands = {
-        new Command("quit$", this::doQuit),
-        new Command("new$", this::doNew),
-        new Command("seed\\s+(\\d+)$", this::doSeed),
-        new Command("dump$", this::doDump),
-        new Command("undo$", this::doUndo),
-        new Command("manual\\s+(white|black)$", this::doManual),
-        new Command("auto\\s+(white|black)$", this::doAuto),
-        new Command("limit\\s+(\\d+)$", this::doLimit),
-        new Command("toggle\\s+" + SQ + "$", this::doToggle),
-        new Command(Move.MOVE_PATTERN.pattern(), this::doMove)
-    };
-
-    /** A Matcher whose Pattern matches comments. */
-    private static final Matcher COMMENT = Pattern.compile("#.*").matcher("");
+        }
+    }
+
+    /** Recognizes the textual commands to the Tablut program. */
+    private final CommandScanner _scanner = new CommandScanner();
 
     /** Check that CMND is one of the valid Tablut commands and execute it, if
-     *  so, raising an IllegalArgumentException otherwise. */
+     *  so, raising an IllegalArgumentException otherwise.  Each command is
+     *  recorded as a FlightEvents.Command when flight recording is on. */
     private void executeCommand(String cmnd) {
+        FlightEvents.Command event = new FlightEvents.Command();
+        event.begin();
+        try {
+            dispatchCommand(cmnd);
+        } catch (IllegalArgumentException excp) {
+            event.failed = true;
+            throw excp;
+        } finally {
+            if (event.shouldCommit()) {
+                event.command = cmnd;
+                event.commit();
+            }
+        }
+    }
+
+    /** Log CMND and perform it, as for executeCommand. */
+    private void dispatchCommand(String cmnd) {
         if (_logFile != null) {
             _logFile.println(cmnd);
-            _logFile.flush();
         }
 
-        COMMENT.reset(cmnd);
-        cmnd = COMMENT.replaceFirst("").trim().toLowerCase();
-
-        if (cmnd.isEmpty()) {
-            return;
-        }
-        for (Command parser : _commands) {
-            parser._matcher.reset(cmnd);
-            if (parser._matcher.matches()) {
-                parser._processor.accept(parser._matcher);
-                return;
-            }
+        switch (_scanner.scan(cmnd)) {
+        case EMPTY: break;
+        case QUIT: doQuit(); break;
+        case NEW: doNew(); break;
+        case SEED: doSeed(); break;
+        case DUMP: doDump(); break;
+        case STATS: doStats(); break;
+        case UNDO: doUndo(); break;
+        case REDO: doRedo(); break;
+        case GOTO: doGoto(); break;
+        case MANUAL: doManual(_scanner.side()); break;
+        case AUTO: doAuto(_scanner.side()); break;
+        case LIMIT: doLimit(); break;
+        case TOGGLE: doToggle(_scanner.square()); break;
+        case SETBOARD: doSetboard(_scanner.position()); break;
+        case SAVE: doSave(_scanner.operand()); break;
+        case LOAD: doLoad(_scanner.operand()); break;
+        case MOVE: doMove(_scanner.move()); break;
+        default:
+            throw error("Bad command: %s", _scanner.command());
         }
-        throw error("Bad command: %s", cmnd);
     }
 
     /** Command "new". */
-    private void doNew(Matcher unused) {
+    private void doNew() {
         _board.init();
+        _redo.clear();
         _winner = null;
+        post(GameEvent.Kind.NEW_GAME, null, null, null);
     }
 
-    /** Command "manual <color>", where <color> is COLOR.group(1). */
-    private void doManual(Matcher color) {
-        switch (color.group(1)) {
-        case "black":
+    /** Command "manual <color>", where <color> is COLOR. */
+    private void doManual(Piece color) {
+        if (color == BLACK) {
             _black = _manualPlayerTemplate.create(BLACK, this);
-            break;
-        case "white":
+        } else {
             _white = _manualPlayerTemplate.create(WHITE, this);
-            break;
-        default:
-            assert false;
         }
-        _view.update(this);
     }
 
-    /** Command "auto <color>", where <color> is COLOR.group(1). */
-    private void doAuto(Matcher color) {
-        switch (color.group(1)) {
-        case "black":
+    /** Command "auto <color>", where <color> is COLOR. */
+    private void doAuto(Piece color) {
+        if (color == BLACK) {
             _black = _autoPlayerTemplate.create(BLACK, this);
-            break;
-        case "white":
+        } else {
             _white = _autoPlayerTemplate.create(WHITE, this);
-            break;
-        default:
-            assert false;
         }
-        _view.update(this);
     }
 
-    /** Command "toggle". The first group of MAT is a square designation.
-     *  The contents of the square are modified:
+    /** Command "toggle SQ".  The contents of SQ are modified:
      *  EMPTY -> WHITE -> KING -> BLACK .< ENPTY". Clear Undo information. */
-    private void doToggle(Matcher mat) {
-        Square sq = sq(mat.group(1));
+    private void doToggle(Square sq) {
         Piece piece;
         switch (_board.get(sq)) {
         case EMPTY: piece = WHITE; break;
@@ -255,62 +340,208 @@ final class Controller {
         }
         _board.put(piece, sq);
         _board.clearUndo();
+        _redo.clear();
+        post(GameEvent.Kind.EDIT, null, sq, piece);
+    }
+
+    /** Command "setboard <position>": set the board to POSN, with no
+     *  moves made, starting a new game there. */
+    private void doSetboard(PackedPosition posn) {
+        _board.setPosition(posn);
+        _redo.clear();
+        _winner = _board.winner();
+        post(GameEvent.Kind.NEW_GAME, null, null, null);
+    }
+
+    /** Command "save <file>": write the game, including its history and
+     *  the transposition tables of any AI players, to the file named
+     *  NAME. */
+    private void doSave(String name) {
+        checkFileCommands();
+        Checkpoint checkpoint = new Checkpoint(_board, _redo);
+        for (Player player : new Player[] { _white, _black }) {
+            if (player instanceof AI && ((AI) player).table() != null) {
+                checkpoint.setTable(player.myPiece(), ((AI) player).table());
+            }
+        }
+        try {
+            checkpoint.write(Paths.get(name));
+        } catch (IOException | InvalidPathException excp) {
+            throw error("Could not save: %s", excp.getMessage());
+        }
+    }
+
+    /** Command "load <file>": restore the game saved in the file named
+     *  NAME, and the transposition tables saved for the sides that AI
+     *  players are playing. */
+    private void doLoad(String name) {
+        checkFileCommands();
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(Paths.get(name));
+        } catch (IOException | InvalidPathException excp) {
+            throw error("Could not load: %s", excp.getMessage());
+        }
+        _board.copy(checkpoint.board());
+        _redo.copy(checkpoint.redo());
+        for (Player player : new Player[] { _white, _black }) {
+            TranspositionTable table = checkpoint.table(player.myPiece());
+            if (player instanceof AI && table != null) {
+                ((AI) player).setTable(table);
+            }
+        }
+        _winner = _board.winner();
+        post(GameEvent.Kind.NEW_GAME, null, null, null);
+    }
+
+    /** Check that the save and load commands are allowed. */
+    private void checkFileCommands() {
+        if (!_fileCommands) {
+            throw error("save and load are not available here");
+        }
     }
 
     /** Command "quit". */
-    private void doQuit(Matcher unused) {
+    private void doQuit() {
         _playing = false;
     }
 
-    /** Command "seed N" where N is the first group of MAT. */
-    private void doSeed(Matcher mat) {
+    /** Command "seed N". */
+    private void doSeed() {
         try {
-            setSeed(Long.parseLong(mat.group(1)));
+            setSeed(_scanner.number());
         } catch (NumberFormatException excp) {
             throw error("number too large");
         }
     }
 
-    /** Command "limit N" where N is the first captured group of MAT. */
-    private void doLimit(Matcher mat) {
+    /** Command "limit N". */
+    private void doLimit() {
         try {
-            _board.setMoveLimit(Integer.parseInt(mat.group(1)));
-        } catch (NumberFormatException excp) {
+            _board.setMoveLimit(Math.toIntExact(_scanner.number()));
+        } catch (NumberFormatException | ArithmeticException excp) {
             throw error("number too large");
         }
     }
 
-    /** Execute a move command matched in MAT. */
-    private void doMove(Matcher mat) {
-        _board.makeMove(Move.mv(mat.group(0)));
+    /** Execute the move command for packed move PACKED. */
+    private void doMove(int packed) {
+        Move move = Move.mv(packed);
+        if (move == null) {
+            throw error("Invalid move: %s", _scanner.command());
+        }
+        _board.makeMove(move);
+        _redo.made(packed);
+        post(GameEvent.Kind.MOVE, move, null, null);
+        int n = _board.lastCaptures(_captured, _capturedPieces);
+        for (int i = 0; i < n; i += 1) {
+            post(GameEvent.Kind.CAPTURE, null, sq(_captured[i]),
+                 _capturedPieces[i]);
+        }
         if (_winner == null) {
             _winner = _board.winner();
             if (_winner != null) {
-                _view.update(this);
+                post(GameEvent.Kind.WINNER, null, null, _winner);
+                publish();
                 _reporter.reportNote("%s wins.", _winner.toName());
+                flushOutput();
             }
         }
     }
 
     /** Dump the contents of the board on standard output. */
-    private void doDump(Matcher unused) {
-        System.out.printf("===%n%s===%n", _board);
+    private void doDump() {
+        _output.printf("===%n%s===%n", _board);
+    }
+
+    /** Command "stats": print the results of the indexed games through
+     *  the current position, overall and after each of the moves played
+     *  most often from it. */
+    private void doStats() {
+        if (_index == null) {
+            throw error("no position index");
+        }
+        PositionIndex.Summary summary =
+            _index.summarize(_board.positionHash());
+        _output.printf("===%n%d games: white %d, black %d, unfinished %d%n",
+                       summary.total, summary.results[WHITE.ordinal()],
+                       summary.results[BLACK.ordinal()],
+                       summary.results[EMPTY.ordinal()]);
+        for (int k = 0;
+             k < Math.min(STATS_MOVES, summary.moves.size()); k += 1) {
+            int move = summary.moves.get(k);
+            long[] results = summary.moveResults.get(k);
+            long total = PositionIndex.total(results);
+            _output.printf("  %-6s %8d  white %5.1f%%  black %5.1f%%%n",
+                           move == Move.NO_MOVE ? "(end)" : Move.mv(move),
+                           total, 100.0 * results[WHITE.ordinal()] / total,
+                           100.0 * results[BLACK.ordinal()] / total);
+        }
+        _output.printf("===%n");
     }
 
     /** Undo back to before my last move, if there was one (otherwise does
      *  nothing). */
-    private void doUndo(Matcher unused) {
-        if (_board.moveCount() > 1) {
-            _board.undo();
-            _board.undo();
+    private void doUndo() {
+        if (_board.undoCount() >= 2) {
+            undoMove();
+            undoMove();
             _winner = null;
-            _view.update(this);
+        }
+    }
+
+    /** Command "redo": remake the moves undone by the last "undo" (or
+     *  as many of them as remain to be remade), if any. */
+    private void doRedo() {
+        for (int k = 0; k < 2 && !_redo.isEmpty(); k += 1) {
+            doMove(_redo.top());
+        }
+    }
+
+    /** Command "goto N": undo or remake moves until N moves have been
+     *  made.  It is an error if that is impossible. */
+    private void doGoto() {
+        long ply;
+        try {
+            ply = _scanner.number();
+        } catch (NumberFormatException excp) {
+            throw error("number too large");
+        }
+        int count = _board.moveCount();
+        if (ply < count - _board.undoCount() || ply > count + _redo.size()) {
+            throw error("no position after %d moves", ply);
+        }
+        while (_board.moveCount() > ply) {
+            undoMove();
+        }
+        _winner = _board.winner();
+        while (_board.moveCount() < ply) {
+            doMove(_redo.top());
+        }
+    }
+
+    /** Undo the last move, which must exist, recording the changes for
+     *  my listeners and saving the move for redo. */
+    private void undoMove() {
+        int last = _board.lastMove();
+        Move move = Move.mv(last);
+        int n = _board.lastCaptures(_captured, _capturedPieces);
+        _board.undo();
+        _redo.push(last);
+        post(GameEvent.Kind.UNDO, move, null, null);
+        for (int i = 0; i < n; i += 1) {
+            post(GameEvent.Kind.EDIT, null, sq(_captured[i]),
+                 _capturedPieces[i]);
         }
     }
 
     /** The board. */
     private Board _board = new Board();
 
+    /** Moves undone since the last move made other than by redo or goto,
+     *  the next to be remade on top. */
+    private final MoveStack _redo = new MoveStack();
+
     /** The winning side of the current game. */
     private Piece _winner;
 
@@ -320,14 +551,34 @@ final class Controller {
     /** The object that is displaying the current game. */
     private View _view;
 
+    /** Receivers of changes to the game, starting with _view. */
+    private final List<GameListener> _listeners = new ArrayList<>();
+
+    /** Changes not yet delivered to _listeners. */
+    private final List<GameEvent> _events = new ArrayList<>();
+
+    /** Scratch space for the squares captured by a move. */
+    private final int[] _captured = new int[4];
+    /** Scratch space for the pieces captured by a move. */
+    private final Piece[] _capturedPieces = new Piece[4];
+
     /** My pseudo-random number generator. */
     private Random _randGen = new Random();
 
+    /** Number of continuations shown by the stats command. */
+    private static final int STATS_MOVES = 5;
+
+    /** Index of archived games, or null if absent. */
+    private PositionIndex _index;
+
     /** Log file, or null if absent. */
     private PrintStream _logFile;
 
     /** Input source. */
-    private Scanner _input;
+    private BufferedReader _input;
+
+    /** Destination for prompts and board dumps. */
+    private PrintStream _output;
 
     /** The current White and Black players, each created from
      *  _autoPlayerTemplate or _manualPlayerTemplate. */
@@ -347,4 +598,7 @@ final class Controller {
      *  code. */
     private boolean _strict;
 
+    /** True iff the save and load commands are allowed. */
+    private boolean _fileCommands = true;
+
 }
@@ -0,0 +1,307 @@
+package tablut;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static tablut.Piece.*;
+import static tablut.Utils.error;
+
+/** A driver for the AI that speaks a line-oriented engine protocol,
+ *  modeled on those used by chess arenas, so that other programs can
+ *  run it.  Commands are read one per line from the input:
+ *
+ *      tablut         identify; answered by "id ..." and "tablutok".
+ *      isready        answered by "readyok" once earlier commands are done.
+ *      newgame        forget the previous game.
+ *      position startpos [moves M...]
+ *      position board ENCODED [moves M...]
+ *                     set the position to the initial one, or to the one
+ *                     whose Board.encodedBoard() is ENCODED, followed by
+ *                     moves M....
+ *      go [depth D] [movetime MS] [nodes N] [infinite] [ponder]
+ *                     search the current position within the given limits,
+ *                     reporting each completed iteration with an "info"
+ *                     line, whose score is from the point of view of the
+ *                     side to move, and finally the move chosen with
+ *                     "bestmove".
+ *                     If infinite or ponder, "bestmove" waits for stop or
+ *                     ponderhit, and a ponder search ignores MS until
+ *                     ponderhit.
+ *      stop           end the search now.
+ *      ponderhit      the predicted move was played: continue the ponder
+ *                     search as a normal one.
+ *      quit           exit.
+ *
+ *  The search runs on its own thread, so stop is honored within a few
+ *  thousand positions, well under a millisecond.  Errors are reported as
+ *  "info string Error: ...".
+ *  @author Matthew J. Lee
+ */
+class Engine {
+
+    /** An engine reading commands from INPUT and writing replies to
+     *  OUTPUT. */
+    Engine(BufferedReader input, PrintStream output) {
+        _input = input;
+        _output = output;
+        _ai.setListener(this::reportIteration);
+        _ai.setTableSize(TABLE_BITS);
+    }
+
+    /** Use TABLE, which may be shared with other processes, as my
+     *  transposition table. */
+    void setSharedTable(TranspositionTable table) {
+        _ai.setSharedTable(table);
+    }
+
+    /** Execute commands until quit or the end of input. */
+    void run() {
+        while (true) {
+            String line;
+            try {
+                line = _input.readLine();
+            } catch (IOException excp) {
+                line = null;
+            }
+            if (line == null) {
+                break;
+            }
+            String[] words = line.trim().split("\\s+");
+            if (words[0].equals("quit")) {
+                break;
+            }
+            try {
+                execute(words);
+            } catch (IllegalArgumentException excp) {
+                _output.printf("info string Error: %s%n", excp.getMessage());
+            }
+        }
+        stopSearch();
+    }
+
+    /** Execute the command whose words are WORDS. */
+    private void execute(String[] words) {
+        switch (words[0]) {
+        case "":
+            break;
+        case "tablut":
+            _output.println("id name Tablut 61B");
+            _output.println("id author Matthew J. Lee");
+            _output.println("tablutok");
+            break;
+        case "isready":
+            _output.println("readyok");
+            break;
+        case "newgame":
+            stopSearch();
+            _board.init();
+            _ai.newGame();
+            break;
+        case "position":
+            stopSearch();
+            doPosition(words);
+            break;
+        case "go":
+            stopSearch();
+            doGo(words);
+            break;
+        case "stop":
+            stopSearch();
+            break;
+        case "ponderhit":
+            doPonderhit();
+            break;
+        default:
+            throw error("Bad command: %s", String.join(" ", words));
+        }
+    }
+
+    /** Set the position as directed by WORDS, a position command. */
+    private void doPosition(String[] words) {
+        Board board = new Board();
+        int k;
+        if (words.length > 1 && words[1].equals("startpos")) {
+            k = 2;
+        } else if (words.length > 2 && words[1].equals("board")) {
+            board.setPosition(PackedPosition.parse(words[2]));
+            k = 3;
+        } else {
+            throw error("bad position command");
+        }
+        if (k < words.length) {
+            if (!words[k].equals("moves")) {
+                throw error("bad position command");
+            }
+            for (k += 1; k < words.length; k += 1) {
+                if (!Move.isGrammaticalMove(words[k])) {
+                    throw error("bad move: %s", words[k]);
+                }
+                Move move = Move.mv(words[k]);
+                if (move == null || board.winner() != null
+                    || !board.isLegal(move)) {
+                    throw error("illegal move: %s", words[k]);
+                }
+                board.makeMove(move);
+            }
+        }
+        _board = board;
+    }
+
+    /** Start a search as directed by WORDS, a go command. */
+    private void doGo(String[] words) {
+        int depth = 0;
+        long millis = 0, nodes = 0;
+        boolean infinite = false, ponder = false;
+        try {
+            for (int k = 1; k < words.length; k += 1) {
+                switch (words[k]) {
+                case "depth":
+                    k += 1;
+                    depth = Integer.parseInt(words[k]);
+                    break;
+                case "movetime":
+                    k += 1;
+                    millis = Long.parseLong(words[k]);
+                    break;
+                case "nodes":
+                    k += 1;
+                    nodes = Long.parseLong(words[k]);
+                    break;
+                case "infinite":
+                    infinite = true;
+                    break;
+                case "ponder":
+                    ponder = true;
+                    break;
+                default:
+                    throw error("bad go option: %s", words[k]);
+                }
+            }
+        } catch (NumberFormatException
+                 | ArrayIndexOutOfBoundsException excp) {
+            throw error("bad go command");
+        }
+        if (_board.winner() != null
+            || _board.legalMoves(_board.turn(), new int[Board.MAX_MOVES])
+               == 0) {
+            _output.println("bestmove (none)");
+            return;
+        }
+        if ((infinite || ponder) && depth == 0) {
+            depth = AI.MAX_SEARCH_DEPTH;
+        }
+        _ai.setLimits(depth, ponder ? 0 : millis);
+        _ai.setNodeLimit(nodes);
+        _ai.clearStop();
+        if (ponder || millis == 0) {
+            _ai.clearDeadline();
+        } else {
+            _ai.setDeadline(millis);
+        }
+        _ponderTime = millis;
+        synchronized (this) {
+            _holding = infinite || ponder;
+            _pondering = ponder;
+        }
+        Board board = new Board(_board);
+        _sense = board.turn() == WHITE ? 1 : -1;
+        _search = new Thread(() -> search(board), "tablut-search");
+        _search.start();
+    }
+
+    /** Search BOARD and report the move found, waiting first for stop or
+     *  ponderhit if the search is infinite or pondering.  The deadline
+     *  is set before the search starts, so that one set by a ponderhit
+     *  that arrives before the search does is not lost. */
+    private void search(Board board) {
+        int move = _ai.deepen(board);
+        synchronized (this) {
+            while (_holding) {
+                try {
+                    wait();
+                } catch (InterruptedException excp) {
+                    break;
+                }
+            }
+        }
+        _output.printf("bestmove %s%n", Move.mv(move));
+    }
+
+    /** Report the completed search iteration to DEPTH that found
+     *  principal variation PV with value SCORE (for white) after NODES
+     *  positions in ELAPSED nanoseconds.  The score is reported for the
+     *  side to move. */
+    private void reportIteration(int depth, int score, long nodes, int[] pv,
+                                 long elapsed) {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("info depth %d score %d nodes %d time %d"
+                                  + " nps %d pv", depth, _sense * score,
+                                  nodes, elapsed / 1000000,
+                                  nodes * 1000000000L
+                                  / Math.max(elapsed, 1)));
+        for (int move : pv) {
+            line.append(' ').append(Move.mv(move));
+        }
+        _output.println(line);
+    }
+
+    /** Convert a ponder search into a normal one with the time limit
+     *  given to go. */
+    private void doPonderhit() {
+        synchronized (this) {
+            if (_search == null || !_pondering) {
+                return;
+            }
+            _pondering = false;
+            _holding = false;
+            notifyAll();
+        }
+        if (_ponderTime > 0) {
+            _ai.setDeadline(_ponderTime);
+        }
+    }
+
+    /** Stop any search in progress and wait for it to report its move. */
+    private void stopSearch() {
+        if (_search == null) {
+            return;
+        }
+        _ai.stop();
+        synchronized (this) {
+            _holding = false;
+            notifyAll();
+        }
+        try {
+            _search.join();
+        } catch (InterruptedException excp) {
+            /* Ignore InterruptedException. */
+        }
+        _search = null;
+    }
+
+    /** Log base 2 of the size of my transposition table. */
+    static final int TABLE_BITS = 20;
+
+    /** Source of commands. */
+    private final BufferedReader _input;
+    /** Destination of replies. */
+    private final PrintStream _output;
+    /** The current position. */
+    private Board _board = new Board();
+    /** The searcher. */
+    private final AI _ai = new AI();
+    /** The thread running the current search, or null if none. */
+    private Thread _search;
+    /** Time limit in milliseconds to apply to a ponder search on
+     *  ponderhit, or 0 if none. */
+    private long _ponderTime;
+    /** True while the current search must wait before reporting its
+     *  move. */
+    private boolean _holding;
+    /** True while the current search is a ponder search. */
+    private boolean _pondering;
+    /** 1 if white is to move in the position being searched, and -1 if
+     *  black is. */
+    private int _sense;
+}
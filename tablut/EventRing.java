@@ -0,0 +1,83 @@
+package tablut;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A bounded ring buffer of text lines, written by producers and read
+ *  independently by any number of consumers, none of which ever blocks
+ *  or locks.  Each line gets the next sequence number; a consumer reads
+ *  lines in sequence order by remembering the sequence number of the
+ *  next line it wants.  The ring keeps only the last CAPACITY lines, so
+ *  a consumer that falls more than that far behind finds that it has
+ *  been lapped and must skip ahead, losing lines.  Producers never wait
+ *  for consumers.
+ *  @author Matthew J. Lee
+ */
+class EventRing {
+
+    /** A ring holding the last 2**LOG2CAPACITY lines. */
+    EventRing(int log2Capacity) {
+        _slots = new AtomicReferenceArray<>(1 << log2Capacity);
+        _mask = (1 << log2Capacity) - 1;
+    }
+
+    /** Return the number of lines I hold. */
+    int capacity() {
+        return _mask + 1;
+    }
+
+    /** Append LINE, returning its sequence number. */
+    long publish(String line) {
+        long seq = _next.getAndIncrement();
+        _slots.set((int) seq & _mask, new Entry(seq, line));
+        return seq;
+    }
+
+    /** Return the sequence number the next line published will have. */
+    long next() {
+        return _next.get();
+    }
+
+    /** Return the oldest sequence number that may still be read. */
+    long oldest() {
+        return Math.max(0, _next.get() - capacity());
+    }
+
+    /** Return the line with sequence number SEQ, or null if it has not
+     *  yet been published.  Return LAPPED if it has been overwritten. */
+    String get(long seq) {
+        Entry entry = _slots.get((int) seq & _mask);
+        if (entry == null || entry._seq < seq) {
+            return null;
+        } else if (entry._seq > seq) {
+            return LAPPED;
+        } else {
+            return entry._line;
+        }
+    }
+
+    /** The value returned by get for a line that has been overwritten.
+     *  It is compared by identity. */
+    static final String LAPPED = new String("<lapped>");
+
+    /** A line and its sequence number. */
+    private static final class Entry {
+        /** The line numbered SEQ. */
+        Entry(long seq, String line) {
+            _seq = seq;
+            _line = line;
+        }
+
+        /** Sequence number. */
+        private final long _seq;
+        /** Contents. */
+        private final String _line;
+    }
+
+    /** The last CAPACITY lines, line number s in _slots[s & _mask]. */
+    private final AtomicReferenceArray<Entry> _slots;
+    /** Mask converting sequence numbers to slot indices. */
+    private final int _mask;
+    /** Sequence number of the next line. */
+    private final AtomicLong _next = new AtomicLong();
+}
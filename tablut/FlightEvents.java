@@ -0,0 +1,130 @@
+package tablut;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** Java Flight Recorder events describing the work done by a Tablut
+ *  program.  Each event is an ordinary JFR event: it is created, begun,
+ *  filled in, and committed, and when no recording has it enabled the
+ *  JIT reduces all of that to a single test.  Board moves happen at every
+ *  node of every search, so they are sampled: only one in every
+ *  MOVE_SAMPLE_MASK + 1 moves or undos on a given Board is timed.
+ *  @author Matthew J. Lee
+ */
+final class FlightEvents {
+
+    /** Mask applied to a Board's move counter to select sampled moves. */
+    static final int MOVE_SAMPLE_MASK = (1 << 10) - 1;
+
+    /** Not instantiable. */
+    private FlightEvents() {
+    }
+
+    /** One command processed by Controller.executeCommand. */
+    @Name("tablut.Command")
+    @Label("Command")
+    @Category("Tablut")
+    @Description("A text command executed by the controller")
+    @StackTrace(false)
+    static final class Command extends Event {
+        /** The command text, as received. */
+        @Label("Command")
+        String command;
+
+        /** True iff the command was rejected. */
+        @Label("Failed")
+        boolean failed;
+    }
+
+    /** A sampled Board.makeMove or Board.undo. */
+    @Name("tablut.BoardMove")
+    @Label("Board Move")
+    @Category("Tablut")
+    @Description("A sampled move or undo on a board")
+    @StackTrace(false)
+    static final class BoardMove extends Event {
+        /** The move made or undone. */
+        @Label("Move")
+        String move;
+
+        /** True iff this was an undo. */
+        @Label("Undo")
+        boolean undo;
+
+        /** Number of moves on the board afterwards. */
+        @Label("Move Count")
+        int moveCount;
+    }
+
+    /** One depth of an AI's iterative-deepening search. */
+    @Name("tablut.SearchIteration")
+    @Label("Search Iteration")
+    @Category("Tablut")
+    @Description("One iteration of an iterative-deepening search")
+    @StackTrace(false)
+    static final class SearchIteration extends Event {
+        /** Side searching. */
+        @Label("Side")
+        String side;
+
+        /** Depth of this iteration. */
+        @Label("Depth")
+        int depth;
+
+        /** Nodes visited during this iteration. */
+        @Label("Nodes")
+        long nodes;
+
+        /** Value found for the position (positive favors white). */
+        @Label("Score")
+        int score;
+
+        /** Best move found by this iteration. */
+        @Label("Best Move")
+        String move;
+    }
+
+    /** A complete AI search, from position to chosen move. */
+    @Name("tablut.Search")
+    @Label("Search")
+    @Category("Tablut")
+    @Description("A complete AI move search")
+    @StackTrace(false)
+    static final class Search extends Event {
+        /** Side searching. */
+        @Label("Side")
+        String side;
+
+        /** Number of moves made in the game before this search. */
+        @Label("Ply")
+        int ply;
+
+        /** Deepest completed iteration. */
+        @Label("Depth")
+        int depth;
+
+        /** Total nodes visited. */
+        @Label("Nodes")
+        long nodes;
+
+        /** Value of the chosen move (positive favors white). */
+        @Label("Score")
+        int score;
+
+        /** The move chosen. */
+        @Label("Move")
+        String move;
+
+        /** Wall-clock time spent, duplicated from the event duration so
+         *  that it appears directly in summaries. */
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+}
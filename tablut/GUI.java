@@ -7,6 +7,7 @@ import java.awt.Dimension;
 import javax.swing.JEditorPane;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
 
 import java.io.InputStream;
 import java.io.IOException;
@@ -17,10 +18,13 @@ import java.util.regex.Pattern;
 
 import java.util.concurrent.ArrayBlockingQueue;
 
-/** The GUI controller for a Tablut board and buttons.
+/** The GUI controller for a Tablut board and buttons.  The Controller
+ *  runs on its own thread (not Swing's event-dispatch thread), so that
+ *  the window stays responsive while the AI searches; all changes to the
+ *  display are handed to the event-dispatch thread with invokeLater.
  *  @author Matthew J. Lee
  */
-class GUI extends TopLevel implements View, Reporter {
+class GUI extends TopLevel implements View, Reporter, AI.Listener {
 
     /** Minimum size of board in pixels. */
     private static final int MIN_SIZE = 500;
@@ -39,8 +43,12 @@ class GUI extends TopLevel implements View, Reporter {
         super(title, true);
         addMenuButton("Game->Quit", this::quit);
         addMenuButton("Game->New", this::newGame);
+        addMenuButton("Game->Undo", this::undo);
+        addMenuButton("Game->Redo", this::redo);
+        addMenuButton("Game->Go to move...", this::gotoMove);
         addMenuButton("Play->Auto White", this::autoWhite);
         addMenuButton("Play->Manual Black", this::manualBlack);
+        addMenuButton("Play->Stop & play best", this::stopSearch);
         addMenuButton("Settings->Seed", this::newSeed);
 
         _widget = new BoardWidget(_pendingCommands);
@@ -48,7 +56,7 @@ class GUI extends TopLevel implements View, Reporter {
             new LayoutSpec("y", 1,
                            "height", 1,
                            "width", 3));
-        addLabel("To move: White", "CurrentTurn",
+        addLabel(_turnLabel, "CurrentTurn",
                  new LayoutSpec("x", 0, "y", 0,
                                 "height", 1,
                                 "width", 3));
@@ -64,6 +72,36 @@ class GUI extends TopLevel implements View, Reporter {
         _pendingCommands.offer("new");
     }
 
+    /** Response to "Undo" button click. */
+    private void undo(String dummy) {
+        _pendingCommands.offer("undo");
+    }
+
+    /** Response to "Redo" button click. */
+    private void redo(String dummy) {
+        _pendingCommands.offer("redo");
+    }
+
+    /** Response to "Go to move" button click. */
+    private void gotoMove(String dummy) {
+        String response =
+                getTextInput("Enter the number of moves to show.",
+                        "Go to move",  "plain", "");
+        if (response == null) {
+            return;
+        }
+        Matcher mat = PLY_PATN.matcher(response);
+        if (mat.matches()) {
+            _pendingCommands.offer(String.format("goto %s", mat.group(1)));
+        } else {
+            showMessage("Enter a number of moves.", "Error", "error");
+        }
+    }
+
+    /** Pattern describing the 'goto' command's argument. */
+    private static final Pattern PLY_PATN =
+            Pattern.compile("\\s*(\\d{1,9})\\s*$");
+
     /** Response to "Auto White" button click. */
     private void autoWhite(String dummy) {
         _pendingCommands.offer("auto white");
@@ -74,6 +112,14 @@ class GUI extends TopLevel implements View, Reporter {
         _pendingCommands.offer("manual black");
     }
 
+    /** Response to "Stop & play best" button click. */
+    private void stopSearch(String dummy) {
+        Controller controller = _controller;
+        if (controller != null) {
+            controller.hurry();
+        }
+    }
+
     /** Pattern describing the 'seed' command's arguments. */
     private static final Pattern SEED_PATN =
             Pattern.compile("\\s*(-?\\d{1,18})\\s*$");
@@ -111,21 +157,37 @@ class GUI extends TopLevel implements View, Reporter {
 
     @Override
     public void update(Controller controller) {
-        Board board = controller.board();
+        _controller = controller;
+        Board board = new Board(controller.board());
+        String label = turnLabel(board);
+        SwingUtilities.invokeLater(() -> {
+            _widget.update(board);
+            setLabel("CurrentTurn", label);
+            _turnLabel = label;
+        });
+    }
 
-        _widget.update(board);
+    /** Return the text of the turn label for BOARD: the winner, if
+     *  any, and otherwise the side to move. */
+    static String turnLabel(Board board) {
         if (board.winner() != null) {
-            setLabel("CurrentTurn",
-                     String.format("Winner: %s%s",
-                                   board.winner().toName(),
-                                   board.repeatedPosition()
-                                   ? " (repeated board)"
-                                   : ""));
-        } else {
-            setLabel("CurrentTurn",
-                     String.format("To move: %s", board.turn().toName()));
+            return String.format("Winner: %s%s", board.winner().toName(),
+                                 board.repeatedPosition()
+                                 ? " (repeated board)" : "");
         }
+        return String.format("To move: %s", board.turn().toName());
+    }
 
+    /** Show the progress of the AI's search: the search to DEPTH plies
+     *  has found principal variation PV with value SCORE.  Called on the
+     *  searching thread. */
+    @Override
+    public void iterationDone(int depth, int score, long nodes, int[] pv,
+                              long elapsed) {
+        String progress = progressLabel(depth, score, pv);
+        SwingUtilities.invokeLater(() -> {
+            setLabel("CurrentTurn", _turnLabel + progress);
+        });
     }
 
     /** Display text in resource named TEXTRESOURCE in a new window titled
@@ -164,6 +226,18 @@ class GUI extends TopLevel implements View, Reporter {
         frame.setVisible(true);
     }
 
+    /** Return the text appended to the turn label to show that the
+     *  search to DEPTH plies has found principal variation PV with value
+     *  SCORE. */
+    static String progressLabel(int depth, int score, int[] pv) {
+        StringBuilder line = new StringBuilder();
+        for (int k = 0; k < pv.length && k < PROGRESS_PV_LENGTH; k += 1) {
+            line.append(' ').append(Move.mv(pv[k]));
+        }
+        return String.format("  [depth %d, score %d:%s]", depth, score,
+                             line);
+    }
+
     @Override
     public void reportError(String fmt, Object... args) {
         showMessage(String.format(fmt, args), "Tablut Error", "error");
@@ -178,9 +252,20 @@ class GUI extends TopLevel implements View, Reporter {
     public void reportMove(Move unused) {
     }
 
+    /** Number of moves of the principal variation shown while the AI
+     *  searches. */
+    private static final int PROGRESS_PV_LENGTH = 4;
+
     /** The board widget. */
     private BoardWidget _widget;
 
+    /** The Controller I last displayed, or null. */
+    private volatile Controller _controller;
+
+    /** The text of the turn label without search progress.  Accessed only
+     *  on the event-dispatch thread. */
+    private String _turnLabel = turnLabel(new Board());
+
     /** Queue of pending commands resulting from menu clicks and moves on the
      *  board.  We use a blocking queue because the responses to clicks
      *  on the board and on menus happen in parallel to the methods that
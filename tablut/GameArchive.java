@@ -0,0 +1,233 @@
+package tablut;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static tablut.GameRecord.*;
+import static tablut.Piece.*;
+import static tablut.Utils.error;
+
+/** A reader of files in the GameRecord format that maps the file into
+ *  memory and reads each game in place, without copying or decoding
+ *  more than is asked for.  The archive is positioned at one game at a
+ *  time: next() advances to the following game, checking its checksum,
+ *  and the other methods describe the current game.
+ *  @author Matthew J. Lee
+ */
+class GameArchive {
+
+    /** An archive reading the games in FILE. */
+    GameArchive(Path file) throws IOException {
+        this(map(file));
+    }
+
+    /** An archive reading the games in BUF from its current position to
+     *  its limit. */
+    GameArchive(ByteBuffer buf) {
+        _buf = buf;
+        _next = buf.position();
+    }
+
+    /** Return the contents of FILE, mapped read-only. */
+    static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw error("%s is too large to map", file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                               channel.size());
+        }
+    }
+
+    /** Return true iff the file at BUF's current position starts with a
+     *  game record. */
+    static boolean isArchive(ByteBuffer buf) {
+        return buf.remaining() >= Integer.BYTES
+            && buf.getInt(buf.position()) == MAGIC;
+    }
+
+    /** Advance to the next complete game, returning false if there is
+     *  none.  It is an error if the next game is malformed or fails its
+     *  checksum. */
+    boolean next() {
+        int start = _next;
+        if (_buf.limit() - start < HEADER_BYTES) {
+            return false;
+        }
+        if (_buf.getInt(start) != MAGIC) {
+            throw error("no game record at byte %d", start);
+        }
+        int flags = _buf.get(start + Integer.BYTES);
+        int records = start + HEADER_BYTES
+            + ((flags & GameRecord.START) != 0 ? PackedPosition.BYTES : 0);
+        int size = recordBytes(flags);
+        int end = records;
+        while (true) {
+            if (end + Short.BYTES > _buf.limit()) {
+                return false;
+            } else if ((_buf.getShort(end) & 0xffff) == END) {
+                break;
+            }
+            end += size;
+        }
+        if (end + TRAILER_BYTES > _buf.limit()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(_buf.duplicate().limit(end + Short.BYTES + 1)
+                   .position(start));
+        if ((int) crc.getValue() != _buf.getInt(end + Short.BYTES + 1)) {
+            throw error("checksum mismatch in game at byte %d", start);
+        }
+        _start = start;
+        _flags = flags;
+        _records = records;
+        _recordBytes = size;
+        _size = (end - records) / size;
+        _result = _buf.get(end + Short.BYTES);
+        _next = end + TRAILER_BYTES;
+        return true;
+    }
+
+    /** Return the offset in the file of the current game. */
+    int offset() {
+        return _start;
+    }
+
+    /** Return true iff the records of the current game carry search
+     *  information. */
+    boolean hasSearch() {
+        return (_flags & GameRecord.SEARCH) != 0;
+    }
+
+    /** Return the position at which the current game starts. */
+    PackedPosition start() {
+        if ((_flags & GameRecord.START) == 0) {
+            return INITIAL;
+        }
+        return PackedPosition.read(_buf, _start + HEADER_BYTES);
+    }
+
+    /** Return the winner of the current game, or null if none. */
+    Piece winner() {
+        return GameRecord.winner(_result);
+    }
+
+    /** Return the number of records in the current game. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the code of record K of the current game. */
+    int code(int k) {
+        return _buf.getShort(_records + k * _recordBytes) & 0xffff;
+    }
+
+    /** Return the value found by the search for record K, or 0. */
+    int score(int k) {
+        return hasSearch() ? _buf.getInt(searchInfo(k)) : 0;
+    }
+
+    /** Return the depth of the search for record K, or 0. */
+    int depth(int k) {
+        return hasSearch() ? _buf.get(searchInfo(k) + Integer.BYTES) : 0;
+    }
+
+    /** Return the time in milliseconds of the search for record K,
+     *  or 0. */
+    int millis(int k) {
+        return hasSearch()
+            ? _buf.getInt(searchInfo(k) + Integer.BYTES + 1) : 0;
+    }
+
+    /** Return the offset of the search information of record K. */
+    private int searchInfo(int k) {
+        return _records + k * _recordBytes + Short.BYTES;
+    }
+
+    /** Set BOARD to the start of the current game and then apply its
+     *  first N records. */
+    void replay(Board board, int n) {
+        board.setPosition(start());
+        for (int k = 0; k < n; k += 1) {
+            int code = code(k);
+            if (isMove(code)) {
+                board.makeMove(code);
+            } else if (isEdit(code)) {
+                board.put(editPiece(code), editSquare(code));
+                board.clearUndo();
+            } else {
+                board.undo();
+            }
+        }
+    }
+
+    /** Write the current game to OUT as text commands: "new", or
+     *  "setboard" if it starts elsewhere than the initial position,
+     *  followed by its moves, undos, and edits (as toggle commands).
+     *  Single undone plies are paired into undo commands. */
+    void writeText(PrintStream out) {
+        Board board = new Board();
+        PackedPosition start = start();
+        if (start.equals(INITIAL)) {
+            out.println("new");
+        } else {
+            out.printf("setboard %s%n", start);
+            board.setPosition(start);
+        }
+        boolean undone = false;
+        for (int k = 0; k < _size; k += 1) {
+            int code = code(k);
+            if (isMove(code)) {
+                out.println(Move.mv(code));
+                board.makeMove(code);
+                undone = false;
+            } else if (isEdit(code)) {
+                toggle(out, board, editSquare(code), editPiece(code));
+                board.clearUndo();
+                undone = false;
+            } else {
+                if (undone) {
+                    out.println("undo");
+                }
+                undone = !undone;
+                board.undo();
+            }
+        }
+    }
+
+    /** Write to OUT the toggle commands that change the contents of SQ
+     *  on BOARD to PIECE, and make the change. */
+    private static void toggle(PrintStream out, Board board, Square sq,
+                               Piece piece) {
+        for (Piece p = board.get(sq); p != piece; p = TOGGLED[p.ordinal()]) {
+            out.printf("toggle %s%n", sq);
+        }
+        board.put(piece, sq);
+    }
+
+    /** The contents of a square after toggling one whose contents have
+     *  each ordinal, as for the toggle command. */
+    private static final Piece[] TOGGLED = { WHITE, KING, EMPTY, BLACK };
+
+    /** The records. */
+    private final ByteBuffer _buf;
+    /** Offset of the next game. */
+    private int _next;
+    /** Offsets of the current game and of its first record. */
+    private int _start, _records;
+    /** Flags of the current game. */
+    private int _flags;
+    /** Size of each record in, and number of records of, the current
+     *  game. */
+    private int _recordBytes, _size;
+    /** Result byte of the current game. */
+    private int _result;
+}
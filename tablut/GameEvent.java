@@ -0,0 +1,90 @@
+package tablut;
+
+/** A change to the game managed by a Controller, as delivered to
+ *  GameListeners.  Events are immutable.
+ *  @author Matthew J. Lee
+ */
+final class GameEvent {
+
+    /** The kinds of change. */
+    enum Kind {
+        /** The board was set to the initial position, or to a position
+         *  given by a setboard command, to start a game. */
+        NEW_GAME,
+        /** move() was made. */
+        MOVE,
+        /** The last move captured piece() from square(). */
+        CAPTURE,
+        /** move() was undone. */
+        UNDO,
+        /** The contents of square() were set to piece() other than by a
+         *  move, as by undoing a capture or editing the board. */
+        EDIT,
+        /** piece() won. */
+        WINNER
+    }
+
+    /** An event of kind KIND concerning MOVE, SQUARE, and PIECE (any of
+     *  which may be null if irrelevant to KIND), after which the board
+     *  has had MOVECOUNT moves. */
+    GameEvent(Kind kind, Move move, Square square, Piece piece,
+              int moveCount) {
+        _kind = kind;
+        _move = move;
+        _square = square;
+        _piece = piece;
+        _moveCount = moveCount;
+    }
+
+    /** Return my kind. */
+    Kind kind() {
+        return _kind;
+    }
+
+    /** Return the move made or undone, or null if not relevant. */
+    Move move() {
+        return _move;
+    }
+
+    /** Return the square affected, or null if not relevant. */
+    Square square() {
+        return _square;
+    }
+
+    /** Return the piece captured, placed, or winning, or null if not
+     *  relevant. */
+    Piece piece() {
+        return _piece;
+    }
+
+    /** Return the number of moves on the board after this event. */
+    int moveCount() {
+        return _moveCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(_kind.toString());
+        if (_move != null) {
+            result.append(' ').append(_move);
+        }
+        if (_square != null) {
+            result.append(' ').append(_square);
+        }
+        if (_piece != null) {
+            result.append(' ').append(_piece.toName());
+        }
+        return result.toString();
+    }
+
+    /** My kind. */
+    private final Kind _kind;
+    /** Move made or undone, or null. */
+    private final Move _move;
+    /** Square affected, or null. */
+    private final Square _square;
+    /** Piece captured, placed, or winning, or null. */
+    private final Piece _piece;
+    /** Number of moves on the board after this event. */
+    private final int _moveCount;
+}
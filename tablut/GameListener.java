@@ -0,0 +1,15 @@
+package tablut;
+
+import java.util.List;
+
+/** A receiver of the changes to games managed by a Controller.
+ *  @author Matthew J. Lee
+ */
+interface GameListener {
+
+    /** Receive EVENTS, the changes (in order) to the game on CONTROLLER
+     *  caused by one command.  EVENTS is never empty and may not be
+     *  modified. */
+    void gameChanged(Controller controller, List<GameEvent> events);
+
+}
@@ -0,0 +1,100 @@
+package tablut;
+
+import static tablut.Piece.*;
+
+/** The binary game-record format shared by GameRecorder and GameArchive.
+ *  A record file is a sequence of games, each laid out as
+ *
+ *      int    MAGIC
+ *      byte   flags: SEARCH if each record carries search information,
+ *             START if a start position follows
+ *      [PackedPosition.BYTES bytes: the start position, if START; the
+ *             initial position otherwise]
+ *      records, each a short code followed, if SEARCH, by the int value,
+ *             byte depth, and int time in milliseconds of the search that
+ *             chose the move (all 0 for moves not chosen by a search
+ *             and for codes other than moves)
+ *      short  END
+ *      byte   ordinal of the winner, or of EMPTY if none
+ *      int    CRC-32 of everything above, from MAGIC on
+ *
+ *  all big-endian.  A code is either a packed move (see Move), which is
+ *  less than EDIT; UNDO, which takes back one ply; or EDIT plus
+ *  (square index << 2) plus the ordinal of a piece, which puts that piece
+ *  on that square and clears the undo history, as the toggle command
+ *  does.  Records are fixed-size within a game, so the Kth may be read
+ *  directly.  A game is written as it is played, so a file whose writer
+ *  died ends with an incomplete game, which readers ignore.
+ *  @author Matthew J. Lee
+ */
+class GameRecord {
+
+    /** Marks the start of each game: "TBG1". */
+    static final int MAGIC = 0x54424731;
+
+    /** Flag set if each record carries search information. */
+    static final int SEARCH = 1;
+    /** Flag set if the game has a start position. */
+    static final int START = 2;
+
+    /** Base of edit codes. */
+    static final int EDIT = 0x8000;
+    /** Code taking back one ply. */
+    static final int UNDO = 0xC000;
+    /** Code ending a game's records. */
+    static final int END = 0xFFFF;
+
+    /** Number of bytes of a game before its start position. */
+    static final int HEADER_BYTES = Integer.BYTES + 1;
+    /** Number of bytes of search information in a record. */
+    static final int SEARCH_BYTES = 2 * Integer.BYTES + 1;
+    /** Number of bytes after the last record of a game. */
+    static final int TRAILER_BYTES = Short.BYTES + 1 + Integer.BYTES;
+
+    /** Return the size of each record in a game with flags FLAGS. */
+    static int recordBytes(int flags) {
+        return Short.BYTES + ((flags & SEARCH) != 0 ? SEARCH_BYTES : 0);
+    }
+
+    /** Return true iff CODE is a move. */
+    static boolean isMove(int code) {
+        return code < EDIT;
+    }
+
+    /** Return true iff CODE is an edit. */
+    static boolean isEdit(int code) {
+        return code >= EDIT && code < UNDO;
+    }
+
+    /** Return the edit code putting PIECE on SQ. */
+    static int edit(Square sq, Piece piece) {
+        return EDIT | sq.index() << 2 | piece.ordinal();
+    }
+
+    /** Return the square changed by edit code CODE. */
+    static Square editSquare(int code) {
+        return Square.sq((code & ~EDIT) >> 2);
+    }
+
+    /** Return the piece placed by edit code CODE. */
+    static Piece editPiece(int code) {
+        return PIECES[code & 3];
+    }
+
+    /** Return the winner denoted by result byte RESULT, or null. */
+    static Piece winner(int result) {
+        Piece winner = PIECES[result & 3];
+        return winner == EMPTY ? null : winner;
+    }
+
+    /** Return the result byte denoting WINNER (null if none). */
+    static int result(Piece winner) {
+        return (winner == null ? EMPTY : winner).ordinal();
+    }
+
+    /** The position at the start of a game unless otherwise recorded. */
+    static final PackedPosition INITIAL = new Board().packedPosition();
+
+    /** Pieces indexed by ordinal. */
+    private static final Piece[] PIECES = Piece.values();
+}
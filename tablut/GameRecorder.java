@@ -0,0 +1,203 @@
+package tablut;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static tablut.GameRecord.*;
+
+/** Writes games in the GameRecord format as they are played, appending
+ *  each move to its output when it is made.  As a GameListener, it
+ *  records the games played by a Controller; as an AI.Listener, it
+ *  attaches to each move found by a search the value, depth, and time of
+ *  that search's last completed iteration.  Games may also be described
+ *  directly with begin, move, undo, edit, and end.  A game ends at the
+ *  next begin (or NEW_GAME event) or at close(); its output is flushed
+ *  when it ends and when it is won.
+ *  @author Matthew J. Lee
+ */
+class GameRecorder implements GameListener, AI.Listener {
+
+    /** A recorder writing to OUT, with search information iff SEARCH. */
+    GameRecorder(OutputStream out, boolean search) {
+        _checked = new CheckedOutputStream(out, new CRC32());
+        _out = new DataOutputStream(_checked);
+        _flags = search ? GameRecord.SEARCH : 0;
+    }
+
+    /** Start a new game from position START, ending any game in
+     *  progress.  Nothing is written until the game's first record, so
+     *  games without records are not recorded. */
+    synchronized void begin(PackedPosition start) throws IOException {
+        end();
+        _start = start;
+        _open = true;
+        _winner = null;
+        _found = Move.NO_MOVE;
+    }
+
+    /** Record packed move MOVE.  If it is the move last found by a
+     *  search, record that search's information with it. */
+    synchronized void move(int move) throws IOException {
+        move = Move.unflagged(move);
+        if (move == _found) {
+            record(move, _score, _depth, _millis);
+        } else {
+            record(move, 0, 0, 0);
+        }
+        _found = Move.NO_MOVE;
+    }
+
+    /** Record the taking back of one ply. */
+    synchronized void undo() throws IOException {
+        record(UNDO, 0, 0, 0);
+        _winner = null;
+    }
+
+    /** Record the placing of PIECE on SQ. */
+    synchronized void edit(Square sq, Piece piece) throws IOException {
+        record(GameRecord.edit(sq, piece), 0, 0, 0);
+    }
+
+    /** Record that WINNER has won the current game, and flush my
+     *  output. */
+    synchronized void won(Piece winner) throws IOException {
+        _winner = winner;
+        _out.flush();
+    }
+
+    /** End the current game, if any, recording the last winner reported
+     *  by won (if not since undone) as its result, and flush my
+     *  output. */
+    synchronized void end() throws IOException {
+        if (_written) {
+            _out.writeShort(END);
+            _out.writeByte(result(_winner));
+            _out.writeInt((int) _checked.getChecksum().getValue());
+            _out.flush();
+        }
+        _open = _written = false;
+    }
+
+    /** End the current game and close my output. */
+    synchronized void close() throws IOException {
+        end();
+        _out.close();
+    }
+
+    /** Write a record with code CODE and search information SCORE,
+     *  DEPTH, and MILLIS, if I record it. */
+    private void record(int code, int score, int depth, long millis)
+        throws IOException {
+        if (!_open) {
+            begin(INITIAL);
+        }
+        if (!_written) {
+            _checked.getChecksum().reset();
+            boolean initial = _start.equals(INITIAL);
+            _out.writeInt(MAGIC);
+            _out.writeByte(_flags | (initial ? 0 : GameRecord.START));
+            if (!initial) {
+                _out.write(_start.toBytes());
+            }
+            _written = true;
+        }
+        _out.writeShort(code);
+        if ((_flags & GameRecord.SEARCH) != 0) {
+            _out.writeInt(score);
+            _out.writeByte(Math.min(depth, Byte.MAX_VALUE));
+            _out.writeInt((int) Math.min(millis, Integer.MAX_VALUE));
+        }
+    }
+
+    @Override
+    public void gameChanged(Controller controller, List<GameEvent> events) {
+        try {
+            boolean undoing = false;
+            for (GameEvent event : events) {
+                switch (event.kind()) {
+                case NEW_GAME:
+                    begin(controller.board().packedPosition());
+                    break;
+                case MOVE:
+                    move(event.move().packed());
+                    break;
+                case UNDO:
+                    undo();
+                    break;
+                case EDIT:
+                    if (!undoing) {
+                        edit(event.square(), event.piece());
+                    }
+                    break;
+                case WINNER:
+                    won(event.piece());
+                    break;
+                default:
+                    break;
+                }
+                undoing = event.kind() == GameEvent.Kind.UNDO
+                    || undoing && event.kind() == GameEvent.Kind.EDIT;
+            }
+        } catch (IOException excp) {
+            controller.reportError("Could not record game: %s",
+                                   excp.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void iterationDone(int depth, int score, long nodes,
+                                           int[] pv, long elapsed) {
+        if (pv.length > 0) {
+            _found = Move.unflagged(pv[0]);
+            _score = score;
+            _depth = depth;
+            _millis = elapsed / 1000000;
+        }
+    }
+
+    /** Convert the text command log read from LOG into games written to
+     *  OUT, without search information.  The commands are interpreted
+     *  as the Controller would, with both players reading from LOG;
+     *  commands that do not change the board are dropped, as are save
+     *  and load, which are not carried out. */
+    static void fromText(BufferedReader log, OutputStream out)
+        throws IOException {
+        GameRecorder recorder = new GameRecorder(out, false);
+        Controller control =
+            new Controller(new NullView(), null, Tournament.SILENT,
+                           new TextPlayer(), new TextPlayer(), false, log,
+                           new PrintStream(OutputStream.nullOutputStream()));
+        control.setFileCommands(false);
+        control.addListener(recorder);
+        control.play();
+        recorder.close();
+    }
+
+    /** The output, which maintains the checksum of the current game. */
+    private final CheckedOutputStream _checked;
+    /** The output, for writing primitive values. */
+    private final DataOutputStream _out;
+    /** Flags for games I write, less START. */
+    private final int _flags;
+    /** True while a game is in progress. */
+    private boolean _open;
+    /** True once the header of the current game has been written. */
+    private boolean _written;
+    /** The position at which the current game started. */
+    private PackedPosition _start;
+    /** The winner of the current game, or null. */
+    private Piece _winner;
+    /** The unflagged move found by the last search iteration reported,
+     *  or NO_MOVE if none since the last move. */
+    private int _found;
+    /** Value and depth of the last search iteration reported. */
+    private int _score, _depth;
+    /** Time in milliseconds of the last search iteration reported. */
+    private long _millis;
+}
@@ -0,0 +1,380 @@
+package tablut;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A server hosting many concurrent Tablut sessions in one process.
+ *  Each TCP connection to the loopback port is one session, speaking
+ *  the same text command language as the standard input (see
+ *  Controller).  All connections are multiplexed on one thread through
+ *  a non-blocking Selector; AI moves are computed on a fixed pool of
+ *  worker threads and handed back to the selector thread, so that a
+ *  session's Controller is only ever used by one thread at a time.
+ *
+ *  Sessions cost little while idle or slow: a session holds no buffers
+ *  beyond its partial input line, its unprocessed lines, and its unsent
+ *  output.  A session stops being read while it has more than
+ *  HIGH_WATER bytes of unsent output or MAX_PENDING_LINES unprocessed
+ *  lines, and is closed if its unsent output exceeds MAX_OUTPUT or an
+ *  input line exceeds MAX_LINE characters.  Each session has at most
+ *  one AI move in progress, so the workers' queue is bounded by the
+ *  number of sessions.  A session that fails unexpectedly is closed
+ *  without disturbing the others, and sessions may not save or load
+ *  files on the server.
+ *  @author Matthew J. Lee
+ */
+class GameServer {
+
+    /** Maximum length of an input line. */
+    static final int MAX_LINE = 1024;
+    /** Maximum number of unprocessed input lines per session. */
+    static final int MAX_PENDING_LINES = 64;
+    /** Unsent output size above which a session's input is not read. */
+    static final int HIGH_WATER = 16 * 1024;
+    /** Unsent output size above which a session is dropped. */
+    static final int MAX_OUTPUT = 256 * 1024;
+
+    /** A server listening on loopback port PORT (0 for any free port),
+     *  computing AI moves on WORKERS threads with players created from
+     *  AUTOPLAYERTEMPLATE. */
+    GameServer(int port, int workers, Player autoPlayerTemplate)
+        throws IOException {
+        _autoPlayerTemplate = autoPlayerTemplate;
+        _workers = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "tablut-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _selector = Selector.open();
+        _server = ServerSocketChannel.open();
+        _server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                           port));
+        _server.configureBlocking(false);
+        _server.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /** Return the port on which I am listening. */
+    int port() {
+        return _server.socket().getLocalPort();
+    }
+
+    /** Serve sessions until close() is called. */
+    void run() throws IOException {
+        while (_server.isOpen()) {
+            _selector.select();
+            Connection conn;
+            while ((conn = _completed.poll()) != null) {
+                conn.moveComplete();
+            }
+            while ((conn = _writeRequests.poll()) != null) {
+                conn.updateInterest();
+            }
+            Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                conn = (Connection) key.attachment();
+                if (key.isWritable()) {
+                    conn.send();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    conn.receive();
+                }
+            }
+        }
+    }
+
+    /** Stop accepting sessions, close all of them, and make run()
+     *  return. */
+    void close() throws IOException {
+        _server.close();
+        for (SelectionKey key : _selector.keys()) {
+            key.channel().close();
+        }
+        _selector.wakeup();
+        _workers.shutdownNow();
+    }
+
+    /** Accept a pending connection, if any, and start its session. */
+    private void accept() throws IOException {
+        SocketChannel channel = _server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection conn = new Connection(channel);
+        conn._key = channel.register(_selector, SelectionKey.OP_READ, conn);
+        conn.start();
+    }
+
+    /** One client connection and its session. */
+    private class Connection {
+
+        /** A session on CHANNEL. */
+        Connection(SocketChannel channel) {
+            _channel = channel;
+            _output = new PrintStream(new SessionOutput(), false);
+            TextReporter reporter = new TextReporter(_output, _output);
+            _controller =
+                new Controller(new NullView(), null, reporter,
+                               new TextPlayer(), _autoPlayerTemplate, false,
+                               new BufferedReader(new StringReader("")),
+                               _output);
+            _controller.setFileCommands(false);
+        }
+
+        /** Greet the client and begin play. */
+        void start() {
+            _output.println("Tablut 61B, staff version 1.0");
+            _controller.start();
+            pump();
+        }
+
+        /** Read whatever input is available, splitting it into lines, and
+         *  process them. */
+        void receive() {
+            ByteBuffer buf = _readBuffer;
+            buf.clear();
+            int n;
+            try {
+                n = _channel.read(buf);
+            } catch (IOException excp) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                _inputDone = true;
+            }
+            for (int i = 0; i < Math.max(n, 0); i += 1) {
+                char c = (char) (buf.get(i) & 0x7f);
+                if (c == '\n') {
+                    _lines.add(_partial.toString());
+                    _partial.setLength(0);
+                } else if (c != '\r') {
+                    _partial.append(c);
+                    if (_partial.length() > MAX_LINE) {
+                        close();
+                        return;
+                    }
+                }
+            }
+            if (_inputDone && _partial.length() > 0) {
+                _lines.add(_partial.toString());
+                _partial.setLength(0);
+            }
+            pump();
+        }
+
+        /** Process input lines until one starts an AI move, no lines
+         *  remain, or the session ends; then flush output and update the
+         *  selector's interest in me. */
+        void pump() {
+            while (!_thinking && !_quitting && !_lines.isEmpty()) {
+                if (!execute(_lines.poll().trim())) {
+                    return;
+                }
+                think();
+            }
+            if (!_quitting && !_thinking && _inputDone) {
+                if (!execute("quit")) {
+                    return;
+                }
+                _quitting = true;
+            }
+            if (!_quitting && !_thinking && _lines.isEmpty()) {
+                _output.print("> ");
+            }
+            _output.flush();
+            updateInterest();
+        }
+
+        /** Execute COMMAND in my session, returning true unless it failed
+         *  unexpectedly, in which case my connection is closed. */
+        boolean execute(String command) {
+            try {
+                _controller.execute(command);
+            } catch (RuntimeException | Error excp) {
+                _quitting = true;
+                close();
+                return false;
+            }
+            _quitting = !_controller.playing();
+            return true;
+        }
+
+        /** If an automated player is to move, compute its move on a
+         *  worker thread. */
+        void think() {
+            Player player = _controller.playerToMove();
+            if (_quitting || player == null || player.isManual()) {
+                return;
+            }
+            _thinking = true;
+            _workers.execute(() -> {
+                try {
+                    _move = player.myMove();
+                } catch (RuntimeException | Error excp) {
+                    _move = "quit";
+                }
+                _completed.add(this);
+                _selector.wakeup();
+            });
+        }
+
+        /** Called on the selector thread when an AI move is ready. */
+        void moveComplete() {
+            _thinking = false;
+            if (!_channel.isOpen()) {
+                return;
+            }
+            if (execute(_move)) {
+                think();
+                pump();
+            }
+        }
+
+        /** Write as much unsent output as the channel will take. */
+        void send() {
+            synchronized (this) {
+                try {
+                    ByteBuffer buf = ByteBuffer.wrap(_out, 0, _outLen);
+                    _channel.write(buf);
+                    _outLen = buf.remaining();
+                    System.arraycopy(_out, buf.position(), _out, 0, _outLen);
+                } catch (IOException excp) {
+                    close();
+                    return;
+                }
+            }
+            updateInterest();
+        }
+
+        /** Set the selector's interest in me according to my state,
+         *  closing me if I have finished or overflowed. */
+        void updateInterest() {
+            if (!_key.isValid()) {
+                return;
+            }
+            int unsent;
+            synchronized (this) {
+                unsent = _outLen;
+            }
+            if (unsent > MAX_OUTPUT || (_quitting && unsent == 0)) {
+                close();
+                return;
+            }
+            int ops = unsent > 0 ? SelectionKey.OP_WRITE : 0;
+            if (!_quitting && !_inputDone && unsent <= HIGH_WATER
+                && _lines.size() < MAX_PENDING_LINES) {
+                ops |= SelectionKey.OP_READ;
+            }
+            _key.interestOps(ops);
+        }
+
+        /** Close my connection. */
+        void close() {
+            _key.cancel();
+            try {
+                _channel.close();
+            } catch (IOException excp) {
+                /* Ignore IOException. */
+            }
+        }
+
+        /** Append BYTES[OFF .. OFF+LEN-1] to my unsent output. */
+        synchronized void queue(byte[] bytes, int off, int len) {
+            if (_outLen + len > _out.length) {
+                _out = Arrays.copyOf(_out,
+                                     Math.max(2 * _out.length, _outLen + len));
+            }
+            System.arraycopy(bytes, off, _out, _outLen, len);
+            _outLen += len;
+        }
+
+        /** An OutputStream that queues its bytes as my unsent output and
+         *  asks the selector thread to send them when flushed. */
+        private class SessionOutput extends OutputStream {
+            @Override
+            public void write(int b) {
+                queue(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                queue(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                _writeRequests.add(Connection.this);
+                _selector.wakeup();
+            }
+        }
+
+        /** My channel. */
+        private final SocketChannel _channel;
+        /** My selection key. */
+        private SelectionKey _key;
+        /** My session's controller. */
+        private final Controller _controller;
+        /** Output stream for my session's prompts, reports, and dumps. */
+        private final PrintStream _output;
+        /** Partial input line. */
+        private final StringBuilder _partial = new StringBuilder();
+        /** Complete, unprocessed input lines. */
+        private final ArrayDeque<String> _lines = new ArrayDeque<>();
+        /** Unsent output, in _out[0 .. _outLen-1]. */
+        private byte[] _out = new byte[0];
+        /** Amount of unsent output. */
+        private int _outLen;
+        /** True while an AI move is being computed. */
+        private boolean _thinking;
+        /** The AI move most recently computed. */
+        private volatile String _move;
+        /** True once the session has quit. */
+        private boolean _quitting;
+        /** True once the client has closed its side of the connection. */
+        private boolean _inputDone;
+    }
+
+    /** Template for the sessions' automated players. */
+    private final Player _autoPlayerTemplate;
+    /** Threads computing AI moves. */
+    private final ExecutorService _workers;
+    /** Selector multiplexing all channels. */
+    private final Selector _selector;
+    /** The listening channel. */
+    private final ServerSocketChannel _server;
+    /** Buffer for reads, shared by all connections on the selector
+     *  thread. */
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(4096);
+    /** Connections whose AI moves are ready. */
+    private final ConcurrentLinkedQueue<Connection> _completed =
+        new ConcurrentLinkedQueue<>();
+    /** Connections with newly flushed output. */
+    private final ConcurrentLinkedQueue<Connection> _writeRequests =
+        new ConcurrentLinkedQueue<>();
+}
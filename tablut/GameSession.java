@@ -0,0 +1,45 @@
+package tablut;
+
+import java.io.BufferedReader;
+import java.io.PrintStream;
+
+/** A game (or series of games) of Tablut played over its own input and
+ *  output.  A session owns its Controller, Board, players, and
+ *  reporter, and shares no mutable state with other sessions, so any
+ *  number of sessions may run concurrently in one JVM, each in its own
+ *  thread.  Sessions never exit the program on errors.
+ *  @author Matthew J. Lee
+ */
+class GameSession implements Runnable {
+
+    /** A session reading commands from INPUT and writing all output,
+     *  including error messages, to OUTPUT.  Automated players are
+     *  created from AUTOPLAYERTEMPLATE and manual players read from
+     *  INPUT. */
+    GameSession(BufferedReader input, PrintStream output,
+                Player autoPlayerTemplate) {
+        _output = output;
+        _controller =
+            new Controller(new NullView(), null,
+                           new TextReporter(output, output),
+                           new TextPlayer(), autoPlayerTemplate, false,
+                           input, output);
+    }
+
+    /** Return my controller. */
+    Controller controller() {
+        return _controller;
+    }
+
+    /** Play until the input is exhausted or a quit command. */
+    @Override
+    public void run() {
+        _controller.play();
+        _output.flush();
+    }
+
+    /** The controller for my games. */
+    private final Controller _controller;
+    /** Where my output goes. */
+    private final PrintStream _output;
+}
@@ -1,10 +1,21 @@
 package tablut;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
 
 import static tablut.Utils.error;
 
@@ -19,12 +30,53 @@ public class Main {
     public static void main(String... args) {
 
         CommandArgs options =
-            new CommandArgs("--display --testing --strict --log={0,1} --={0,2}",
+            new CommandArgs("--display --testing --strict --log={0,1} "
+                            + "--tournament={0,1} --threads={0,1} "
+                            + "--time={0,1} --depth={0,1} --opening={0,1} "
+                            + "--seed={0,1} --server={0,1} --engine "
+                            + "--spectate={0,1} --record={0,1} --convert "
+                            + "--build-index={0,1} --index={0,1} "
+                            + "--analyze={0,1} --validate --tt={0,1} "
+                            + "--={0,2}",
                             args);
         if (!options.ok()) {
-            System.err.println("Usage: java tablut.Main [--display]"
-                               + " [--log=FILE] [--strict] [INPUT [OUTPUT]]");
-            System.exit(1);
+            usage();
+        }
+
+        if (options.contains("--convert")) {
+            convert(options.get("--"));
+            System.exit(0);
+        }
+        if (options.contains("--validate")) {
+            validate(options);
+        }
+        if (options.contains("--analyze")) {
+            analyze(options);
+            System.exit(0);
+        }
+        if (options.contains("--build-index")) {
+            buildIndex(options);
+            System.exit(0);
+        }
+        if (options.contains("--tournament")) {
+            runTournament(options);
+            System.exit(0);
+        }
+        if (options.contains("--engine")) {
+            Engine engine =
+                new Engine(new BufferedReader(new InputStreamReader(System.in)),
+                           System.out);
+            TranspositionTable table =
+                sharedTable(options, Engine.TABLE_BITS);
+            if (table != null) {
+                engine.setSharedTable(table);
+            }
+            engine.run();
+            System.exit(0);
+        }
+        if (options.contains("--server")) {
+            runServer(options);
+            System.exit(0);
         }
 
         List<String> files = options.get("--");
@@ -32,8 +84,8 @@ public class Main {
             try {
                 System.setIn(new FileInputStream(files.get(0)));
                 if (files.size() > 1) {
-                    FileOutputStream out = new FileOutputStream(files.get(1));
-                    System.setOut(new PrintStream(out, true));
+                    System.setOut(AsyncOutput.printStream(
+                        new FileOutputStream(files.get(1))));
                 }
             } catch (IOException excp) {
                 System.err.printf("Could not open file: %s%n",
@@ -48,6 +100,11 @@ public class Main {
             }
         }
 
+        if (files.size() < 2) {
+            System.setOut(AsyncOutput.printStream(
+                new FileOutputStream(FileDescriptor.out)));
+        }
+
         Controller control = getController(options);
         System.out.println("Tablut 61B, staff version 1.0");
 
@@ -63,6 +120,316 @@ public class Main {
 
     }
 
+    /** Print a usage message and exit. */
+    private static void usage() {
+        System.err.println("Usage: java tablut.Main [--display]"
+                           + " [--log=FILE] [--strict] [--spectate=PORT]"
+                           + " [--record=FILE] [--index=INDEX]"
+                           + " [--tt=FILE] [INPUT [OUTPUT]]");
+        System.err.println("       java tablut.Main --tournament=GAMES"
+                           + " [--threads=N] [--time=MS[,MS]]"
+                           + " [--depth=D[,D]] [--opening=PLIES]"
+                           + " [--seed=N] [--record=FILE]");
+        System.err.println("       java tablut.Main --server=PORT"
+                           + " [--threads=N] [--time=MS] [--depth=D]");
+        System.err.println("       java tablut.Main --engine [--tt=FILE]");
+        System.err.println("       java tablut.Main --convert IN OUT");
+        System.err.println("       java tablut.Main --build-index=INDEX"
+                           + " [--threads=N] ARCHIVE [ARCHIVE]");
+        System.err.println("       java tablut.Main --analyze=OUTDIR"
+                           + " [--threads=N] [--depth=D] [--time=MS]"
+                           + " INPUT [INPUT]");
+        System.err.println("       java tablut.Main --validate INPUT"
+                           + " [INPUT]");
+        System.exit(1);
+    }
+
+    /** Play a headless tournament between two AI configurations as
+     *  indicated by OPTIONS, reporting the results on the standard
+     *  output.  The --time and --depth options give the limits for the
+     *  first engine, optionally followed by those for the second. */
+    private static void runTournament(CommandArgs options) {
+        try {
+            int games = Integer.parseInt(options.getFirst("--tournament"));
+            int threads = options.contains("--threads")
+                ? Integer.parseInt(options.getFirst("--threads"))
+                : Runtime.getRuntime().availableProcessors();
+            long[] times = limits(options, "--time", DEFAULT_MOVE_TIME);
+            long[] depths = limits(options, "--depth", 0);
+            int opening = options.contains("--opening")
+                ? Integer.parseInt(options.getFirst("--opening"))
+                : DEFAULT_OPENING;
+            long seed = options.contains("--seed")
+                ? Long.parseLong(options.getFirst("--seed"))
+                : System.nanoTime();
+            if (games <= 0 || threads <= 0 || opening < 0) {
+                usage();
+            }
+            if (options.contains("--tt")) {
+                System.err.println("--tt cannot be used in a tournament:"
+                                   + " the engines must not share a table");
+                System.exit(1);
+            }
+            AI a = new AI(), b = new AI();
+            a.setLimits((int) depths[0], times[0]);
+            b.setLimits((int) depths[1], times[1]);
+            Tournament tournament =
+                new Tournament(a, b, games, threads, opening, seed,
+                               TOURNAMENT_MAX_PLIES);
+            OutputStream record = null;
+            if (options.contains("--record")) {
+                record = new BufferedOutputStream(
+                    new FileOutputStream(options.getFirst("--record")));
+                tournament.recordTo(record);
+            }
+            tournament.run(System.out);
+            if (record != null) {
+                record.close();
+            }
+        } catch (NumberFormatException excp) {
+            usage();
+        } catch (IOException excp) {
+            System.err.printf("Could not record games: %s%n",
+                              excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Convert FILES[0], a game record file or a text command log, into
+     *  the other format, written to FILES[1].  A text log written here
+     *  makes white a manual player first, so that it replays as
+     *  recorded. */
+    private static void convert(List<String> files) {
+        if (files.size() != 2) {
+            usage();
+        }
+        try {
+            Path input = Path.of(files.get(0));
+            ByteBuffer buf = GameArchive.map(input);
+            if (GameArchive.isArchive(buf)) {
+                GameArchive archive = new GameArchive(buf);
+                try (PrintStream out = new PrintStream(
+                         new BufferedOutputStream(
+                             new FileOutputStream(files.get(1))))) {
+                    out.println("manual white");
+                    while (archive.next()) {
+                        archive.writeText(out);
+                    }
+                    out.println("quit");
+                }
+            } else {
+                try (BufferedReader log = Files.newBufferedReader(input);
+                     OutputStream out = new BufferedOutputStream(
+                         new FileOutputStream(files.get(1)))) {
+                    GameRecorder.fromText(log, out);
+                }
+            }
+        } catch (IOException | IllegalArgumentException excp) {
+            System.err.printf("Could not convert: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Annotate the games in the logs or game records given as arguments
+     *  in OPTIONS (each a file, or a directory of them) with searches
+     *  limited by --depth and --time, on --threads threads, writing the
+     *  results to the directory given by --analyze. */
+    private static void analyze(CommandArgs options) {
+        try {
+            int threads = options.contains("--threads")
+                ? Integer.parseInt(options.getFirst("--threads"))
+                : Runtime.getRuntime().availableProcessors();
+            long[] times = limits(options, "--time", 0);
+            long[] depths = limits(options, "--depth", 0);
+            if (times[0] == 0 && depths[0] == 0) {
+                depths[0] = DEFAULT_ANALYSIS_DEPTH;
+            }
+            List<Path> inputs = inputFiles(options.get("--"));
+            if (inputs.isEmpty() || threads <= 0) {
+                usage();
+            }
+            new Analyzer((int) depths[0], times[0], threads,
+                         Path.of(options.getFirst("--analyze")))
+                .run(inputs, System.out);
+        } catch (NumberFormatException excp) {
+            usage();
+        } catch (IOException excp) {
+            System.err.printf("Could not analyze: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Return the files named by NAMES, replacing each directory by the
+     *  regular files in it, in order of name. */
+    private static List<Path> inputFiles(List<String> names)
+        throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        for (String name : names) {
+            Path input = Path.of(name);
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> files = Files.list(input)) {
+                    files.filter(Files::isRegularFile).sorted()
+                        .forEach(inputs::add);
+                }
+            } else {
+                inputs.add(input);
+            }
+        }
+        return inputs;
+    }
+
+    /** Check the logs or game records given as arguments in OPTIONS
+     *  (each a file, or a directory of them) by replaying them, printing
+     *  the first error or the result for each, and exit with a non-zero
+     *  code if any has an error. */
+    private static void validate(CommandArgs options) {
+        int failures = 0;
+        long moves = 0;
+        long start = System.nanoTime();
+        try {
+            List<Path> inputs = inputFiles(options.get("--"));
+            if (inputs.isEmpty()) {
+                usage();
+            }
+            Replayer replayer = new Replayer();
+            for (Path input : inputs) {
+                ByteBuffer buf = GameArchive.map(input);
+                boolean ok = GameArchive.isArchive(buf)
+                    ? replayer.replayArchive(buf)
+                    : replayer.replayLog(
+                        StandardCharsets.ISO_8859_1.decode(buf).toString());
+                moves += replayer.moves();
+                if (ok) {
+                    Piece winner = replayer.winner();
+                    System.out.printf("%s: %d games, %d moves, %s%n", input,
+                                      replayer.games(), replayer.moves(),
+                                      winner == null ? "no winner"
+                                      : winner.toName() + " wins");
+                } else {
+                    failures += 1;
+                    System.out.printf("%s:%s%n", input, replayer.error());
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Validated %d files (%d with errors), %d moves"
+                              + " in %.2f s (%.0f moves/s)%n",
+                              inputs.size(), failures, moves, seconds,
+                              moves / Math.max(seconds, 1e-9));
+        } catch (IOException excp) {
+            System.err.printf("Could not validate: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /** Build the position index named by the --build-index option in
+     *  OPTIONS from the game record files given as arguments, on
+     *  --threads threads. */
+    private static void buildIndex(CommandArgs options) {
+        List<Path> archives = new ArrayList<>();
+        for (String name : options.get("--")) {
+            archives.add(Path.of(name));
+        }
+        try {
+            int threads = options.contains("--threads")
+                ? Integer.parseInt(options.getFirst("--threads"))
+                : Runtime.getRuntime().availableProcessors();
+            if (archives.isEmpty() || threads <= 0) {
+                usage();
+            }
+            long start = System.currentTimeMillis();
+            int games =
+                PositionIndex.build(archives,
+                                    Path.of(options.getFirst("--build-index")),
+                                    threads);
+            System.out.printf("Indexed %d games in %.1f s%n", games,
+                              (System.currentTimeMillis() - start) / 1000.0);
+        } catch (NumberFormatException excp) {
+            usage();
+        } catch (IOException | IllegalArgumentException excp) {
+            System.err.printf("Could not build index: %s%n",
+                              excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Serve games on the loopback port given in OPTIONS until killed,
+     *  computing AI moves on --threads threads within the limits given
+     *  by --time and --depth. */
+    private static void runServer(CommandArgs options) {
+        try {
+            int port = Integer.parseInt(options.getFirst("--server"));
+            int threads = options.contains("--threads")
+                ? Integer.parseInt(options.getFirst("--threads"))
+                : Runtime.getRuntime().availableProcessors();
+            long[] times = limits(options, "--time", 0);
+            long[] depths = limits(options, "--depth", 0);
+            if (port < 0 || threads <= 0) {
+                usage();
+            }
+            AI template = new AI();
+            template.setLimits((int) depths[0], times[0]);
+            GameServer server = new GameServer(port, threads, template);
+            System.out.printf("Serving on port %d%n", server.port());
+            server.run();
+        } catch (NumberFormatException excp) {
+            usage();
+        } catch (IOException excp) {
+            System.err.printf("Server error: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Return the transposition table mapped from the file given by the
+     *  --tt option in OPTIONS, creating the file with 2**LOG2SIZE entries
+     *  if need be, or null if there is no such option. */
+    private static TranspositionTable sharedTable(CommandArgs options,
+                                                  int log2Size) {
+        if (!options.contains("--tt")) {
+            return null;
+        }
+        try {
+            return TranspositionTable.map(Path.of(options.getFirst("--tt")),
+                                          log2Size);
+        } catch (IOException | IllegalArgumentException excp) {
+            System.err.printf("Could not map transposition table: %s%n",
+                              excp.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /** Return the pair of limits given by the value of OPTION in OPTIONS,
+     *  which has the form A or A,B (in which case B is the same as A), or
+     *  both DEFAULT if the option is absent. */
+    private static long[] limits(CommandArgs options, String option,
+                                 long dflt) {
+        if (!options.contains(option)) {
+            return new long[] { dflt, dflt };
+        }
+        String[] values = options.getFirst(option).split(",");
+        if (values.length > 2) {
+            throw new NumberFormatException("too many values");
+        }
+        long a = Long.parseLong(values[0]);
+        return new long[] {
+            a, values.length == 1 ? a : Long.parseLong(values[1])
+        };
+    }
+
+    /** Default time per move in tournament games, in milliseconds. */
+    private static final long DEFAULT_MOVE_TIME = 100;
+    /** Default search depth for --analyze. */
+    private static final int DEFAULT_ANALYSIS_DEPTH = 4;
+    /** Default number of random opening plies in tournament games. */
+    private static final int DEFAULT_OPENING = 4;
+    /** Tournament games lasting this many plies are drawn. */
+    private static final int TOURNAMENT_MAX_PLIES = 400;
+
+    /** Log base 2 of the transposition table size in interactive
+     *  games. */
+    private static final int INTERACTIVE_TABLE_BITS = 20;
+
     /** Return an appropriate Controller as indicated by OPTIONS. */
     private static Controller getController(CommandArgs options) {
         Player manualPlayer;
@@ -90,13 +457,85 @@ public class Main {
         log = null;
         if (options.contains("--log")) {
             try {
-                log = new PrintStream(options.getFirst("--log"));
+                log = AsyncOutput.printStream(
+                    new FileOutputStream(options.getFirst("--log")));
             } catch (IOException excp) {
                 throw error("Could not open log file");
             }
         }
 
-        return new Controller(view, log, reporter, manualPlayer,
-                              new AI(), options.contains("--strict"));
+        Spectators spectators = null;
+        if (options.contains("--spectate")) {
+            try {
+                spectators = new Spectators(
+                    Integer.parseInt(options.getFirst("--spectate")));
+                spectators.start();
+            } catch (NumberFormatException | IOException excp) {
+                throw error("Could not start spectator feed");
+            }
+        }
+
+        GameRecorder recorder = null;
+        if (options.contains("--record")) {
+            try {
+                recorder = new GameRecorder(
+                    new AsyncOutput(
+                        new FileOutputStream(options.getFirst("--record"))),
+                    true);
+            } catch (IOException excp) {
+                throw error("Could not open record file");
+            }
+            GameRecorder finished = recorder;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    finished.close();
+                } catch (IOException excp) {
+                    /* Ignore IOException. */
+                }
+            }));
+        }
+
+        List<AI.Listener> searchListeners = new ArrayList<>();
+        for (AI.Listener listener
+                 : new AI.Listener[] { gui, spectators, recorder }) {
+            if (listener != null) {
+                searchListeners.add(listener);
+            }
+        }
+        AI autoPlayer = new AI();
+        autoPlayer.setPondering(true);
+        autoPlayer.setTableSize(INTERACTIVE_TABLE_BITS);
+        TranspositionTable table =
+            sharedTable(options, INTERACTIVE_TABLE_BITS);
+        if (table != null) {
+            autoPlayer.setSharedTable(table);
+        }
+        if (searchListeners.size() == 1) {
+            autoPlayer.setListener(searchListeners.get(0));
+        } else if (searchListeners.size() > 1) {
+            autoPlayer.setListener((depth, score, nodes, pv, elapsed) -> {
+                for (AI.Listener listener : searchListeners) {
+                    listener.iterationDone(depth, score, nodes, pv, elapsed);
+                }
+            });
+        }
+        Controller control =
+            new Controller(view, log, reporter, manualPlayer,
+                           autoPlayer, options.contains("--strict"));
+        if (spectators != null) {
+            control.addListener(spectators);
+        }
+        if (recorder != null) {
+            control.addListener(recorder);
+        }
+        if (options.contains("--index")) {
+            try {
+                control.setPositionIndex(new PositionIndex(
+                    Path.of(options.getFirst("--index"))));
+            } catch (IOException excp) {
+                throw error("Could not open position index");
+            }
+        }
+        return control;
     }
 }
@@ -6,6 +6,7 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 import static tablut.Square.sq;
+import static tablut.Square.BOARD_SIZE;
 import static tablut.Square.NUM_SQUARES;
 import static tablut.Square.ROOK_SQUARES;
 import static tablut.Square.SQUARE_LIST;
@@ -25,6 +26,63 @@ final class Move {
     static final Pattern MOVE_PATTERN =
         Pattern.compile(String.format("(([a-i])([1-9]))-(?:([a-i])|([1-9]))"));
 
+    /* Moves are also represented as packed ints, which is how Board and
+     * the AI generate, make, and store them.  A packed move holds the index
+     * of its from square in bits 0-6 and the index of its to square in bits
+     * 7-13.  Bit 14 (KING_FLAG) is set by Board's move generator when the
+     * moving piece is the king.  Bit 15 (CAPTURE_FLAG) is set only in
+     * Board's undo records, when the move made captured; generated moves
+     * never carry it, since finding captures would slow generation.  The
+     * flags are advisory: two packed moves denote the same move iff their
+     * unflagged() values are equal.  All packed moves fit in 16 bits and
+     * so may be stored as shorts.  NO_MOVE, which would denote a1-a1, is
+     * never a valid move. */
+
+    /** Width of a square index in a packed move. */
+    static final int SQ_BITS = 7;
+    /** Mask extracting a square index. */
+    static final int SQ_MASK = (1 << SQ_BITS) - 1;
+    /** Flag marking a move of the king. */
+    static final int KING_FLAG = 1 << (2 * SQ_BITS);
+    /** Flag marking a capturing move. */
+    static final int CAPTURE_FLAG = KING_FLAG << 1;
+    /** Mask extracting the from and to fields of a packed move. */
+    static final int MOVE_MASK = KING_FLAG - 1;
+    /** A packed value that denotes no move. */
+    static final int NO_MOVE = 0;
+
+    /** Return the packed move from the square with index FROM to that with
+     *  index TO, without flags. */
+    static int pack(int from, int to) {
+        return from | (to << SQ_BITS);
+    }
+
+    /** Return the index of the from square of packed move MOVE. */
+    static int from(int move) {
+        return move & SQ_MASK;
+    }
+
+    /** Return the index of the to square of packed move MOVE. */
+    static int to(int move) {
+        return (move >> SQ_BITS) & SQ_MASK;
+    }
+
+    /** Return packed move MOVE with its flags cleared. */
+    static int unflagged(int move) {
+        return move & MOVE_MASK;
+    }
+
+    /** Return the unique Move denoted by packed move MOVE (ignoring its
+     *  flags), or null if MOVE does not denote a rook move. */
+    static Move mv(int move) {
+        return MOVES[from(move)][to(move)];
+    }
+
+    /** Return my packed representation, without flags. */
+    int packed() {
+        return pack(_from.index(), _to.index());
+    }
+
     /** Return the square moved from. */
     Square from() {
         return _from;
@@ -38,37 +96,66 @@ final class Move {
     /** Return the unique Move FROM-TO, or null if this is not a valid
      *  move. */
     static Move mv(Square from, Square to) {
-        if ((from.row() != to.row() && from.col() != to.col()) || from == to) {
-            return null;
-        }
-
-        if (MOVES[from.index()][to.index()] == null) {
-            MOVES[from.index()][to.index()] = new Move(from, to);
-        }
         return MOVES[from.index()][to.index()];
     }
 
     /** Return the Move denoted by STR, if STR denotes a move with
      *  valid syntax, and null otherwise. */
     static Move mv(String str) {
-        _moveMatcher.reset(str);
-        if (_moveMatcher.matches()) {
-            Square from = sq(_moveMatcher.group(1));
+        Matcher moveMatcher = MOVE_PATTERN.matcher(str);
+        if (moveMatcher.matches()) {
+            Square from = sq(moveMatcher.group(1));
             Square to;
-            if (_moveMatcher.group(5) == null) {
-                to = sq(_moveMatcher.group(4), _moveMatcher.group(3));
+            if (moveMatcher.group(5) == null) {
+                to = sq(moveMatcher.group(4), moveMatcher.group(3));
             } else {
-                to = sq(_moveMatcher.group(2), _moveMatcher.group(5));
+                to = sq(moveMatcher.group(2), moveMatcher.group(5));
             }
             return mv(from, to);
         }
         return null;
     }
 
+    /** Return the packed move denoted by characters START .. END-1 of
+     *  TEXT if they have the form of MOVE_PATTERN (with letters in either
+     *  case), and otherwise NO_MOVE.  Unlike mv(String), this allocates
+     *  nothing.  The result is not necessarily a rook move. */
+    static int parse(CharSequence text, int start, int end) {
+        if (end - start != 4 || text.charAt(start + 2) != '-') {
+            return NO_MOVE;
+        }
+        int col = column(text.charAt(start)), row = row(text.charAt(start + 1));
+        if (col < 0 || row < 0) {
+            return NO_MOVE;
+        }
+        char last = text.charAt(start + 3);
+        int toCol = column(last), toRow = row(last);
+        if (toCol >= 0) {
+            toRow = row;
+        } else if (toRow >= 0) {
+            toCol = col;
+        } else {
+            return NO_MOVE;
+        }
+        return pack(row * BOARD_SIZE + col, toRow * BOARD_SIZE + toCol);
+    }
+
+    /** Return the column denoted by C, a letter in either case, or -1 if
+     *  it denotes none. */
+    static int column(char c) {
+        int col = Character.toLowerCase(c) - 'a';
+        return col >= 0 && col < BOARD_SIZE ? col : -1;
+    }
+
+    /** Return the row denoted by C, a digit, or -1 if it denotes none. */
+    static int row(char c) {
+        int row = c - '1';
+        return row >= 0 && row < BOARD_SIZE ? row : -1;
+    }
+
     /** Return true iff STR has the right format for a Move. */
     static boolean isGrammaticalMove(String str) {
-        _moveMatcher.reset(str);
-        return _moveMatcher.matches();
+        return MOVE_PATTERN.matcher(str).matches();
     }
 
     @Override
@@ -109,7 +196,10 @@ final class Move {
         return (_from.index() << 6) + _to.index();
     }
 
-    /** The cache of all Moves created. */
+    /** MOVES[i][j] is the Move from the square with index i to that with
+     *  index j, or null if there is none.  It is filled in completely
+     *  when this class is initialized and never changed afterwards, so it
+     *  may be shared freely among threads. */
     private static final Move[][] MOVES = new Move[NUM_SQUARES][NUM_SQUARES];
 
     /** ROOK_MOVES[i][d] is a list of all rook moves in direction
@@ -120,11 +210,13 @@ final class Move {
 
     static {
         for (Square sq0 : SQUARE_LIST) {
-            int r0 = sq0.row(), c0 = sq0.col(), i0 = sq0.index();
+            int i0 = sq0.index();
             for (int d = 0; d < 4; d += 1) {
                 MoveList L = ROOK_MOVES[i0][d] = new MoveList();
                 for (Square sq1 : ROOK_SQUARES[i0][d]) {
-                    L.add(mv(sq0, sq1));
+                    Move move = new Move(sq0, sq1);
+                    MOVES[i0][sq1.index()] = move;
+                    L.add(move);
                 }
             }
         }
@@ -133,7 +225,5 @@ final class Move {
     /** The components of this Move. */
     private final Square _from, _to;
     /** The printed form of this Move. */
-    private String _str;
-    /**  A utility Matcher for moves, using MOVE_PATTERN. */
-    private static Matcher _moveMatcher = MOVE_PATTERN.matcher("");
+    private final String _str;
 }
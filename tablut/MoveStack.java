@@ -0,0 +1,73 @@
+package tablut;
+
+import java.util.Arrays;
+
+/** A stack of packed moves, as for the moves undone since the last move
+ *  made, which "redo" and "goto" make again.
+ *  @author Matthew J. Lee
+ */
+class MoveStack {
+
+    /** Push MOVE. */
+    void push(int move) {
+        if (_size == _moves.length) {
+            _moves = Arrays.copyOf(_moves, 2 * _size);
+        }
+        _moves[_size] = move;
+        _size += 1;
+    }
+
+    /** Remove and return the top move.  Assumes !isEmpty(). */
+    int pop() {
+        _size -= 1;
+        return _moves[_size];
+    }
+
+    /** Return the top move, or NO_MOVE if I am empty. */
+    int top() {
+        return _size == 0 ? Move.NO_MOVE : _moves[_size - 1];
+    }
+
+    /** Return my Kth move, counting from 0 at the bottom. */
+    int get(int k) {
+        return _moves[k];
+    }
+
+    /** Set my contents to those of MODEL. */
+    void copy(MoveStack model) {
+        _moves = Arrays.copyOf(model._moves, model._moves.length);
+        _size = model._size;
+    }
+
+    /** Return the number of moves I hold. */
+    int size() {
+        return _size;
+    }
+
+    /** Return true iff I hold no moves. */
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /** Remove all my moves. */
+    void clear() {
+        _size = 0;
+    }
+
+    /** Record the making of packed move MOVE, where the board's position
+     *  is the one in which my top move was made: my top move is removed if
+     *  it is MOVE, and otherwise all my moves are removed, since they no
+     *  longer follow. */
+    void made(int move) {
+        if (_size > 0 && _moves[_size - 1] == Move.unflagged(move)) {
+            _size -= 1;
+        } else {
+            _size = 0;
+        }
+    }
+
+    /** My moves, bottom first. */
+    private int[] _moves = new int[64];
+    /** Number of moves in _moves. */
+    private int _size;
+}
@@ -0,0 +1,187 @@
+package tablut;
+
+import java.nio.ByteBuffer;
+
+import static tablut.Piece.*;
+import static tablut.Square.NUM_SQUARES;
+import static tablut.Utils.error;
+
+/** An immutable, compact encoding of a Tablut position: the contents of
+ *  every square and the side to move.  The contents of the square with
+ *  index k occupy bits 2k and 2k+1 of a 192-bit string held in three
+ *  longs (bits 0-63 in the first, and so on), as the ordinal of the
+ *  Piece there.  Bit 2 * NUM_SQUARES is set iff black is to move.  The
+ *  external binary form is that string's low BYTES bytes, first long
+ *  first, each long in the ByteBuffer's byte order.  The text form is
+ *  that of Board.encodedBoard.
+ *  @author Matthew J. Lee
+ */
+final class PackedPosition {
+
+    /** Number of bytes in the binary form of a position. */
+    static final int BYTES = (2 * NUM_SQUARES + 1 + 7) / 8;
+
+    /** Number of longs in the unpacked form of a position. */
+    static final int WORDS = 3;
+
+    /** Number of squares whose contents are held in each long. */
+    static final int SQUARES_PER_WORD = Long.SIZE / 2;
+
+    /** Bit of the last long that is set iff black is to move. */
+    static final long BLACK_TO_MOVE =
+        1L << (2 * NUM_SQUARES - 2 * (WORDS - 1) * SQUARES_PER_WORD);
+
+    /** The position whose encoding is W0, W1, W2. */
+    PackedPosition(long w0, long w1, long w2) {
+        _w0 = w0;
+        _w1 = w1;
+        _w2 = w2;
+    }
+
+    /** Return the current position on BOARD. */
+    static PackedPosition of(Board board) {
+        long[] words = new long[WORDS];
+        board.packInto(words);
+        return new PackedPosition(words[0], words[1], words[2]);
+    }
+
+    /** Return the position whose binary form starts at the current
+     *  position of BUF, advancing BUF past it. */
+    static PackedPosition read(ByteBuffer buf) {
+        PackedPosition result = read(buf, buf.position());
+        buf.position(buf.position() + BYTES);
+        return result;
+    }
+
+    /** Return the position whose binary form starts at absolute position
+     *  INDEX of BUF, without copying or changing BUF's position. */
+    static PackedPosition read(ByteBuffer buf, int index) {
+        long w2 = 0;
+        for (int i = BYTES - 1; i >= 2 * Long.BYTES; i -= 1) {
+            w2 = (w2 << 8) | (buf.get(index + i) & 0xff);
+        }
+        return new PackedPosition(buf.getLong(index),
+                                  buf.getLong(index + Long.BYTES), w2);
+    }
+
+    /** Return the position denoted by TEXT, which has the form produced
+     *  by Board.encodedBoard (and toString): the side to move followed by
+     *  the contents of each square in index order, as Piece symbols. */
+    static PackedPosition parse(String text) {
+        return parse(text, 0, text.length());
+    }
+
+    /** Return the position denoted by characters START .. END-1 of TEXT,
+     *  as for parse(String). */
+    static PackedPosition parse(CharSequence text, int start, int end) {
+        if (end - start != NUM_SQUARES + 1) {
+            throw error("position must have %d characters",
+                        NUM_SQUARES + 1);
+        }
+        long[] words = new long[WORDS];
+        for (int k = 0; k < NUM_SQUARES; k += 1) {
+            words[k / SQUARES_PER_WORD] |=
+                (long) symbol(text.charAt(start + k + 1)).ordinal()
+                << (2 * (k % SQUARES_PER_WORD));
+        }
+        switch (symbol(text.charAt(start))) {
+        case BLACK:
+            words[WORDS - 1] |= BLACK_TO_MOVE;
+            break;
+        case WHITE:
+            break;
+        default:
+            throw error("bad side to move: %c", text.charAt(start));
+        }
+        return new PackedPosition(words[0], words[1], words[2]);
+    }
+
+    /** Return the Piece whose symbol is C (case-insensitively). */
+    private static Piece symbol(char c) {
+        switch (Character.toUpperCase(c)) {
+        case '-':
+            return EMPTY;
+        case 'W':
+            return WHITE;
+        case 'B':
+            return BLACK;
+        case 'K':
+            return KING;
+        default:
+            throw error("bad piece symbol: %c", c);
+        }
+    }
+
+    /** Write my binary form to BUF at its current position, advancing
+     *  the position past it. */
+    void write(ByteBuffer buf) {
+        write(buf, buf.position());
+        buf.position(buf.position() + BYTES);
+    }
+
+    /** Write my binary form to BUF starting at absolute position INDEX,
+     *  without changing BUF's position. */
+    void write(ByteBuffer buf, int index) {
+        buf.putLong(index, _w0);
+        buf.putLong(index + Long.BYTES, _w1);
+        long w2 = _w2;
+        for (int i = 2 * Long.BYTES; i < BYTES; i += 1) {
+            buf.put(index + i, (byte) w2);
+            w2 >>>= 8;
+        }
+    }
+
+    /** Return my binary form as a new array. */
+    byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(BYTES);
+        write(buf, 0);
+        return buf.array();
+    }
+
+    /** Return the contents of the square with index K. */
+    Piece get(int k) {
+        return PIECES[(int) (word(k / SQUARES_PER_WORD)
+                             >>> (2 * (k % SQUARES_PER_WORD))) & 3];
+    }
+
+    /** Return the side to move. */
+    Piece turn() {
+        return (_w2 & BLACK_TO_MOVE) != 0 ? BLACK : WHITE;
+    }
+
+    /** Return the Kth long of my encoding. */
+    long word(int k) {
+        return k == 0 ? _w0 : k == 1 ? _w1 : _w2;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PackedPosition)) {
+            return false;
+        }
+        PackedPosition other = (PackedPosition) obj;
+        return _w0 == other._w0 && _w1 == other._w1 && _w2 == other._w2;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = _w0 * 0x9E3779B97F4A7C15L ^ _w1 * 0xC2B2AE3D27D4EB4FL ^ _w2;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        char[] result = new char[NUM_SQUARES + 1];
+        result[0] = turn().toString().charAt(0);
+        for (int k = 0; k < NUM_SQUARES; k += 1) {
+            result[k + 1] = get(k).toString().charAt(0);
+        }
+        return new String(result);
+    }
+
+    /** Pieces indexed by ordinal. */
+    private static final Piece[] PIECES = Piece.values();
+
+    /** My encoding. */
+    private final long _w0, _w1, _w2;
+}
@@ -39,6 +39,11 @@ abstract class Player {
      *  is not null. */
     abstract String myMove();
 
+    /** Ask me to finish choosing my current move as soon as possible.
+     *  May be called from any thread.  By default, does nothing. */
+    void hurry() {
+    }
+
     /** My Controller. */
     protected Controller _controller;
     /** The Piece I play (WHITE or BLACK). */
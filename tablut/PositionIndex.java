@@ -0,0 +1,480 @@
+package tablut;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static tablut.Utils.error;
+
+/** An on-disk index of the positions reached in archived games.  For
+ *  each position of each game (as it stands after undos), the index
+ *  holds an entry giving the position's hash (Board.positionHash), the
+ *  game, the ply, the game's winner, and the move played next.  The
+ *  index file is
+ *
+ *      int   MAGIC
+ *      int   0
+ *      long  number of entries
+ *      entries, each a long hash and a long of data, sorted by hash
+ *
+ *  and is read through memory mappings of at most SEGMENT_ENTRIES
+ *  entries each.  Only every TOP_STRIDE'th hash is kept on the heap, so
+ *  a lookup is a binary search of that array followed by one of a
+ *  single block of the file.  An index is built by replaying games on
+ *  several threads, each sorting its entries in runs of at most
+ *  RUN_ENTRIES in temporary files, and then merging the runs.
+ *  @author Matthew J. Lee
+ */
+class PositionIndex {
+
+    /** Marks an index file: "TBI1". */
+    static final int MAGIC = 0x54424931;
+    /** Number of bytes before the first entry. */
+    static final int HEADER_BYTES = 16;
+    /** Number of bytes in an entry. */
+    static final int ENTRY_BYTES = 2 * Long.BYTES;
+    /** Number of entries between hashes kept on the heap. */
+    static final int TOP_STRIDE = 64;
+    /** Log base 2 of the number of entries in each mapping. */
+    static final int SEGMENT_BITS = 26;
+    /** Number of entries in each mapping. */
+    static final int SEGMENT_ENTRIES = 1 << SEGMENT_BITS;
+    /** Maximum number of entries sorted in memory at once by each
+     *  thread building an index. */
+    static final int RUN_ENTRIES = 1 << 21;
+
+    /** The index in FILE. */
+    PositionIndex(Path file) throws IOException {
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt(0) != MAGIC) {
+                throw error("%s is not a position index", file);
+            }
+            _size = header.getLong(Long.BYTES);
+            int segments = (int) ((_size + SEGMENT_ENTRIES - 1)
+                                  >>> SEGMENT_BITS);
+            _segments = new MappedByteBuffer[segments];
+            for (int s = 0; s < segments; s += 1) {
+                long first = (long) s << SEGMENT_BITS;
+                long n = Math.min(SEGMENT_ENTRIES, _size - first);
+                _segments[s] =
+                    channel.map(FileChannel.MapMode.READ_ONLY,
+                                HEADER_BYTES + first * ENTRY_BYTES,
+                                n * ENTRY_BYTES);
+            }
+        }
+        _top = new long[(int) ((_size + TOP_STRIDE - 1) / TOP_STRIDE)];
+        for (int j = 0; j < _top.length; j += 1) {
+            _top[j] = hash((long) j * TOP_STRIDE);
+        }
+    }
+
+    /** Return the number of entries. */
+    long size() {
+        return _size;
+    }
+
+    /** Return the index of the first entry for the position whose hash
+     *  is HASH, or -1 if there is none.  The entries for the position
+     *  follow it consecutively. */
+    long find(long hash) {
+        int j = Arrays.binarySearch(_top, hash);
+        if (j < 0) {
+            j = -j - 1;
+        } else {
+            while (j > 0 && _top[j - 1] == hash) {
+                j -= 1;
+            }
+        }
+        long lo = Math.max(0, (long) (j - 1) * TOP_STRIDE),
+            hi = Math.min(_size, (long) j * TOP_STRIDE);
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (hash(mid) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo < _size && hash(lo) == hash ? lo : -1;
+    }
+
+    /** Return the hash of entry I. */
+    long hash(long i) {
+        return segment(i).getLong(offset(i));
+    }
+
+    /** Return the game number of entry I: its position in the archives
+     *  from which the index was built. */
+    int game(long i) {
+        return (int) data(i);
+    }
+
+    /** Return the ply of entry I. */
+    int ply(long i) {
+        return (int) (data(i) >>> PLY_SHIFT) & PLY_MASK;
+    }
+
+    /** Return the winner of the game of entry I, or null if none. */
+    Piece winner(long i) {
+        return GameRecord.winner((int) (data(i) >>> RESULT_SHIFT));
+    }
+
+    /** Return the packed move played after entry I, or Move.NO_MOVE. */
+    int move(long i) {
+        return (int) (data(i) >>> MOVE_SHIFT);
+    }
+
+    /** Return the data of entry I. */
+    private long data(long i) {
+        return segment(i).getLong(offset(i) + Long.BYTES);
+    }
+
+    /** Return the mapping containing entry I. */
+    private ByteBuffer segment(long i) {
+        return _segments[(int) (i >>> SEGMENT_BITS)];
+    }
+
+    /** Return the offset of entry I in its mapping. */
+    private static int offset(long i) {
+        return (int) (i & (SEGMENT_ENTRIES - 1)) * ENTRY_BYTES;
+    }
+
+    /** Return the data of an entry for game GAME at PLY, whose winner is
+     *  WINNER, followed by packed move MOVE. */
+    private static long data(int game, int ply, Piece winner, int move) {
+        return (long) Move.unflagged(move) << MOVE_SHIFT
+            | (long) GameRecord.result(winner) << RESULT_SHIFT
+            | (long) Math.min(ply, PLY_MASK) << PLY_SHIFT
+            | game & 0xffffffffL;
+    }
+
+    /** Layout of an entry's data: the next move in the high bits, so that
+     *  each position's entries are grouped by move, then the result and
+     *  ply, and the game number in the low 32 bits. */
+    private static final int
+        PLY_SHIFT = 32, PLY_MASK = (1 << 10) - 1,
+        RESULT_SHIFT = 42, MOVE_SHIFT = 44;
+
+    /** A summary of the games in the index through one position. */
+    static class Summary {
+        /** Total number of entries for the position. */
+        long total;
+        /** Number of entries by winner's ordinal (EMPTY for none). */
+        final long[] results = new long[Piece.values().length];
+        /** The moves played from the position, most often first, with
+         *  NO_MOVE for games that ended there. */
+        final List<Integer> moves = new ArrayList<>();
+        /** For each element of moves, the number of entries by winner's
+         *  ordinal. */
+        final List<long[]> moveResults = new ArrayList<>();
+    }
+
+    /** Return a summary of my entries for the position whose hash is
+     *  HASH. */
+    Summary summarize(long hash) {
+        Summary summary = new Summary();
+        long i = find(hash);
+        if (i < 0) {
+            return summary;
+        }
+        long[] counts = null;
+        int lastMove = -1;
+        for (; i < _size && hash(i) == hash; i += 1) {
+            int move = move(i), result = GameRecord.result(winner(i));
+            if (move != lastMove) {
+                counts = new long[summary.results.length];
+                summary.moves.add(move);
+                summary.moveResults.add(counts);
+                lastMove = move;
+            }
+            counts[result] += 1;
+            summary.results[result] += 1;
+            summary.total += 1;
+        }
+        sortByFrequency(summary);
+        return summary;
+    }
+
+    /** Put the moves of SUMMARY in decreasing order of frequency. */
+    private static void sortByFrequency(Summary summary) {
+        Integer[] order = new Integer[summary.moves.size()];
+        for (int k = 0; k < order.length; k += 1) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(
+                        total(summary.moveResults.get(b)),
+                        total(summary.moveResults.get(a))));
+        List<Integer> moves = new ArrayList<>();
+        List<long[]> results = new ArrayList<>();
+        for (int k : order) {
+            moves.add(summary.moves.get(k));
+            results.add(summary.moveResults.get(k));
+        }
+        summary.moves.clear();
+        summary.moves.addAll(moves);
+        summary.moveResults.clear();
+        summary.moveResults.addAll(results);
+    }
+
+    /** Return the sum of COUNTS. */
+    static long total(long[] counts) {
+        long sum = 0;
+        for (long c : counts) {
+            sum += c;
+        }
+        return sum;
+    }
+
+    /** Build an index in FILE of the games in the GameRecord files
+     *  ARCHIVES, using THREADS threads, and return the number of games
+     *  indexed. */
+    static int build(List<Path> archives, Path file, int threads)
+        throws IOException {
+        List<ByteBuffer> games = new ArrayList<>();
+        for (Path archive : archives) {
+            ByteBuffer buf = GameArchive.map(archive);
+            GameArchive reader = new GameArchive(buf);
+            while (reader.next()) {
+                games.add(buf.duplicate().position(reader.offset()));
+            }
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<List<Path>>> work = new ArrayList<>();
+        for (int t = 0; t < threads; t += 1) {
+            int first = (int) ((long) games.size() * t / threads),
+                last = (int) ((long) games.size() * (t + 1) / threads);
+            work.add(pool.submit(() -> indexGames(games, first, last, dir)));
+        }
+        List<Path> runs = new ArrayList<>();
+        try {
+            for (Future<List<Path>> result : work) {
+                runs.addAll(result.get());
+            }
+            merge(runs, file);
+        } catch (InterruptedException | ExecutionException excp) {
+            throw new IOException("could not build index: "
+                                  + excp.getMessage(), excp);
+        } finally {
+            pool.shutdownNow();
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+        return games.size();
+    }
+
+    /** Write sorted runs of the entries for games FIRST .. LAST-1 of
+     *  GAMES, each a buffer positioned at a game record, to temporary
+     *  files in DIR, and return the files. */
+    private static List<Path> indexGames(List<ByteBuffer> games, int first,
+                                         int last, Path dir)
+        throws IOException {
+        List<Path> runs = new ArrayList<>();
+        long[] hashes = new long[RUN_ENTRIES], data = new long[RUN_ENTRIES];
+        long[] lineHashes = new long[PLY_MASK + 1];
+        int[] lineMoves = new int[PLY_MASK + 1];
+        Board board = new Board();
+        int n = 0;
+        for (int g = first; g < last; g += 1) {
+            GameArchive game = new GameArchive(games.get(g));
+            game.next();
+            int plies = line(game, board, lineHashes, lineMoves);
+            if (n + plies > RUN_ENTRIES) {
+                runs.add(writeRun(hashes, data, n, dir));
+                n = 0;
+            }
+            for (int p = 0; p < plies; p += 1) {
+                hashes[n] = lineHashes[p];
+                data[n] = data(g, p, game.winner(), lineMoves[p]);
+                n += 1;
+            }
+        }
+        if (n > 0) {
+            runs.add(writeRun(hashes, data, n, dir));
+        }
+        return runs;
+    }
+
+    /** Replay GAME on BOARD, storing in HASHES and MOVES the hash of each
+     *  position along the line that stands at the end of the game and the
+     *  move played from it (NO_MOVE after the last), and return the
+     *  number of positions.  Positions whose moves were undone are
+     *  dropped, as are those past the capacity of HASHES. */
+    private static int line(GameArchive game, Board board, long[] hashes,
+                            int[] moves) {
+        board.setPosition(game.start());
+        int n = 0;
+        for (int k = 0; k < game.size(); k += 1) {
+            int code = game.code(k);
+            if (GameRecord.isMove(code)) {
+                if (n < hashes.length - 1) {
+                    hashes[n] = board.positionHash();
+                    moves[n] = code;
+                    n += 1;
+                }
+                board.makeMove(code);
+            } else if (GameRecord.isEdit(code)) {
+                board.put(GameRecord.editPiece(code),
+                          GameRecord.editSquare(code));
+                board.clearUndo();
+            } else if (n > 0) {
+                n -= 1;
+                board.undo();
+            }
+        }
+        hashes[n] = board.positionHash();
+        moves[n] = Move.NO_MOVE;
+        return n + 1;
+    }
+
+    /** Sort the first N entries of HASHES and DATA, write them to a new
+     *  temporary file in DIR, and return the file. */
+    private static Path writeRun(long[] hashes, long[] data, int n, Path dir)
+        throws IOException {
+        sort(hashes, data, 0, n - 1);
+        Path run = Files.createTempFile(dir, "tablut-index", ".run");
+        try (FileChannel channel =
+             FileChannel.open(run, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            for (int i = 0; i < n; i += 1) {
+                if (buf.remaining() < ENTRY_BYTES) {
+                    drain(channel, buf);
+                }
+                buf.putLong(hashes[i]).putLong(data[i]);
+            }
+            drain(channel, buf);
+        }
+        return run;
+    }
+
+    /** Merge the sorted runs in the files RUNS into an index in FILE. */
+    private static void merge(List<Path> runs, Path file)
+        throws IOException {
+        PriorityQueue<ByteBuffer> heads = new PriorityQueue<>(
+            Math.max(1, runs.size()),
+            (a, b) -> compare(a.getLong(a.position()),
+                              a.getLong(a.position() + Long.BYTES),
+                              b.getLong(b.position()),
+                              b.getLong(b.position() + Long.BYTES)));
+        long size = 0;
+        for (Path run : runs) {
+            ByteBuffer buf = GameArchive.map(run);
+            size += buf.remaining() / ENTRY_BYTES;
+            if (buf.hasRemaining()) {
+                heads.add(buf);
+            }
+        }
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.CREATE,
+                              StandardOpenOption.WRITE,
+                              StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            buf.putInt(MAGIC).putInt(0).putLong(size);
+            while (!heads.isEmpty()) {
+                ByteBuffer head = heads.poll();
+                if (buf.remaining() < ENTRY_BYTES) {
+                    drain(channel, buf);
+                }
+                buf.putLong(head.getLong()).putLong(head.getLong());
+                if (head.hasRemaining()) {
+                    heads.add(head);
+                }
+            }
+            drain(channel, buf);
+        }
+    }
+
+    /** Write the contents of BUF to CHANNEL and clear BUF. */
+    private static void drain(FileChannel channel, ByteBuffer buf)
+        throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /** Return a negative number, 0, or a positive number as the entry
+     *  (HASH0, DATA0) sorts before, with, or after (HASH1, DATA1). */
+    private static int compare(long hash0, long data0,
+                               long hash1, long data1) {
+        int c = Long.compare(hash0, hash1);
+        return c != 0 ? c : Long.compare(data0, data1);
+    }
+
+    /** Sort entries LO .. HI of HASHES and DATA, which correspond, by
+     *  hash and then data. */
+    private static void sort(long[] hashes, long[] data, int lo, int hi) {
+        while (hi - lo > INSERTION_SORT_SIZE) {
+            int mid = (lo + hi) >>> 1;
+            long pivotHash = hashes[mid], pivotData = data[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (compare(hashes[i], data[i], pivotHash, pivotData)
+                       < 0) {
+                    i += 1;
+                }
+                while (compare(hashes[j], data[j], pivotHash, pivotData)
+                       > 0) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    swap(hashes, data, i, j);
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (j - lo < hi - i) {
+                sort(hashes, data, lo, j);
+                lo = i;
+            } else {
+                sort(hashes, data, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i += 1) {
+            for (int j = i; j > lo
+                     && compare(hashes[j - 1], data[j - 1],
+                                hashes[j], data[j]) > 0; j -= 1) {
+                swap(hashes, data, j - 1, j);
+            }
+        }
+    }
+
+    /** Exchange entries I and J of HASHES and DATA. */
+    private static void swap(long[] hashes, long[] data, int i, int j) {
+        long h = hashes[i], d = data[i];
+        hashes[i] = hashes[j];
+        data[i] = data[j];
+        hashes[j] = h;
+        data[j] = d;
+    }
+
+    /** Ranges at most this long are sorted by insertion. */
+    private static final int INSERTION_SORT_SIZE = 16;
+    /** Size of the buffers used to write index files. */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /** Number of entries. */
+    private final long _size;
+    /** Mappings of the entries, SEGMENT_ENTRIES in each but the last. */
+    private final MappedByteBuffer[] _segments;
+    /** Hash of every TOP_STRIDE'th entry. */
+    private final long[] _top;
+}
@@ -0,0 +1,88 @@
+package tablut;
+
+import static tablut.Board.SIZE;
+import static tablut.Square.NUM_SQUARES;
+
+/** Precomputed tables for sliding moves along a line of the board.  A
+ *  line is a row or a column.  The occupancy of a line is a SIZE-bit
+ *  set whose bit k is set iff the k-th square along the line (counting
+ *  from column a for rows, and from row 1 for columns) is occupied.
+ *  Because every line has the same length, the reach and blocker tables
+ *  are shared by all rows and columns; only the throne restriction
+ *  depends on the particular square, and it too is a table lookup.
+ *  @author Matthew J. Lee
+ */
+final class Rays {
+
+    /** Line position of the throne along the middle row and column. */
+    static final int THRONE_POS = SIZE / 2;
+
+    /** Not instantiable. */
+    private Rays() {
+    }
+
+    /** Return the set of positions along a line that a piece at position
+     *  POS may slide to when the line's occupancy is OCC.  Bit POS of OCC
+     *  is ignored. */
+    static int reach(int pos, int occ) {
+        return REACH[pos][occ];
+    }
+
+    /** Return the position of the first occupied square reached by
+     *  sliding from position POS along a line whose occupancy is OCC, in
+     *  the direction of increasing positions if UP, and otherwise
+     *  decreasing.  Return -1 if there is none. */
+    static int blocker(int pos, int occ, boolean up) {
+        return BLOCKER[up ? 1 : 0][pos][occ];
+    }
+
+    /** Return the set of positions along the row through the square with
+     *  index SQ on which a piece other than the king may land. */
+    static int rowLanding(int sq) {
+        return ROW_LANDING[sq];
+    }
+
+    /** Return the set of positions along the column through the square
+     *  with index SQ on which a piece other than the king may land. */
+    static int colLanding(int sq) {
+        return COL_LANDING[sq];
+    }
+
+    /** The set of all positions on a line. */
+    static final int FULL_LINE = (1 << SIZE) - 1;
+
+    /** REACH[p][occ] is the value of reach(p, occ). */
+    private static final int[][] REACH = new int[SIZE][1 << SIZE];
+    /** BLOCKER[up][p][occ] is the value of blocker(p, occ, up == 1). */
+    private static final byte[][][] BLOCKER = new byte[2][SIZE][1 << SIZE];
+    /** Landing sets for rows and columns, by square index. */
+    private static final int[]
+        ROW_LANDING = new int[NUM_SQUARES],
+        COL_LANDING = new int[NUM_SQUARES];
+
+    static {
+        for (int p = 0; p < SIZE; p += 1) {
+            for (int occ = 0; occ < 1 << SIZE; occ += 1) {
+                int reach, k;
+                reach = 0;
+                for (k = p + 1; k < SIZE && (occ & (1 << k)) == 0; k += 1) {
+                    reach |= 1 << k;
+                }
+                BLOCKER[1][p][occ] = (byte) (k < SIZE ? k : -1);
+                for (k = p - 1; k >= 0 && (occ & (1 << k)) == 0; k -= 1) {
+                    reach |= 1 << k;
+                }
+                BLOCKER[0][p][occ] = (byte) k;
+                REACH[p][occ] = reach;
+            }
+        }
+        for (int sq = 0; sq < NUM_SQUARES; sq += 1) {
+            int row = sq / SIZE, col = sq % SIZE;
+            ROW_LANDING[sq] = row == THRONE_POS
+                ? FULL_LINE & ~(1 << THRONE_POS) : FULL_LINE;
+            COL_LANDING[sq] = col == THRONE_POS
+                ? FULL_LINE & ~(1 << THRONE_POS) : FULL_LINE;
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+package tablut;
+
+import java.nio.ByteBuffer;
+
+import static tablut.Piece.*;
+
+/** A fast validator of recorded games.  A Replayer applies the moves of
+ *  a text command log or a GameRecord archive directly to a Board,
+ *  checking that each is legal, and reports the first error and the
+ *  final result.  Text is scanned in place by a CommandScanner, which
+ *  parses moves straight into packed form, so nothing is allocated and
+ *  nothing is printed per move.
+ *
+ *  Commands have the Controller's meanings as far as the board is
+ *  concerned ("new", "setboard", "undo", "redo", "goto", "toggle",
+ *  moves, and "quit"); the others that the Controller accepts are checked
+ *  for form and otherwise ignored, and any other command is an error, as
+ *  with --strict.
+ *  @author Matthew J. Lee
+ */
+class Replayer {
+
+    /** Validate the command log TEXT, returning true iff it has no
+     *  errors.  Afterwards, the methods below describe the result. */
+    boolean replayLog(String text) {
+        reset();
+        _board.init();
+        boolean started = false;
+        int n = text.length();
+        for (int pos = 0, line = 1; pos < n; line += 1) {
+            int end = text.indexOf('\n', pos);
+            if (end < 0) {
+                end = n;
+            }
+            CommandScanner.Op op = _scanner.scan(text, pos, end);
+            pos = end + 1;
+            switch (op) {
+            case EMPTY: case DUMP: case STATS: case SEED: case LIMIT:
+            case MANUAL: case AUTO: case SAVE:
+                break;
+            case LOAD:
+                return fail(line, "cannot replay load: %s",
+                            _scanner.command());
+            case MOVE:
+                if (!started) {
+                    _games += 1;
+                    started = true;
+                }
+                if (!makeMove(_scanner.move())) {
+                    return fail(line, "illegal move: %s", _scanner.command());
+                }
+                _redo.made(_scanner.move());
+                break;
+            case QUIT:
+                _winner = _board.winner();
+                return true;
+            case NEW:
+                _board.init();
+                _redo.clear();
+                started = false;
+                break;
+            case UNDO:
+                if (_board.undoCount() >= 2) {
+                    undo();
+                    undo();
+                }
+                break;
+            case REDO:
+                for (int k = 0; k < 2 && !_redo.isEmpty(); k += 1) {
+                    redo();
+                }
+                break;
+            case GOTO:
+                if (!gotoMove()) {
+                    return fail(line, "no such position: %s",
+                                _scanner.command());
+                }
+                break;
+            case TOGGLE:
+                toggle(_scanner.square());
+                break;
+            case SETBOARD:
+                try {
+                    _board.setPosition(_scanner.position());
+                    _redo.clear();
+                } catch (IllegalArgumentException excp) {
+                    return fail(line, "%s", excp.getMessage());
+                }
+                started = false;
+                break;
+            default:
+                return fail(line, "bad command: %s", _scanner.command());
+            }
+        }
+        _winner = _board.winner();
+        return true;
+    }
+
+    /** Validate the games in the GameRecord archive BUF, returning true
+     *  iff all moves are legal and each game's recorded winner is the
+     *  one its moves produce.  Afterwards, the methods below describe the
+     *  result, with games numbered from 1 in place of lines. */
+    boolean replayArchive(ByteBuffer buf) {
+        reset();
+        GameArchive archive = new GameArchive(buf);
+        try {
+            while (archive.next()) {
+                _games += 1;
+                _board.setPosition(archive.start());
+                for (int k = 0; k < archive.size(); k += 1) {
+                    int code = archive.code(k);
+                    if (GameRecord.isMove(code)) {
+                        if (!makeMove(code)) {
+                            return fail(_games, "illegal move %s at ply %d",
+                                        Move.mv(code),
+                                        _board.moveCount() + 1);
+                        }
+                    } else if (GameRecord.isEdit(code)) {
+                        _board.put(GameRecord.editPiece(code),
+                                   GameRecord.editSquare(code));
+                        _board.clearUndo();
+                    } else if (_board.moveCount() > 0) {
+                        _board.undo();
+                    } else {
+                        return fail(_games, "undo with no move to undo");
+                    }
+                }
+                if (archive.winner() != _board.winner()) {
+                    return fail(_games, "recorded winner %s, but moves give"
+                                + " %s", archive.winner(), _board.winner());
+                }
+            }
+        } catch (IllegalArgumentException excp) {
+            return fail(_games + 1, "%s", excp.getMessage());
+        }
+        _winner = _board.winner();
+        return true;
+    }
+
+    /** Return the number of games seen. */
+    int games() {
+        return _games;
+    }
+
+    /** Return the number of moves made. */
+    long moves() {
+        return _moves;
+    }
+
+    /** Return the winner of the last game, or null. */
+    Piece winner() {
+        return _winner;
+    }
+
+    /** Return a description of the first error found, including its line
+     *  (or game) number, or null if there was none. */
+    String error() {
+        return _error;
+    }
+
+    /** Clear the results. */
+    private void reset() {
+        _games = 0;
+        _moves = 0;
+        _winner = null;
+        _error = null;
+    }
+
+    /** Make packed move MOVE, returning false (and doing nothing) if it
+     *  is not legal. */
+    private boolean makeMove(int move) {
+        if (_board.winner() != null || !_board.isLegal(move)) {
+            return false;
+        }
+        _board.makeMove(move);
+        _moves += 1;
+        return true;
+    }
+
+    /** Record an error at line or game NUMBER as described by FORMAT and
+     *  ARGS, as for String.format, and return false. */
+    private boolean fail(int number, String format, Object... args) {
+        _winner = _board.winner();
+        _error = number + ": " + String.format(format, args);
+        return false;
+    }
+
+    /** Undo the last move, saving it for redo. */
+    private void undo() {
+        int last = _board.lastMove();
+        _board.undo();
+        _redo.push(last);
+    }
+
+    /** Remake the last move undone. */
+    private void redo() {
+        _board.makeMove(_redo.pop());
+        _moves += 1;
+    }
+
+    /** Undo or remake moves until the number of moves given by the
+     *  current goto command have been made, returning false (and doing
+     *  nothing) if that is impossible. */
+    private boolean gotoMove() {
+        long ply;
+        try {
+            ply = _scanner.number();
+        } catch (NumberFormatException excp) {
+            return false;
+        }
+        int count = _board.moveCount();
+        if (ply < count - _board.undoCount() || ply > count + _redo.size()) {
+            return false;
+        }
+        while (_board.moveCount() > ply) {
+            undo();
+        }
+        while (_board.moveCount() < ply) {
+            redo();
+        }
+        return true;
+    }
+
+    /** Change the contents of SQ as the toggle command does. */
+    private void toggle(Square sq) {
+        Piece piece;
+        switch (_board.get(sq)) {
+        case EMPTY: piece = WHITE; break;
+        case WHITE: piece = KING; break;
+        case KING: piece = BLACK; break;
+        default:
+            piece = EMPTY; break;
+        }
+        _board.put(piece, sq);
+        _board.clearUndo();
+        _redo.clear();
+    }
+
+    /** Recognizes the commands of logs. */
+    private final CommandScanner _scanner = new CommandScanner();
+    /** Moves undone, for redo and goto. */
+    private final MoveStack _redo = new MoveStack();
+    /** The board on which games are replayed. */
+    private final Board _board = new Board();
+    /** Number of games seen. */
+    private int _games;
+    /** Number of moves made. */
+    private long _moves;
+    /** Winner of the last game, or null. */
+    private Piece _winner;
+    /** Description of the first error, or null. */
+    private String _error;
+}
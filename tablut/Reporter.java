@@ -16,5 +16,9 @@ interface Reporter {
     /** Display MOVE as needed. */
     void reportMove(Move move);
 
+    /** Make sure that everything reported so far has been displayed. */
+    default void flush() {
+    }
+
 }
 
@@ -0,0 +1,245 @@
+package tablut;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/** A live feed of a game for any number of spectators connected to a
+ *  loopback port.  The game's thread (and the AI's search thread)
+ *  publish one line per event into an EventRing, which costs the same
+ *  however many spectators there are; a separate broadcaster thread
+ *  copies new lines to each spectator's socket without blocking.  A
+ *  spectator that falls more than the ring's capacity behind skips to
+ *  the oldest line still held and is told how many it missed; one that
+ *  falls behind MAX_LAPS times is disconnected.
+ *
+ *  Lines are the game's events (see GameEvent) in lower case, such as
+ *  "new_game", "move M", "capture SQ PIECE", "undo M", and
+ *  "winner PIECE", and the AI's "info depth D score S nodes N pv M...".
+ *  @author Matthew J. Lee
+ */
+class Spectators implements GameListener, AI.Listener {
+
+    /** Capacity of the ring, as a power of 2. */
+    static final int LOG2_CAPACITY = 12;
+    /** Number of times a spectator may be lapped before being dropped. */
+    static final int MAX_LAPS = 3;
+    /** Size of each spectator's output buffer. */
+    static final int BUFFER_SIZE = 8192;
+
+    /** A feed on loopback port PORT (0 for any free port).  Call start()
+     *  to begin accepting spectators. */
+    Spectators(int port) throws IOException {
+        _selector = Selector.open();
+        _server = ServerSocketChannel.open();
+        _server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                           port));
+        _server.configureBlocking(false);
+        _server.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /** Return the port on which I am listening. */
+    int port() {
+        return _server.socket().getLocalPort();
+    }
+
+    /** Start the broadcaster thread. */
+    void start() {
+        Thread thread = new Thread(this::broadcast, "tablut-spectators");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop accepting spectators and disconnect all of them. */
+    void close() throws IOException {
+        _server.close();
+        _selector.wakeup();
+    }
+
+    /** Publish LINE to all spectators.  Never blocks. */
+    void publish(String line) {
+        _ring.publish(line);
+        _selector.wakeup();
+    }
+
+    @Override
+    public void gameChanged(Controller controller, List<GameEvent> events) {
+        for (GameEvent event : events) {
+            publish(event.toString().toLowerCase());
+        }
+    }
+
+    @Override
+    public void iterationDone(int depth, int score, long nodes, int[] pv,
+                              long elapsed) {
+        StringBuilder line = new StringBuilder();
+        line.append("info depth ").append(depth).append(" score ")
+            .append(score).append(" nodes ").append(nodes).append(" pv");
+        for (int move : pv) {
+            line.append(' ').append(Move.mv(move));
+        }
+        publish(line.toString());
+    }
+
+    /** Body of the broadcaster thread: accept spectators and send them
+     *  new lines until closed. */
+    private void broadcast() {
+        try {
+            while (_server.isOpen()) {
+                _selector.select();
+                Iterator<SelectionKey> keys =
+                    _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    }
+                }
+                for (SelectionKey key : _selector.keys()) {
+                    if (key.attachment() != null && key.isValid()) {
+                        ((Spectator) key.attachment()).send();
+                    }
+                }
+            }
+            for (SelectionKey key : _selector.keys()) {
+                key.channel().close();
+            }
+            _selector.close();
+        } catch (IOException excp) {
+            /* Ignore IOException; the feed simply ends. */
+        }
+    }
+
+    /** Accept a pending spectator, if any. */
+    private void accept() throws IOException {
+        SocketChannel channel = _server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Spectator spectator = new Spectator(channel, _ring.next());
+        spectator._key = channel.register(_selector, 0, spectator);
+        spectator.queue("# Tablut spectator feed");
+    }
+
+    /** One connected spectator. */
+    private class Spectator {
+
+        /** A spectator on CHANNEL whose first line will be number
+         *  NEXT. */
+        Spectator(SocketChannel channel, long next) {
+            _channel = channel;
+            _next = next;
+        }
+
+        /** Copy as many unsent lines as fit into my buffer, and write as
+         *  much of it as the socket will take without blocking. */
+        void send() {
+            if (_next < _ring.oldest()) {
+                lapped();
+            }
+            if (!_key.isValid()) {
+                return;
+            }
+            fill();
+            _buffer.flip();
+            try {
+                _channel.write(_buffer);
+            } catch (IOException excp) {
+                close();
+                return;
+            }
+            _buffer.compact();
+            _key.interestOps(_buffer.position() > 0
+                             ? SelectionKey.OP_WRITE : 0);
+        }
+
+        /** Copy unsent lines into my buffer while they fit. */
+        private void fill() {
+            while (_key.isValid()) {
+                if (_pendingLine == null) {
+                    String line = _ring.get(_next);
+                    if (line == null) {
+                        return;
+                    } else if (line == EventRing.LAPPED) {
+                        lapped();
+                        continue;
+                    }
+                    _pendingLine = line;
+                    _next += 1;
+                }
+                if (!queue(_pendingLine)) {
+                    return;
+                }
+            }
+        }
+
+        /** Record that I have fallen behind the oldest line in the ring:
+         *  skip to it, noting the lines missed, or disconnect me if this
+         *  has happened too often. */
+        private void lapped() {
+            _laps += 1;
+            if (_laps > MAX_LAPS) {
+                close();
+                return;
+            }
+            long oldest = _ring.oldest();
+            _pendingLine = String.format("# missed %d lines", oldest - _next);
+            _next = oldest;
+        }
+
+        /** Add LINE and a newline to my buffer if there is room, returning
+         *  true iff there was.  Otherwise, LINE is kept to be sent
+         *  first. */
+        boolean queue(String line) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > _buffer.remaining()) {
+                _pendingLine = line;
+                return false;
+            }
+            _buffer.put(bytes);
+            _pendingLine = null;
+            return true;
+        }
+
+        /** Disconnect me. */
+        void close() {
+            _key.cancel();
+            try {
+                _channel.close();
+            } catch (IOException excp) {
+                /* Ignore IOException. */
+            }
+        }
+
+        /** My connection. */
+        private final SocketChannel _channel;
+        /** My selection key. */
+        private SelectionKey _key;
+        /** Bytes not yet written, between writes. */
+        private final ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        /** A line taken from the ring that did not yet fit in _buffer, or
+         *  null. */
+        private String _pendingLine;
+        /** Sequence number of the next line to take from the ring. */
+        private long _next;
+        /** Number of times I have been lapped. */
+        private int _laps;
+    }
+
+    /** The lines published. */
+    private final EventRing _ring = new EventRing(LOG2_CAPACITY);
+    /** Selector for the broadcaster thread. */
+    private final Selector _selector;
+    /** The listening channel. */
+    private final ServerSocketChannel _server;
+}
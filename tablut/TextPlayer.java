@@ -1,8 +1,5 @@
 package tablut;
 
-import static tablut.Move.mv;
-
-
 /** A Player that takes input as text commands from its Controller.
  *  @author Matthew J. Lee
  */
@@ -35,13 +32,12 @@ class TextPlayer extends Player {
             String line = _controller.readLine(true);
             if (line == null) {
                 return "quit";
-            } else if (Move.isGrammaticalMove(line)) {
+            } else if (_scanner.scan(line) == CommandScanner.Op.MOVE) {
                 if (board().winner() != null || board().turn() != myPiece()) {
                     _controller.reportError("misplaced move");
                     continue;
                 } else {
-                    Move move = mv(line);
-                    if (move == null || !board().isLegal(move)) {
+                    if (!board().isLegal(_scanner.move())) {
                         _controller.reportError("Invalid move. "
                                                 + "Please try again.");
                         continue;
@@ -51,4 +47,7 @@ class TextPlayer extends Player {
             return line;
         }
     }
+
+    /** Recognizes moves among my input lines. */
+    private final CommandScanner _scanner = new CommandScanner();
 }
@@ -0,0 +1,239 @@
+package tablut;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static tablut.Piece.*;
+
+/** A headless match between two AI configurations, A and B, playing
+ *  many games concurrently in one JVM.  Games are played in pairs from
+ *  the same randomized opening, with A playing white in the first game
+ *  of each pair and black in the second.  Each game has its own
+ *  Controller (and so its own Board and random-number generator), and
+ *  the games are scheduled on a fixed pool of threads.
+ *  @author Matthew J. Lee
+ */
+class Tournament {
+
+    /** Result of a game from A's point of view. */
+    enum Result {
+        /** A won, drew, or lost. */
+        WIN, DRAW, LOSS
+    }
+
+    /** A tournament of GAMES games between engines A and B, run on THREADS
+     *  threads.  Each game starts with OPENING random plies chosen by its
+     *  Controller after it is seeded from SEED and the game's pair number,
+     *  and is a draw if it lasts more than MAXPLIES plies. */
+    Tournament(AI a, AI b, int games, int threads, int opening,
+               long seed, int maxPlies) {
+        _a = a;
+        _b = b;
+        _games = games;
+        _threads = threads;
+        _opening = opening;
+        _seed = seed;
+        _maxPlies = maxPlies;
+    }
+
+    /** Play all games, printing progress and the final statistics on
+     *  OUT. */
+    void run(PrintStream out) {
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        List<Future<Result>> results = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int g = 0; g < _games; g += 1) {
+            final int game = g;
+            results.add(pool.submit(() -> playGame(game)));
+        }
+        try {
+            for (int g = 0; g < _games; g += 1) {
+                record(results.get(g).get());
+                if ((g + 1) % PROGRESS_INTERVAL == 0 && g + 1 < _games) {
+                    out.printf("%d games: %s%n", g + 1, summary());
+                }
+            }
+        } catch (InterruptedException | ExecutionException excp) {
+            throw new IllegalStateException("tournament game failed: "
+                                            + excp.getMessage(), excp);
+        } finally {
+            pool.shutdownNow();
+        }
+        out.printf("%d games in %.1f s: %s%n", _games,
+                   (System.currentTimeMillis() - start) / 1000.0,
+                   summary());
+        out.println(statistics());
+    }
+
+    /** Record each game, as it finishes, to OUT in the GameRecord format,
+     *  with search information. */
+    void recordTo(OutputStream out) {
+        _record = out;
+    }
+
+    /** Play game number GAME and return its result for A. */
+    Result playGame(int game) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GameRecorder recorder =
+            _record == null ? null : new GameRecorder(bytes, true);
+        try {
+            Result result = playGame(game, recorder);
+            if (recorder != null) {
+                recorder.close();
+                synchronized (_record) {
+                    bytes.writeTo(_record);
+                }
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalStateException("could not record game: "
+                                            + excp.getMessage(), excp);
+        }
+    }
+
+    /** Play game number GAME, recording it to RECORDER if it is not
+     *  null, and return its result for A. */
+    private Result playGame(int game, GameRecorder recorder)
+        throws IOException {
+        Controller control =
+            new Controller(new NullView(), null, SILENT,
+                           new TextPlayer(), new AI(), false);
+        Board board = control.board();
+        control.setSeed(_seed + game / 2);
+        if (recorder != null) {
+            recorder.begin(board.packedPosition());
+        }
+        int[] moves = new int[Board.MAX_MOVES];
+        for (int k = 0; k < _opening && board.winner() == null; k += 1) {
+            int n = board.legalMoves(board.turn(), moves);
+            int move = moves[control.randInt(n)];
+            board.makeMove(move);
+            if (recorder != null) {
+                recorder.move(move);
+            }
+        }
+        boolean aIsWhite = game % 2 == 0;
+        AI white = (AI) (aIsWhite ? _a : _b).create(WHITE, control),
+            black = (AI) (aIsWhite ? _b : _a).create(BLACK, control);
+        white.setListener(recorder);
+        black.setListener(recorder);
+        while (board.winner() == null) {
+            if (board.moveCount() >= _maxPlies) {
+                return Result.DRAW;
+            }
+            AI player = board.turn() == WHITE ? white : black;
+            int move = player.findMove(board);
+            board.makeMove(move);
+            if (recorder != null) {
+                recorder.move(move);
+            }
+        }
+        if (recorder != null) {
+            recorder.won(board.winner());
+        }
+        return (board.winner() == WHITE) == aIsWhite
+            ? Result.WIN : Result.LOSS;
+    }
+
+    /** Add RESULT to the totals. */
+    void record(Result result) {
+        _totals[result.ordinal()] += 1;
+    }
+
+    /** Return the number of games so far with result R. */
+    int count(Result r) {
+        return _totals[r.ordinal()];
+    }
+
+    /** Return a one-line summary of the results so far. */
+    String summary() {
+        return String.format("+%d =%d -%d", count(Result.WIN),
+                             count(Result.DRAW), count(Result.LOSS));
+    }
+
+    /** Return a description of the Elo difference between A and B implied
+     *  by the results so far, with its 95% confidence interval, and the
+     *  state of a sequential probability ratio test of the hypothesis
+     *  that A is SPRT_ELO1 stronger against the null hypothesis that it is
+     *  SPRT_ELO0 stronger. */
+    String statistics() {
+        double n = count(Result.WIN) + count(Result.DRAW)
+            + count(Result.LOSS);
+        if (n == 0) {
+            return "no games played";
+        }
+        double w = count(Result.WIN) / n, d = count(Result.DRAW) / n,
+            l = count(Result.LOSS) / n;
+        double score = w + d / 2;
+        double variance = w * (1 - score) * (1 - score)
+            + d * (0.5 - score) * (0.5 - score) + l * score * score;
+        double margin = 1.96 * Math.sqrt(variance / n);
+        double s0 = expectedScore(SPRT_ELO0), s1 = expectedScore(SPRT_ELO1);
+        double llr = variance == 0 ? 0
+            : n * (s1 - s0) * (2 * score - s0 - s1) / (2 * variance);
+        double lower = Math.log(SPRT_BETA / (1 - SPRT_ALPHA)),
+            upper = Math.log((1 - SPRT_BETA) / SPRT_ALPHA);
+        String verdict = llr >= upper ? "H1 accepted"
+            : llr <= lower ? "H0 accepted" : "inconclusive";
+        return String.format("Elo %+.1f [%+.1f, %+.1f]; "
+                             + "SPRT(%.0f, %.0f) LLR %.2f [%.2f, %.2f] %s",
+                             elo(score), elo(score - margin),
+                             elo(score + margin), SPRT_ELO0, SPRT_ELO1,
+                             llr, lower, upper, verdict);
+    }
+
+    /** Return the Elo difference corresponding to expected score SCORE. */
+    static double elo(double score) {
+        score = Math.min(Math.max(score, 1e-6), 1 - 1e-6);
+        return -400 * Math.log10(1 / score - 1);
+    }
+
+    /** Return the expected score of a player ELO points stronger than its
+     *  opponent. */
+    static double expectedScore(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    /** Null and alternative hypotheses for the SPRT, in Elo. */
+    static final double SPRT_ELO0 = 0, SPRT_ELO1 = 10;
+    /** Type I and type II error bounds for the SPRT. */
+    static final double SPRT_ALPHA = 0.05, SPRT_BETA = 0.05;
+
+    /** Number of games between progress reports. */
+    private static final int PROGRESS_INTERVAL = 100;
+
+    /** A Reporter that discards everything. */
+    static final Reporter SILENT = new Reporter() {
+        @Override
+        public void reportError(String format, Object... args) {
+        }
+
+        @Override
+        public void reportNote(String format, Object... args) {
+        }
+
+        @Override
+        public void reportMove(Move move) {
+        }
+    };
+
+    /** The two engine configurations. */
+    private final AI _a, _b;
+    /** Number of games, threads, random opening plies, and plies after
+     *  which a game is drawn. */
+    private final int _games, _threads, _opening, _maxPlies;
+    /** Destination of game records, or null. */
+    private OutputStream _record;
+    /** Base seed for openings. */
+    private final long _seed;
+    /** Numbers of wins, draws, and losses for A, indexed by Result. */
+    private final int[] _totals = new int[Result.values().length];
+}
@@ -0,0 +1,405 @@
+package tablut;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static tablut.Utils.error;
+
+/** A fixed-size table of search results indexed by position hash.  Each
+ *  entry holds a position's full hash and, packed into one long, the best
+ *  move found there, its value, the depth to which it was searched,
+ *  whether that value is exact or a bound, and the generation (search
+ *  number) that stored it.  Entries are grouped in buckets of
+ *  BUCKET_SIZE; a new result replaces the entry for the same position
+ *  if there is one, and otherwise the entry in its bucket that is least
+ *  valuable, preferring to keep deep results from recent searches.  The
+ *  table is meant to be kept from one search to the next: newSearch ages
+ *  its contents rather than clearing them.
+ *
+ *  The entries are held outside the heap, each as two longs in native
+ *  order: the hash XOR the data, then the data.  Since a buffer holds at
+ *  most 2 GiB, they are split among equal segments of at most
+ *  2**MAX_LOG2_SEGMENT entries, the high bits of an entry's index
+ *  selecting its segment; buckets never span segments.  The segments
+ *  may be written to a file as they stand (see segments()) and a table
+ *  made from mappings of that file, so that a saved table is restored
+ *  without copying.  A table may also be a shared mapping of a
+ *  file (see map), searched and updated by several threads or processes
+ *  at once without locks.  Storing the hash XOR the data makes that
+ *  safe: an entry whose two longs come from different stores, because
+ *  writers raced or a reader saw half of a store, fails the hash check
+ *  and is treated as absent.  probe() reads an entry's data once, so
+ *  that what it returns is consistent even if the entry is replaced.
+ *  The current generation is likewise kept in a header word, in the
+ *  file for a shared table, that newSearch increments atomically.
+ *  @author Matthew J. Lee
+ */
+class TranspositionTable {
+
+    /** Bound type of an entry whose value is exact. */
+    static final int EXACT = 1;
+    /** Bound type of an entry whose value is a lower bound. */
+    static final int LOWER = 2;
+    /** Bound type of an entry whose value is an upper bound. */
+    static final int UPPER = 3;
+
+    /** Number of entries searched for a given position. */
+    static final int BUCKET_SIZE = 4;
+
+    /** Number of bytes in an entry. */
+    static final int ENTRY_BYTES = 2 * Long.BYTES;
+
+    /** Log base 2 of the largest number of entries in a table (so that
+     *  its entries take at most 16 GiB). */
+    static final int MAX_LOG2_SIZE = 30;
+
+    /** Log base 2 of the largest number of entries in one segment (so
+     *  that a segment's buffer is at most 1 GiB). */
+    static final int MAX_LOG2_SEGMENT = 26;
+
+    /** A table with 2**LOG2SIZE entries (at least one bucket, and at most
+     *  2**MAX_LOG2_SIZE). */
+    TranspositionTable(int log2Size) {
+        this(allocate(entries(log2Size)), 0);
+    }
+
+    /** A table whose entries are those of SEGMENTS, each from its current
+     *  position to its limit, as written from segments(), with current
+     *  generation GENERATION.  The segments must be equal in size, their
+     *  number a power of 2, and the number of entries in each a power of
+     *  2 that is at least BUCKET_SIZE. */
+    TranspositionTable(ByteBuffer[] segments, int generation) {
+        this(segments,
+             ByteBuffer.allocateDirect(GENERATION_OFFSET + Integer.BYTES));
+        GENERATION.setVolatile(_header, GENERATION_OFFSET, generation);
+    }
+
+    /** A table whose entries are SEGMENTS, as for
+     *  TranspositionTable(SEGMENTS, GENERATION), and whose generation is
+     *  kept in HEADER, a direct or mapped buffer. */
+    private TranspositionTable(ByteBuffer[] segments, ByteBuffer header) {
+        int bytes = segments.length == 0 ? 0 : segments[0].remaining(),
+            size = bytes / ENTRY_BYTES;
+        if (size < BUCKET_SIZE || Integer.bitCount(size) != 1
+            || bytes % ENTRY_BYTES != 0
+            || Integer.bitCount(segments.length) != 1
+            || (long) size * segments.length > 1L << MAX_LOG2_SIZE) {
+            throw error("bad transposition table size: %d segments of %d"
+                        + " bytes", segments.length, bytes);
+        }
+        _segments = new ByteBuffer[segments.length];
+        _slots = new LongBuffer[segments.length];
+        for (int k = 0; k < segments.length; k += 1) {
+            if (segments[k].remaining() != bytes) {
+                throw error("transposition table segments differ in size");
+            }
+            _segments[k] = segments[k].slice().order(ByteOrder.nativeOrder());
+            _slots[k] = _segments[k].asLongBuffer();
+        }
+        _segmentShift = Integer.numberOfTrailingZeros(size);
+        _segmentMask = size - 1;
+        _mask = size * segments.length - BUCKET_SIZE;
+        _header = header;
+    }
+
+    /** Return a table that is a shared mapping of FILE, so that searches
+     *  in every process mapping FILE share their results and generation.
+     *  If FILE is empty or does not exist, it is created with 2**LOG2SIZE
+     *  entries (limited as for the constructor); otherwise its size is
+     *  kept.  The file is locked while it is checked and created, so
+     *  that processes starting together agree on its size.  It holds a
+     *  header of HEADER_BYTES bytes, starting with FILE_MAGIC, followed
+     *  by the entries. */
+    static TranspositionTable map(Path file, int log2Size)
+        throws IOException {
+        return map(file, log2Size, MAX_LOG2_SEGMENT);
+    }
+
+    /** Return a table mapping FILE as for map(FILE, LOG2SIZE), in
+     *  segments of at most 2**LOG2SEGMENT entries. */
+    static TranspositionTable map(Path file, int log2Size, int log2Segment)
+        throws IOException {
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.READ,
+                              StandardOpenOption.WRITE,
+                              StandardOpenOption.CREATE)) {
+            FileLock lock = channel.lock();
+            try {
+                long bytes = channel.size();
+                if (bytes == 0) {
+                    bytes = HEADER_BYTES + ENTRY_BYTES * entries(log2Size);
+                    channel.write(ByteBuffer.allocate(Integer.BYTES)
+                                  .putInt(0, FILE_MAGIC), 0);
+                    channel.write(ByteBuffer.allocate(1), bytes - 1);
+                }
+                ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+                if (bytes <= HEADER_BYTES
+                    || channel.read(magic, 0) != magic.limit()
+                    || magic.getInt(0) != FILE_MAGIC) {
+                    throw error("%s is not a transposition table", file);
+                }
+                bytes -= HEADER_BYTES;
+                if (bytes > (long) ENTRY_BYTES << MAX_LOG2_SIZE) {
+                    throw error("%s is too large for a table", file);
+                }
+                long segmentBytes =
+                    Math.min(bytes, (long) ENTRY_BYTES << log2Segment);
+                int count = (int) (bytes / segmentBytes);
+                if (bytes != count * segmentBytes) {
+                    throw error("%s is not a transposition table", file);
+                }
+                ByteBuffer[] segments = new ByteBuffer[count];
+                for (int k = 0; k < count; k += 1) {
+                    segments[k] =
+                        channel.map(FileChannel.MapMode.READ_WRITE,
+                                    HEADER_BYTES + k * segmentBytes,
+                                    segmentBytes);
+                }
+                return new TranspositionTable(
+                    segments,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                HEADER_BYTES));
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /** Return the number of entries in a table created with LOG2SIZE, as
+     *  for the constructor. */
+    private static long entries(int log2Size) {
+        return Math.max(1L << Math.min(log2Size, MAX_LOG2_SIZE),
+                        BUCKET_SIZE);
+    }
+
+    /** Return newly allocated segments holding SIZE empty entries. */
+    private static ByteBuffer[] allocate(long size) {
+        int segmentSize = (int) Math.min(size, 1 << MAX_LOG2_SEGMENT);
+        ByteBuffer[] segments = new ByteBuffer[(int) (size / segmentSize)];
+        for (int k = 0; k < segments.length; k += 1) {
+            segments[k] =
+                ByteBuffer.allocateDirect(segmentSize * ENTRY_BYTES);
+        }
+        return segments;
+    }
+
+    /** Return the number of entries in me. */
+    int size() {
+        return _mask + BUCKET_SIZE;
+    }
+
+    /** Return my segments, in order, as buffers each positioned at its
+     *  first entry and limited at the end of its last, sharing my
+     *  storage. */
+    ByteBuffer[] segments() {
+        ByteBuffer[] result = new ByteBuffer[_segments.length];
+        for (int k = 0; k < result.length; k += 1) {
+            result[k] = _segments[k].duplicate();
+        }
+        return result;
+    }
+
+    /** Return the generation of the current search. */
+    int generation() {
+        return (int) GENERATION.getOpaque(_header, GENERATION_OFFSET)
+            & GENERATION_MASK;
+    }
+
+    /** Start a new search, making existing entries older.  May be called
+     *  from any thread or process sharing me. */
+    void newSearch() {
+        GENERATION.getAndAdd(_header, GENERATION_OFFSET, 1);
+    }
+
+    /** Remove all entries. */
+    void clear() {
+        for (LongBuffer slots : _slots) {
+            for (int i = 0; i < slots.limit(); i += 1) {
+                slots.put(i, 0);
+            }
+        }
+    }
+
+    /** Return the index of the entry for the position whose hash is KEY,
+     *  or -1 if there is none. */
+    int find(long key) {
+        int b = bucket(key);
+        for (int i = b; i < b + BUCKET_SIZE; i += 1) {
+            if (key(i) == key && data(i) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the packed data of the entry for the position whose hash
+     *  is KEY, or 0 if there is none.  The result may be decoded with the
+     *  static methods moveOf, scoreOf, depthOf, and boundOf. */
+    long probe(long key) {
+        int b = bucket(key);
+        LongBuffer slots = _slots[b >>> _segmentShift];
+        int first = 2 * (b & _segmentMask);
+        for (int i = first; i < first + 2 * BUCKET_SIZE; i += 2) {
+            long data = slots.get(i + 1);
+            if (data != 0 && (slots.get(i) ^ data) == key) {
+                return data;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the packed move in entry data DATA. */
+    static int moveOf(long data) {
+        return (int) (data & MOVE_FIELD);
+    }
+
+    /** Return the value in entry data DATA. */
+    static int scoreOf(long data) {
+        return (int) (data >> SCORE_SHIFT);
+    }
+
+    /** Return the search depth in entry data DATA. */
+    static int depthOf(long data) {
+        return (int) (data >>> DEPTH_SHIFT) & DEPTH_FIELD;
+    }
+
+    /** Return the bound type (EXACT, LOWER, or UPPER) in entry data
+     *  DATA. */
+    static int boundOf(long data) {
+        return (int) (data >>> BOUND_SHIFT) & BOUND_FIELD;
+    }
+
+    /** Return the packed move in entry E. */
+    int move(int e) {
+        return moveOf(data(e));
+    }
+
+    /** Return the value in entry E. */
+    int score(int e) {
+        return scoreOf(data(e));
+    }
+
+    /** Return the search depth of entry E. */
+    int depth(int e) {
+        return depthOf(data(e));
+    }
+
+    /** Return the bound type (EXACT, LOWER, or UPPER) of entry E. */
+    int bound(int e) {
+        return boundOf(data(e));
+    }
+
+    /** Record that the position whose hash is KEY has value SCORE of
+     *  bound type BOUND, with best move MOVE, when searched to DEPTH
+     *  plies. */
+    void store(long key, int move, int score, int depth, int bound) {
+        int b = bucket(key);
+        int generation = generation();
+        int victim = b;
+        int victimWorth = Integer.MAX_VALUE;
+        for (int i = b; i < b + BUCKET_SIZE; i += 1) {
+            if (key(i) == key || data(i) == 0) {
+                victim = i;
+                break;
+            }
+            int worth = depth(i) - AGE_PENALTY * age(i, generation);
+            if (worth < victimWorth) {
+                victim = i;
+                victimWorth = worth;
+            }
+        }
+        if (move == Move.NO_MOVE && key(victim) == key) {
+            move = move(victim);
+        }
+        long data = (move & MOVE_FIELD)
+            | (long) Math.min(depth, DEPTH_FIELD) << DEPTH_SHIFT
+            | (long) bound << BOUND_SHIFT
+            | (long) generation << GENERATION_SHIFT
+            | (long) score << SCORE_SHIFT;
+        LongBuffer slots = _slots[victim >>> _segmentShift];
+        int slot = 2 * (victim & _segmentMask);
+        slots.put(slot, key ^ data);
+        slots.put(slot + 1, data);
+    }
+
+    /** Return the hash of entry E. */
+    private long key(int e) {
+        return _slots[e >>> _segmentShift].get(2 * (e & _segmentMask))
+            ^ data(e);
+    }
+
+    /** Return the packed data of entry E. */
+    private long data(int e) {
+        return _slots[e >>> _segmentShift].get(2 * (e & _segmentMask) + 1);
+    }
+
+    /** Return the number of searches from the one that stored entry E
+     *  to that of generation GENERATION, modulo the number of
+     *  generations. */
+    private int age(int e, int generation) {
+        int gen = (int) (data(e) >>> GENERATION_SHIFT) & GENERATION_MASK;
+        return (generation - gen) & GENERATION_MASK;
+    }
+
+    /** Return the index of the first entry of the bucket for KEY. */
+    private int bucket(long key) {
+        return (int) (key ^ (key >>> 32)) & _mask;
+    }
+
+    /** Layout of an entry's data: the packed move in the low 16 bits,
+     *  then depth, bound type, and generation, and the value in the high
+     *  32 bits.  Data of 0 marks an empty entry (a stored entry always
+     *  has a nonzero bound type). */
+    private static final int
+        MOVE_FIELD = (1 << 16) - 1,
+        DEPTH_SHIFT = 16, DEPTH_FIELD = (1 << 8) - 1,
+        BOUND_SHIFT = 24, BOUND_FIELD = 3,
+        GENERATION_SHIFT = 26, GENERATION_MASK = (1 << 6) - 1,
+        SCORE_SHIFT = 32;
+
+    /** Initial int of a file mapped by map: "TBT1". */
+    static final int FILE_MAGIC = 0x54425431;
+
+    /** Number of bytes in the header of a file mapped by map, which
+     *  keeps its entries page-aligned. */
+    static final int HEADER_BYTES = 4096;
+
+    /** Offset in a header of the generation, a native-order int that
+     *  increases by one with each search. */
+    private static final int GENERATION_OFFSET = Integer.BYTES;
+
+    /** Atomic access to the generation in a header. */
+    private static final VarHandle GENERATION =
+        MethodHandles.byteBufferViewVarHandle(int[].class,
+                                              ByteOrder.nativeOrder());
+
+    /** Depth by which each search of age makes an entry less worth
+     *  keeping. */
+    private static final int AGE_PENALTY = 8;
+
+    /** The bytes of my entries, in segments of 2**_segmentShift entries:
+     *  entry e is entry e % 2**_segmentShift of segment
+     *  e / 2**_segmentShift. */
+    private final ByteBuffer[] _segments;
+    /** _segments as longs: the hash XOR the packed data of the entry
+     *  with index i in its segment is at 2i and its packed data at
+     *  2i + 1. */
+    private final LongBuffer[] _slots;
+    /** Log base 2 of the number of entries in a segment. */
+    private final int _segmentShift;
+    /** Mask giving the index of an entry within its segment. */
+    private final int _segmentMask;
+    /** Mask giving the first index of a bucket from a hash. */
+    private final int _mask;
+    /** Holds the generation of the current search, at
+     *  GENERATION_OFFSET. */
+    private final ByteBuffer _header;
+}
@@ -4,9 +4,36 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import ucb.junit.textui;
 import static tablut.Piece.BLACK;
+import static tablut.Piece.KING;
 import static tablut.Piece.WHITE;
 
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 /** The suite of all JUnit tests for the enigma package.
  *  @author
@@ -57,6 +84,1048 @@ public class UnitTest {
 
     }
 
+    @Test
+    public void testPackedMoves() {
+        Move mv = Move.mv("h5-6");
+        int packed = mv.packed();
+        assertSame(mv, Move.mv(packed));
+        assertSame(mv, Move.mv(packed | Move.KING_FLAG | Move.CAPTURE_FLAG));
+        assertEquals(mv.from().index(), Move.from(packed));
+        assertEquals(mv.to().index(), Move.to(packed));
+        assertEquals(packed, (short) packed & 0xffff);
+
+        Board b = new Board();
+        int[] moves = new int[Board.MAX_MOVES];
+        assertEquals(80, b.legalMoves(BLACK, moves));
+        assertEquals(56, b.legalMoves(WHITE, moves));
+    }
+
+    @Test
+    public void testMakeAndUndo() {
+        Board b = new Board();
+        String initial = b.encodedBoard();
+        long hash = b.positionHash();
+        int[] moves = new int[Board.MAX_MOVES];
+        for (int i = 0; i < 20 && b.winner() == null; i += 1) {
+            int n = b.legalMoves(b.turn(), moves);
+            b.makeMove(moves[(7 * i) % n]);
+        }
+        assertFalse(initial.equals(b.encodedBoard()));
+        while (b.moveCount() > 0) {
+            b.undo();
+        }
+        assertEquals(initial, b.encodedBoard());
+        assertEquals(hash, b.positionHash());
+        assertNull(b.winner());
+    }
+
+    @Test
+    public void testRepeatedPosition() {
+        Board b = new Board();
+        b.makeMove(Move.mv("h5-6"));
+        b.makeMove(Move.mv("e7-g"));
+        b.makeMove(Move.mv("h6-5"));
+        assertNull(b.winner());
+        b.makeMove(Move.mv("g7-e"));
+        assertTrue(b.repeatedPosition());
+        assertEquals(BLACK, b.winner());
+        b.undo();
+        assertFalse(b.repeatedPosition());
+        assertNull(b.winner());
+    }
+
+    @Test
+    public void testRayMoveGeneration() {
+        Board b = new Board();
+        int[] moves = new int[Board.MAX_MOVES];
+        for (int i = 0; i < 60 && b.winner() == null; i += 1) {
+            for (Piece side : new Piece[] { WHITE, BLACK }) {
+                HashSet<Move> expected = new HashSet<>();
+                for (Square from : b.pieceLocations(side)) {
+                    for (int dir = 0; dir < 4; dir += 1) {
+                        for (Square to
+                                 : Square.ROOK_SQUARES[from.index()][dir]) {
+                            if (b.get(to) != Piece.EMPTY) {
+                                break;
+                            }
+                            if (to != Board.THRONE || b.get(from) == K) {
+                                expected.add(Move.mv(from, to));
+                            }
+                        }
+                    }
+                }
+                assertEquals(expected, new HashSet<>(b.legalMoves(side)));
+                for (Move mv : expected) {
+                    assertTrue(b.isUnblockedMove(mv.from(), mv.to()));
+                }
+            }
+            int n = b.legalMoves(b.turn(), moves);
+            b.makeMove(moves[(11 * i) % n]);
+        }
+    }
+
+    /** Return a board with black to move, containing the king on KING
+     *  and black and white pieces on the squares in BLACKS and WHITES. */
+    private Board position(String king, String blacks, String whites) {
+        Board b = new Board();
+        for (Square sq : Square.SQUARE_LIST) {
+            b.put(E, sq);
+        }
+        b.put(K, Square.sq(king));
+        for (String sq : blacks.split(" ")) {
+            b.put(B, Square.sq(sq));
+        }
+        for (String sq : whites.split(" ")) {
+            b.put(W, Square.sq(sq));
+        }
+        b.clearUndo();
+        return b;
+    }
+
+    @Test
+    public void testCaptures() {
+        Board b = position("g7", "b3 d1", "c3 a9");
+        b.makeMove(Move.mv("d1-3"));
+        assertEquals(E, b.get(Square.sq("c3")));
+        b.undo();
+        assertEquals(W, b.get(Square.sq("c3")));
+
+        b = position("g7", "c7 f1", "e6 a9");
+        b.makeMove(Move.mv("c7-e"));
+        assertEquals("empty throne is hostile", E, b.get(Square.sq("e6")));
+
+        b = position("e5", "d5 f5 e6 e1", "e4 a9");
+        b.makeMove(Move.mv("e1-3"));
+        assertEquals("occupied throne hostile to white",
+                     E, b.get(Square.sq("e4")));
+        assertNull(b.winner());
+
+        b = position("e5", "d5 f5 e6 d1", "a9");
+        b.makeMove(Move.mv("d1-4"));
+        assertNull(b.winner());
+        b.makeMove(Move.mv("a9-b"));
+        b.makeMove(Move.mv("d4-e"));
+        assertEquals(E, b.get(Square.sq("e5")));
+        assertEquals(B, b.winner());
+        b.undo();
+        assertEquals(K, b.get(Square.sq("e5")));
+        assertNull(b.winner());
+
+        b = position("e6", "d6 f6 a7", "a9");
+        b.makeMove(Move.mv("a7-e"));
+        assertEquals("king beside throne", B, b.winner());
+
+        b = position("g7", "f7 h1", "a9");
+        b.makeMove(Move.mv("h1-7"));
+        assertEquals(B, b.winner());
+
+        b = position("g7", "b5 d3 d7 g5", "c5 d4 d6");
+        b.makeMove(Move.mv("g5-d"));
+        assertEquals(1, b.pieceCount(WHITE));
+        b.undo();
+        assertEquals(4, b.pieceCount(WHITE));
+    }
+
+    @Test
+    public void testPackedPosition() {
+        Board b = new Board();
+        b.makeMove(Move.mv("h5-6"));
+        b.makeMove(Move.mv("e7-g"));
+        b.makeMove(Move.mv("h6-7"));
+        PackedPosition posn = b.packedPosition();
+        assertEquals(21, PackedPosition.BYTES);
+        assertEquals(BLACK.opponent(), posn.turn());
+        assertEquals(b.encodedBoard(), posn.toString());
+        assertEquals(posn, PackedPosition.parse(posn.toString()));
+
+        ByteBuffer buf = ByteBuffer.allocate(3 + 2 * PackedPosition.BYTES);
+        buf.position(3);
+        posn.write(buf);
+        new Board().packedPosition().write(buf);
+        buf.position(3);
+        assertEquals(posn, PackedPosition.read(buf));
+        assertEquals(new Board().packedPosition(), PackedPosition.read(buf));
+        assertEquals(posn, PackedPosition.read(buf, 3));
+
+        Board c = new Board();
+        c.setPosition(posn);
+        assertEquals(b.encodedBoard(), c.encodedBoard());
+        assertEquals(b.positionHash(), c.positionHash());
+        assertEquals(new HashSet<>(b.legalMoves(WHITE)),
+                     new HashSet<>(c.legalMoves(WHITE)));
+    }
+
+    /** Return the output of a GameSession given SCRIPT as input. */
+    private String runSession(String script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GameSession(new BufferedReader(new StringReader(script)),
+                        new PrintStream(out, true), new AI()).run();
+        return out.toString();
+    }
+
+    @Test
+    public void testConcurrentSessions() throws InterruptedException {
+        String script = "seed 5\nauto black\ndump\nquit\n";
+        String expected = runSession(script);
+        assertTrue(expected.contains("wins."));
+        String[] outputs = new String[4];
+        Thread[] threads = new Thread[outputs.length];
+        for (int i = 0; i < threads.length; i += 1) {
+            final int k = i;
+            threads[i] = new Thread(() -> outputs[k] = runSession(script));
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i += 1) {
+            threads[i].join();
+            assertEquals(expected, outputs[i]);
+        }
+    }
+
+    @Test
+    public void testBoardCopyIsIndependent() {
+        Board b = new Board();
+        b.makeMove(Move.mv("h5-6"));
+        Board c = new Board(b);
+        c.makeMove(Move.mv("e7-g"));
+        assertEquals(1, b.moveCount());
+        assertEquals(B, c.get(Square.sq("h6")));
+        assertEquals(W, b.get(Square.sq("e7")));
+        c.undo();
+        c.undo();
+        assertEquals(new Board().encodedBoard(), c.encodedBoard());
+        assertEquals(B, b.get(Square.sq("h6")));
+    }
+
+    @Test
+    public void testTranspositionTable() {
+        TranspositionTable table = new TranspositionTable(4);
+        int mv = Move.mv("h5-6").packed();
+        table.store(12345L, mv, -70, 3, TranspositionTable.LOWER);
+        int e = table.find(12345L);
+        assertTrue(e >= 0);
+        assertEquals(mv, table.move(e));
+        assertEquals(-70, table.score(e));
+        assertEquals(3, table.depth(e));
+        assertEquals(TranspositionTable.LOWER, table.bound(e));
+        assertEquals(-1, table.find(54321L));
+        table.store(12345L, Move.NO_MOVE, 5, 4, TranspositionTable.UPPER);
+        e = table.find(12345L);
+        assertEquals(mv, table.move(e));
+        assertEquals(5, table.score(e));
+        for (long key = 1; key <= 2 * table.size(); key += 1) {
+            table.newSearch();
+            table.store(key << 32, mv, 0, 1, TranspositionTable.EXACT);
+        }
+        assertEquals(-1, table.find(12345L));
+    }
+
+    @Test
+    public void testSegmentedTable() throws IOException {
+        ByteBuffer[] segments = new ByteBuffer[4];
+        for (int k = 0; k < segments.length; k += 1) {
+            segments[k] = ByteBuffer.allocateDirect(
+                TranspositionTable.BUCKET_SIZE
+                * TranspositionTable.ENTRY_BYTES);
+        }
+        TranspositionTable table = new TranspositionTable(segments, 3);
+        assertEquals(16, table.size());
+        int bucket = TranspositionTable.BUCKET_SIZE;
+        for (int k = 0; k < 4; k += 1) {
+            table.store(k * bucket, 0, k + 1, 1, TranspositionTable.EXACT);
+        }
+        for (int k = 0; k < 4; k += 1) {
+            long data = table.probe(k * bucket);
+            assertEquals(k + 1, TranspositionTable.scoreOf(data));
+            assertEquals(k * bucket, table.find(k * bucket));
+        }
+        Checkpoint saved = new Checkpoint(new Board(), new MoveStack());
+        saved.setTable(BLACK, table);
+        Path file = Files.createTempFile("tablut", ".sav");
+        saved.write(file);
+        TranspositionTable copy = Checkpoint.read(file).table(BLACK);
+        assertEquals(4, copy.segments().length);
+        assertEquals(3, copy.generation());
+        assertEquals(4, TranspositionTable.scoreOf(copy.probe(3 * bucket)));
+        Files.delete(file);
+
+        file = Files.createTempFile("tablut", ".tt");
+        TranspositionTable big = TranspositionTable.map(file, 6, 4);
+        assertEquals(64, big.size());
+        assertEquals(4, big.segments().length);
+        long key = 0xffffffffL;
+        big.store(key, 0, 17, 1, TranspositionTable.EXACT);
+        assertEquals(big.size() - TranspositionTable.BUCKET_SIZE,
+                     big.find(key));
+        assertEquals(17, TranspositionTable.scoreOf(
+                             TranspositionTable.map(file, 4).probe(key)));
+        Files.delete(file);
+    }
+
+    @Test
+    public void testGameEvents() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(out);
+        Controller control =
+            new Controller(new NullView(), null,
+                           new TextReporter(output, output),
+                           new TextPlayer(), new AI(), false,
+                           new BufferedReader(new StringReader("")), output);
+        List<List<GameEvent>> batches = new ArrayList<>();
+        control.addListener((controller, events) -> batches.add(events));
+        control.start();
+        control.execute("d1-a");
+        control.execute("e3-a");
+        control.execute("dump");
+        control.execute("a1-2");
+        control.execute("undo");
+        assertEquals(5, batches.size());
+        assertEquals("[NEW_GAME]", batches.get(0).toString());
+        assertEquals("[MOVE d1-a]", batches.get(1).toString());
+        assertEquals("[MOVE a1-2, CAPTURE a3 White]",
+                     batches.get(3).toString());
+        assertEquals("[UNDO a1-2, EDIT a3 White, UNDO e3-a]",
+                     batches.get(4).toString());
+        assertEquals(1, batches.get(4).get(2).moveCount());
+    }
+
+    @Test
+    public void testAsyncOutput() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        AsyncOutput out = new AsyncOutput(sink);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i += 1) {
+            byte[] line = String.format("line %d%n", i).getBytes();
+            out.write(line, 0, line.length);
+            expected.append(new String(line));
+        }
+        out.flush();
+        assertEquals(expected.toString(), sink.toString());
+        out.write('x');
+        out.close();
+        assertEquals(expected + "x", sink.toString());
+    }
+
+    @Test
+    public void testGameRecord() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GameRecorder recorder = new GameRecorder(bytes, true);
+        Board board = new Board();
+        int[] moves = new int[Board.MAX_MOVES];
+        recorder.begin(board.packedPosition());
+        for (int k = 0; k < 6; k += 1) {
+            board.legalMoves(board.turn(), moves);
+            recorder.iterationDone(3, 10 * k, 100, new int[] { moves[0] },
+                                   2000000);
+            recorder.move(moves[0]);
+            board.makeMove(moves[0]);
+        }
+        recorder.undo();
+        board.undo();
+        recorder.edit(Square.sq("a1"), BLACK);
+        board.put(BLACK, Square.sq("a1"));
+        recorder.close();
+
+        GameArchive archive =
+            new GameArchive(ByteBuffer.wrap(bytes.toByteArray()));
+        assertTrue(archive.next());
+        assertEquals(8, archive.size());
+        assertTrue(archive.hasSearch());
+        assertEquals(50, archive.score(5));
+        assertEquals(3, archive.depth(5));
+        assertEquals(2, archive.millis(5));
+        assertEquals(GameRecord.UNDO, archive.code(6));
+        assertNull(archive.winner());
+        Board replayed = new Board();
+        archive.replay(replayed, archive.size());
+        assertEquals(board.encodedBoard(), replayed.encodedBoard());
+        assertFalse(archive.next());
+
+        byte[] corrupt = bytes.toByteArray();
+        corrupt[GameRecord.HEADER_BYTES] ^= 1;
+        try {
+            new GameArchive(ByteBuffer.wrap(corrupt)).next();
+            fail("corrupt game record accepted");
+        } catch (IllegalArgumentException excp) {
+            /* Expected. */
+        }
+
+        Path saved = Files.createTempDirectory("tablut").resolve("a.sav");
+        bytes.reset();
+        GameRecorder.fromText(new BufferedReader(new StringReader(
+            "i4-h\nsave " + saved + "\ne3-a\nquit\n")), bytes);
+        archive = new GameArchive(ByteBuffer.wrap(bytes.toByteArray()));
+        assertTrue(archive.next());
+        assertEquals(2, archive.size());
+        assertFalse(Files.exists(saved));
+        saved.getParent().toFile().delete();
+    }
+
+    @Test
+    public void testPositionIndex() throws IOException {
+        Path dir = Files.createTempDirectory("tablut");
+        Path games = dir.resolve("games.bin"), index = dir.resolve("idx");
+        try (OutputStream out = Files.newOutputStream(games)) {
+            GameRecorder recorder = new GameRecorder(out, false);
+            for (int g = 0; g < 3; g += 1) {
+                Board board = new Board();
+                int[] moves = new int[Board.MAX_MOVES];
+                recorder.begin(board.packedPosition());
+                for (int k = 0; k < 4; k += 1) {
+                    board.legalMoves(board.turn(), moves);
+                    int move = moves[g == 2 && k == 0 ? 1 : 0];
+                    recorder.move(move);
+                    board.makeMove(move);
+                }
+            }
+            recorder.close();
+        }
+        assertEquals(3, PositionIndex.build(List.of(games), index, 2));
+        PositionIndex db = new PositionIndex(index);
+        assertEquals(15, db.size());
+        PositionIndex.Summary summary =
+            db.summarize(new Board().positionHash());
+        assertEquals(3, summary.total);
+        assertEquals(2, summary.moves.size());
+        assertEquals(2, PositionIndex.total(summary.moveResults.get(0)));
+        assertEquals(-1, db.find(12345));
+        for (File f : dir.toFile().listFiles()) {
+            f.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    public void testReplayer() {
+        assertEquals(Move.mv("e3-a").packed(), Move.parse("E3-A", 0, 4));
+        assertEquals(Move.mv("f1-4").packed(), Move.parse("xf1-4", 1, 5));
+        assertEquals(Move.NO_MOVE, Move.parse("e3-j", 0, 4));
+        Replayer replayer = new Replayer();
+        assertTrue(replayer.replayLog("# game\nseed 3\ni4-h\n e3-a  # ok\n"
+                                      + "undo\ni4-h\nmanual white\n"));
+        assertEquals(1, replayer.games());
+        assertEquals(3, replayer.moves());
+        assertFalse(replayer.replayLog("new\ni4-h\ni4-h\n"));
+        assertEquals("3: illegal move: i4-h", replayer.error());
+        assertFalse(replayer.replayLog("i4-h\nfrobnicate\n"));
+        assertEquals("2: bad command: frobnicate", replayer.error());
+        Board board = new Board();
+        board.makeMove(Move.mv("i4-h"));
+        assertTrue(replayer.replayLog("setboard " + board.encodedBoard()
+                                      + "\ne3-a\n"));
+        assertEquals(1, replayer.moves());
+        assertFalse(replayer.replayLog("setboard w---\n"));
+        assertEquals("1: position must have 82 characters",
+                     replayer.error());
+        assertTrue(replayer.replayLog("i4-h\ne3-a\nh4-3\nundo\ngoto 0\n"
+                                      + "redo\nredo\ngoto 2\nh4-3\n"));
+        assertEquals(7, replayer.moves());
+        assertFalse(replayer.replayLog("i4-h\nundo\ngoto 2\n"));
+        assertEquals("3: no such position: goto 2", replayer.error());
+        assertTrue(replayer.replayLog("i4-h\ne3-a\ntoggle a9\nh4-3\n"
+                                      + "undo\nredo\n"));
+        assertEquals(3, replayer.moves());
+        assertTrue(replayer.replayLog("i4-h\nsave /tmp/a.sav\ne3-a\n"));
+        assertFalse(replayer.replayLog("i4-h\nload /tmp/a.sav\n"));
+        assertEquals("2: cannot replay load: load /tmp/a.sav",
+                     replayer.error());
+    }
+
+    @Test
+    public void testSharedTable() throws Exception {
+        Path file = Files.createTempFile("tablut", ".tt");
+        TranspositionTable a = TranspositionTable.map(file, 4),
+            b = TranspositionTable.map(file, 10);
+        assertEquals(16, b.size());
+        int mv = Move.mv("e3-a").packed();
+        a.store(12345L, mv, 9, 2, TranspositionTable.EXACT);
+        long data = b.probe(12345L);
+        assertEquals(mv, TranspositionTable.moveOf(data));
+        assertEquals(9, TranspositionTable.scoreOf(data));
+        assertEquals(2, TranspositionTable.depthOf(data));
+        ByteBuffer entries = a.segments()[0];
+        int e = a.find(12345L);
+        entries.putLong(e * TranspositionTable.ENTRY_BYTES + Long.BYTES,
+                        data ^ 1L << 40);
+        assertEquals("torn entry rejected", 0, b.probe(12345L));
+        a.newSearch();
+        assertEquals(1, b.generation());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i += 1) {
+            threads[i] = new Thread(() -> {
+                for (int k = 0; k < 1000; k += 1) {
+                    b.newSearch();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4001 % 64, a.generation());
+        assertEquals(4001 % 64,
+                     TranspositionTable.map(file, 4).generation());
+        Files.writeString(file, "not a table");
+        try {
+            TranspositionTable.map(file, 4);
+            fail("mapped a file that is not a table");
+        } catch (IllegalArgumentException excp) {
+            /* Expected. */
+        }
+        Files.delete(file);
+        TranspositionTable.map(file, 5, 4);
+        Files.write(file, new byte[TranspositionTable.ENTRY_BYTES],
+                    StandardOpenOption.APPEND);
+        try {
+            TranspositionTable.map(file, 5, 4);
+            fail("mapped a table with a partial segment");
+        } catch (IllegalArgumentException excp) {
+            /* Expected. */
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        Board board = new Board();
+        MoveStack redo = new MoveStack();
+        board.makeMove(Move.mv("h5-6"));
+        board.makeMove(Move.mv("e7-g"));
+        board.makeMove(Move.mv("h6-5"));
+        redo.push(Move.mv("g7-e").packed());
+        TranspositionTable table = new TranspositionTable(4);
+        table.store(board.positionHash(), Move.mv("g7-e").packed(), 7, 3,
+                    TranspositionTable.EXACT);
+        Checkpoint saved = new Checkpoint(board, redo);
+        saved.setTable(WHITE, table);
+        Path file = Files.createTempFile("tablut", ".sav");
+        saved.write(file);
+        Checkpoint loaded = Checkpoint.read(file);
+        Files.delete(file);
+        Board restored = loaded.board();
+        assertEquals(board.encodedBoard(), restored.encodedBoard());
+        assertEquals(3, restored.moveCount());
+        assertEquals(3, restored.undoCount());
+        assertNull(loaded.table(BLACK));
+        TranspositionTable copy = loaded.table(WHITE);
+        assertEquals(table.size(), copy.size());
+        assertEquals(7, copy.score(copy.find(board.positionHash())));
+        restored.makeMove(loaded.redo().pop());
+        assertTrue("repetition history kept", restored.repeatedPosition());
+        restored.undo();
+        restored.undo();
+        assertEquals(Move.mv("e7-g").packed(), restored.lastMove());
+
+        redo.push(Move.mv("h5-6").packed());
+        saved = new Checkpoint(board, redo);
+        saved.write(file);
+        try {
+            Checkpoint.read(file);
+            fail("illegal redo move accepted");
+        } catch (IllegalArgumentException excp) {
+            /* Expected. */
+        } finally {
+            Files.delete(file);
+        }
+        ByteBuffer state = ByteBuffer.allocate(board.savedBytes());
+        board.save(state);
+        state.put(PackedPosition.BYTES + Integer.BYTES,
+                  (byte) KING.ordinal());
+        try {
+            new Board().restore(state.flip());
+            fail("king accepted as winner");
+        } catch (IllegalArgumentException excp) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testCommandScanner() {
+        CommandScanner scanner = new CommandScanner();
+        assertEquals(CommandScanner.Op.EMPTY, scanner.scan("  # nothing"));
+        assertEquals(CommandScanner.Op.MOVE, scanner.scan(" E3-A # c"));
+        assertEquals(Move.mv("e3-a").packed(), scanner.move());
+        assertEquals(CommandScanner.Op.SEED, scanner.scan("Seed\t42"));
+        assertEquals(42, scanner.number());
+        assertEquals(CommandScanner.Op.AUTO, scanner.scan("auto BLACK"));
+        assertEquals(BLACK, scanner.side());
+        assertEquals(CommandScanner.Op.TOGGLE, scanner.scan("toggle e5"));
+        assertEquals(Square.sq("e5"), scanner.square());
+        assertEquals(CommandScanner.Op.BAD, scanner.scan("quit now #"));
+        assertEquals("quit now", scanner.command());
+        assertEquals(CommandScanner.Op.BAD, scanner.scan("limit -3"));
+        assertEquals(CommandScanner.Op.BAD, scanner.scan("toggle j1"));
+        assertEquals(CommandScanner.Op.MOVE, scanner.scan("e3-e"));
+        assertNull(Move.mv(scanner.move()));
+        assertEquals(CommandScanner.Op.MOVE, scanner.scan("A1-a"));
+        assertEquals(Move.NO_MOVE, scanner.move());
+        assertEquals(CommandScanner.Op.BAD, scanner.scan("e3-j"));
+        String out = runSession("manual white\na1-a\ne1-e\nd1-a\n"
+                                + "a1-1\nquit\n");
+        assertEquals(out, 3, out.split("Invalid move. Please try again.",
+                                       -1).length - 1);
+        assertFalse(out, out.contains("Bad command"));
+    }
+
+    @Test
+    public void testEventRing() {
+        EventRing ring = new EventRing(2);
+        assertNull(ring.get(0));
+        for (int i = 0; i < 10; i += 1) {
+            assertEquals(i, ring.publish("line " + i));
+        }
+        assertEquals(6, ring.oldest());
+        assertSame(EventRing.LAPPED, ring.get(5));
+        assertEquals("line 6", ring.get(6));
+        assertEquals("line 9", ring.get(9));
+        assertNull(ring.get(10));
+    }
+
+    @Test
+    public void testUndoAfterEdit() {
+        String out = runSession("manual white\nd1-a\ne3-a\ntoggle a9\n"
+                                + "a1-2\nundo\nredo\ne4-b\nundo\ndump\n"
+                                + "undo\nredo\nredo\ndump\nquit\n");
+        Board board = new Board();
+        board.makeMove(Move.mv("d1-a"));
+        board.makeMove(Move.mv("e3-a"));
+        board.put(W, Square.sq("a9"));
+        board.clearUndo();
+        String edited = board.toString();
+        board.makeMove(Move.mv("a1-2"));
+        board.makeMove(Move.mv("e4-b"));
+        assertFalse(out, out.contains("Error"));
+        int first = out.indexOf(edited);
+        assertTrue(out, first >= 0);
+        assertTrue(out, out.indexOf(board.toString(), first) > first);
+    }
+
+    /** Return the output of an Engine given SCRIPT as input. */
+    private String runEngine(String script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Engine(new BufferedReader(new StringReader(script)),
+                   new PrintStream(out, true)).run();
+        return out.toString();
+    }
+
+    @Test
+    public void testEngine() {
+        String out = runEngine("tablut\nposition startpos moves e1-e\n"
+                               + "position startpos moves d1-a e1-e\n"
+                               + "frob\nisready\nquit\n");
+        assertTrue(out, out.contains("tablutok"));
+        assertTrue(out, out.contains("Error: illegal move: e1-e"));
+        assertTrue(out, out.contains("Error: Bad command: frob"));
+        assertTrue(out, out.endsWith("readyok" + System.lineSeparator()));
+        out = runEngine("position startpos moves d1-a\ngo infinite\n"
+                        + "stop\nnewgame\ngo depth 1\nisready\n");
+        String[] best = out.split("bestmove ");
+        assertEquals(out, 3, best.length);
+        Board board = new Board();
+        board.makeMove(Move.mv("d1-a"));
+        assertTrue(out, board.isLegal(Move.mv(best[1].split("\\s")[0])));
+
+        AI ai = new AI();
+        ai.setLimits(1, 0);
+        int[] score = new int[1];
+        ai.setListener((depth, value, nodes, pv, elapsed) ->
+                       score[0] = value);
+        ai.findMove(new Board());
+        assertTrue(score[0] != 0);
+        out = runEngine("position startpos\ngo depth 1\nisready\n");
+        assertTrue(out, out.contains("info depth 1 score " + -score[0]
+                                     + " "));
+    }
+
+    @Test
+    public void testEnginePonderhit() throws Exception {
+        PipedWriter commands = new PipedWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Engine engine =
+            new Engine(new BufferedReader(new PipedReader(commands)),
+                       new PrintStream(out, true));
+        Thread thread = new Thread(engine::run);
+        thread.start();
+        commands.write("position startpos\ngo ponder movetime 100\n"
+                       + "ponderhit\n");
+        commands.flush();
+        long start = System.currentTimeMillis();
+        while (!out.toString().contains("bestmove")
+               && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(10);
+        }
+        commands.write("quit\n");
+        commands.close();
+        thread.join();
+        assertTrue("movetime honored after ponderhit",
+                   out.toString().contains("bestmove"));
+    }
+
+    /** Play black's first move, then the reply that white's AI predicts
+     *  if HIT and some other move if not, against a pondering AI, and
+     *  return, for each search iteration it reported after black's
+     *  second move, "search" if reported by the thread playing the game
+     *  and "ponder" otherwise. */
+    private List<String> ponder(boolean hit) {
+        Thread player = Thread.currentThread();
+        Board board = new Board();
+        List<int[]> pvs = new ArrayList<>();
+        List<String> reporters = new ArrayList<>();
+        AI ai = new AI();
+        ai.setLimits(3, 0);
+        ai.setPondering(true);
+        ai.setListener((depth, score, nodes, pv, elapsed) -> {
+                synchronized (pvs) {
+                    pvs.add(pv);
+                    reporters.add(Thread.currentThread() == player
+                                  ? "search" : "ponder");
+                }
+            });
+        BufferedReader input = new BufferedReader(new StringReader("")) {
+            @Override
+            public String readLine() {
+                synchronized (pvs) {
+                    if (board.moveCount() == 0) {
+                        board.makeMove(Move.mv("d1-a"));
+                        return "d1-a";
+                    } else if (board.moveCount() > 2) {
+                        return "quit";
+                    }
+                    int[] pv = pvs.get(pvs.size() - 1);
+                    assertFalse("ponder search not reported",
+                                reporters.contains("ponder"));
+                    board.makeMove(pv[0]);
+                    int[] moves = new int[Board.MAX_MOVES];
+                    int reply = pv[1];
+                    if (!hit) {
+                        board.legalMoves(BLACK, moves);
+                        reply = moves[moves[0] == pv[1] ? 1 : 0];
+                    }
+                    board.makeMove(reply);
+                    reporters.clear();
+                    return Move.mv(reply).toString();
+                }
+            }
+        };
+        new GameSession(input, new PrintStream(
+                            OutputStream.nullOutputStream()), ai).run();
+        return reporters;
+    }
+
+    @Test
+    public void testPonderHit() {
+        List<String> reporters = ponder(true);
+        assertFalse("hit searched again", reporters.contains("search"));
+    }
+
+    @Test
+    public void testPonderMiss() {
+        List<String> reporters = ponder(false);
+        assertTrue("miss searched again", reporters.contains("search"));
+        assertFalse(reporters.contains("ponder"));
+    }
+
+    @Test
+    public void testGuiLabels() {
+        Board board = new Board();
+        assertEquals("To move: Black", GUI.turnLabel(board));
+        board.makeMove(Move.mv("d1-a"));
+        assertEquals("To move: White", GUI.turnLabel(board));
+        int[] pv = new int[6];
+        for (int k = 0; k < pv.length; k += 1) {
+            pv[k] = Move.mv(k % 2 == 0 ? "e3-a" : "a1-2").packed();
+        }
+        assertEquals("  [depth 6, score -8: e3-a a1-2 e3-a a1-2]",
+                     GUI.progressLabel(6, -8, pv));
+    }
+
+    @Test
+    public void testTablePv() {
+        AI ai = new AI();
+        ai.setLimits(4, 0);
+        List<int[]> pvs = new ArrayList<>();
+        ai.setListener((depth, score, nodes, pv, elapsed) -> pvs.add(pv));
+        Board board = new Board();
+        ai.findMove(board);
+        ai.findMove(board);
+        int[] pv = pvs.get(pvs.size() - 1);
+        assertEquals(4, pv.length);
+        for (int mv : pv) {
+            assertTrue(board.isLegal(mv));
+            board.makeMove(mv);
+        }
+    }
+
+    @Test
+    public void testTournamentStatistics() {
+        assertEquals(0, Tournament.elo(0.5), 1e-9);
+        assertEquals(-190.8485, Tournament.elo(0.25), 1e-4);
+        assertEquals(0.5, Tournament.expectedScore(0), 1e-9);
+        assertEquals(0.6401, Tournament.expectedScore(100), 1e-4);
+        assertEquals(0.7, Tournament.expectedScore(Tournament.elo(0.7)),
+                     1e-9);
+        String[] expected = {
+            "Elo +147.2 [-33.4, +504.0]; SPRT(0, 10) LLR 0.17"
+            + " [-2.94, 2.94] inconclusive",
+            "H1 accepted", "H0 accepted"
+        };
+        int[][] totals = { { 6, 2, 2 }, { 600, 200, 200 },
+                           { 200, 200, 600 } };
+        for (int k = 0; k < totals.length; k += 1) {
+            Tournament tournament =
+                new Tournament(new AI(), new AI(), 0, 1, 0, 0, 0);
+            for (Tournament.Result r : Tournament.Result.values()) {
+                for (int n = totals[k][r.ordinal()]; n > 0; n -= 1) {
+                    tournament.record(r);
+                }
+            }
+            assertTrue(tournament.statistics().endsWith(expected[k]));
+        }
+    }
+
+    @Test
+    public void testTournamentPairs() {
+        AI a = new AI(), b = new AI();
+        a.setLimits(1, 0);
+        b.setLimits(2, 0);
+        Tournament tournament = new Tournament(a, b, 2, 1, 2, 5, 8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tournament.recordTo(bytes);
+        tournament.run(new PrintStream(OutputStream.nullOutputStream()));
+        GameArchive archive =
+            new GameArchive(ByteBuffer.wrap(bytes.toByteArray()));
+        assertTrue(archive.next());
+        int[] opening = { archive.code(0), archive.code(1) };
+        assertEquals("B plays black first", 2, archive.depth(2));
+        assertEquals(1, archive.depth(3));
+        assertTrue(archive.next());
+        assertEquals(opening[0], archive.code(0));
+        assertEquals(opening[1], archive.code(1));
+        assertEquals("A plays black second", 1, archive.depth(2));
+        assertEquals(2, archive.depth(3));
+        assertFalse(archive.next());
+        assertEquals(2, tournament.count(Tournament.Result.WIN)
+                     + tournament.count(Tournament.Result.DRAW)
+                     + tournament.count(Tournament.Result.LOSS));
+    }
+
+    @Test
+    public void testStopSearch() throws InterruptedException {
+        AI ai = new AI();
+        ai.setLimits(AI.MAX_SEARCH_DEPTH, 0);
+        List<Integer> depths = new ArrayList<>();
+        ai.setListener((depth, score, nodes, pv, elapsed) -> {
+                synchronized (depths) {
+                    depths.add(depth);
+                    depths.notifyAll();
+                }
+            });
+        Board board = new Board();
+        int[] move = new int[1];
+        Thread search = new Thread(() -> move[0] = ai.findMove(board));
+        search.start();
+        synchronized (depths) {
+            while (depths.size() < 2) {
+                depths.wait();
+            }
+        }
+        ai.stop();
+        search.join(10000);
+        assertFalse("search stopped", search.isAlive());
+        assertTrue(new Board().isLegal(move[0]));
+        assertTrue(depths.size() < AI.MAX_SEARCH_DEPTH);
+    }
+
+    @Test
+    public void testFlightEvents() throws IOException {
+        Path file = Files.createTempFile("tablut", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] {
+                    "tablut.Command", "tablut.BoardMove",
+                    "tablut.SearchIteration", "tablut.Search" }) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            runSession("manual white\nd1-a\nfrob\nquit\n");
+            AI ai = new AI();
+            ai.setLimits(3, 0);
+            ai.findMove(new Board());
+            recording.stop();
+            recording.dump(file);
+        }
+        List<String> commands = new ArrayList<>();
+        int iterations = 0, searches = 0, moves = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            switch (event.getEventType().getName()) {
+            case "tablut.Command":
+                commands.add(event.getString("command")
+                             + (event.getBoolean("failed") ? "!" : ""));
+                break;
+            case "tablut.SearchIteration":
+                iterations += 1;
+                break;
+            case "tablut.Search":
+                if (event.getInt("ply") == 0) {
+                    assertEquals("Black", event.getString("side"));
+                    assertEquals(3, event.getInt("depth"));
+                    searches += 1;
+                }
+                break;
+            case "tablut.BoardMove":
+                moves += 1;
+                break;
+            default:
+                break;
+            }
+        }
+        Files.delete(file);
+        assertEquals(List.of("manual white", "d1-a", "frob!", "quit"),
+                     commands);
+        assertEquals(1, searches);
+        assertTrue(iterations >= 3);
+        assertTrue("board moves sampled", moves > 0);
+    }
+
+    /** Return the image WIDGET paints. */
+    private BufferedImage paint(BoardWidget widget) {
+        BufferedImage image =
+            new BufferedImage(BoardWidget.BOARD_SIDE, BoardWidget.BOARD_SIDE,
+                              BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        widget.paintComponent(g);
+        g.dispose();
+        return image;
+    }
+
+    @Test
+    public void testBoardWidgetUpdates() {
+        Board board = new Board();
+        BoardWidget shown = new BoardWidget(new ArrayBlockingQueue<>(1));
+        shown.update(board);
+        BufferedImage before = paint(shown);
+        board.makeMove(Move.mv("d1-a"));
+        board.makeMove(Move.mv("e3-a"));
+        board.put(Piece.EMPTY, Square.sq("e4"));
+        shown.update(board);
+        BoardWidget fresh = new BoardWidget(new ArrayBlockingQueue<>(1));
+        fresh.update(board);
+        BufferedImage updated = paint(shown), full = paint(fresh);
+        int changed = 0;
+        for (int x = 0; x < full.getWidth(); x += 1) {
+            for (int y = 0; y < full.getHeight(); y += 1) {
+                assertEquals(full.getRGB(x, y), updated.getRGB(x, y));
+                changed += before.getRGB(x, y) != full.getRGB(x, y) ? 1 : 0;
+            }
+        }
+        assertTrue("position redrawn", changed > 0);
+    }
+
+    @Test
+    public void testBoardWidgetClicks() {
+        ArrayBlockingQueue<String> commands = new ArrayBlockingQueue<>(4);
+        BoardWidget widget = new BoardWidget(commands);
+        Board board = new Board();
+        board.makeMove(Move.mv("d1-a"));
+        widget.update(board);
+        BufferedImage before = paint(widget);
+        widget.click(Square.sq("e1"));
+        widget.click(Square.sq("d2"));
+        widget.click(Square.sq("d4"));
+        assertEquals("d2-4", commands.poll());
+        widget.click(Square.sq("a1"));
+        widget.click(Square.sq("c1"));
+        assertEquals("a1-c", commands.poll());
+        widget.click(Square.sq("e3"));
+        widget.setMoveCollection(false);
+        widget.click(Square.sq("e2"));
+        assertNull(commands.poll());
+        BufferedImage after = paint(widget);
+        for (int x = 0; x < after.getWidth(); x += 1) {
+            for (int y = 0; y < after.getHeight(); y += 1) {
+                assertEquals(before.getRGB(x, y), after.getRGB(x, y));
+            }
+        }
+    }
+
+    /** Send COMMANDS to the session on SOCKET, and return its output up
+     *  to its next prompt. */
+    private String converse(Socket socket, String commands)
+        throws IOException {
+        socket.getOutputStream().write(commands.getBytes());
+        InputStream in = socket.getInputStream();
+        StringBuilder out = new StringBuilder();
+        while (out.length() < 2 || !out.substring(out.length() - 2)
+               .equals("> ")) {
+            int c = in.read();
+            if (c < 0) {
+                break;
+            }
+            out.append((char) c);
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testGameServer() throws Exception {
+        GameServer server = new GameServer(0, 1, new AI());
+        Thread thread = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException excp) {
+                    /* Ends the test with a refused connection. */
+                }
+            });
+        thread.start();
+        InetAddress host = InetAddress.getLoopbackAddress();
+        try (Socket a = new Socket(host, server.port());
+             Socket b = new Socket(host, server.port())) {
+            a.setSoTimeout(10000);
+            b.setSoTimeout(10000);
+            assertTrue(converse(a, "").startsWith("Tablut"));
+            assertTrue(converse(b, "").startsWith("Tablut"));
+            assertTrue(converse(a, "limit 0\n").contains("Error: "));
+            assertTrue(converse(a, "save x.sav\n").contains(
+                           "Error: save and load are not available"));
+            assertTrue(converse(a, "frob\n").contains("Bad command"));
+            assertTrue(converse(b, "dump\n").contains("===\n 9 "));
+            try (Socket c = new Socket(host, server.port())) {
+                c.setSoTimeout(10000);
+                assertTrue(converse(c, "quit\n").startsWith("Tablut"));
+            }
+            assertTrue(converse(a, "dump\n").contains("===\n 9 "));
+        } finally {
+            server.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testAnalyzer() throws IOException {
+        Board board = new Board();
+        for (int k = 0; k < Board.SIZE * Board.SIZE; k += 1) {
+            board.put(Piece.EMPTY, Square.sq(k));
+        }
+        board.put(K, Square.sq("e5"));
+        for (String sq : new String[] { "e4", "d5", "f5", "a6", "a1" }) {
+            board.put(B, Square.sq(sq));
+        }
+        Path dir = Files.createTempDirectory("tablut");
+        Path log = dir.resolve("game.log"), out = dir.resolve("out");
+        Files.writeString(log, "setboard " + board.encodedBoard()
+                          + "\na1-b\n");
+        new Analyzer(2, 0, 1, out).run(List.of(log),
+            new PrintStream(OutputStream.nullOutputStream()));
+        Path result = out.resolve("game.log" + Analyzer.SUFFIX);
+        List<String> lines = Files.readAllLines(result);
+        assertEquals("result none", lines.get(lines.size() - 1));
+        String move = lines.get(lines.size() - 2);
+        assertTrue(move, move.matches(
+            " *1 Black a1-b +\\+win +best a6-e +-win .*  blunder"));
+        Files.delete(result);
+        Files.delete(log);
+        Files.delete(out);
+        Files.delete(dir);
+    }
+
     private void buildBoard(Board b, Piece[][] target) {
         for (int col = 0; col < Board.SIZE; col++) {
             for (int row = Board.SIZE - 1; row >= 0; row--) {
@@ -1,10 +1,19 @@
 package tablut;
 
-/** A view of a Tablut board.
+import java.util.List;
+
+/** A view of a Tablut board.  A View listens to the events of the
+ *  Controller it is given, and by default updates itself from the whole
+ *  board whenever a command has changed the game.
  *  @author P. N. Hilfinger */
-interface View {
+interface View extends GameListener {
 
     /** Update the current view according to the game on CONTROLLER. */
     void update(Controller controller);
 
+    @Override
+    default void gameChanged(Controller controller, List<GameEvent> events) {
+        update(controller);
+    }
+
 }